@@ -0,0 +1,2 @@
+-- Schema version 1 of shelter.db, as PetDbHelper creates it. Checked by PetSchemaTest.
+CREATE TABLE pets(_id INTEGER PRIMARY KEY AUTOINCREMENT,name TEXT,breed TEXT,gender INTEGER NOT NULL,weight INTEGER NOT NULL DEFAULT 0);
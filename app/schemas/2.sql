@@ -0,0 +1,5 @@
+-- Schema version 2 of shelter.db, as PetDbHelper creates it. Checked by PetSchemaTest.
+CREATE TABLE pets(_id INTEGER PRIMARY KEY AUTOINCREMENT,name TEXT,breed TEXT,gender INTEGER NOT NULL,weight INTEGER NOT NULL DEFAULT 0);
+CREATE INDEX pets_name_index ON pets(name COLLATE NOCASE);
+CREATE INDEX pets_breed_index ON pets(breed);
+CREATE INDEX pets_gender_weight_index ON pets(gender, weight);
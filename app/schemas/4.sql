@@ -0,0 +1,15 @@
+-- Schema version 4 of shelter.db, as PetDbHelper creates it. Checked by PetSchemaTest.
+CREATE TABLE pets(_id INTEGER PRIMARY KEY AUTOINCREMENT,name TEXT,breed TEXT,gender INTEGER NOT NULL,weight INTEGER NOT NULL DEFAULT 0);
+CREATE INDEX pets_name_index ON pets(name COLLATE NOCASE);
+CREATE INDEX pets_breed_index ON pets(breed);
+CREATE INDEX pets_gender_weight_index ON pets(gender, weight);
+CREATE VIRTUAL TABLE pets_fts USING fts4(name, breed);
+CREATE TRIGGER pets_fts_insert AFTER INSERT ON pets BEGIN INSERT INTO pets_fts(docid, name, breed) VALUES (new._id, new.name, new.breed); END;
+CREATE TRIGGER pets_fts_update AFTER UPDATE OF name, breed ON pets BEGIN UPDATE pets_fts SET name = new.name, breed = new.breed WHERE docid = old._id; END;
+CREATE TRIGGER pets_fts_delete AFTER DELETE ON pets BEGIN DELETE FROM pets_fts WHERE docid = old._id; END;
+CREATE TABLE pet_stats_gender(gender INTEGER PRIMARY KEY,count INTEGER NOT NULL,total_weight INTEGER NOT NULL);
+CREATE TABLE pet_stats_breed(breed TEXT PRIMARY KEY,count INTEGER NOT NULL);
+CREATE INDEX pet_stats_breed_count_index ON pet_stats_breed(count DESC, breed);
+CREATE TRIGGER pets_stats_insert AFTER INSERT ON pets BEGIN INSERT OR IGNORE INTO pet_stats_gender VALUES (new.gender, 0, 0); UPDATE pet_stats_gender SET count = count + 1, total_weight = total_weight + new.weight WHERE gender = new.gender; INSERT OR IGNORE INTO pet_stats_breed SELECT new.breed, 0 WHERE new.breed IS NOT NULL; UPDATE pet_stats_breed SET count = count + 1 WHERE breed = new.breed; END;
+CREATE TRIGGER pets_stats_update AFTER UPDATE OF breed, gender, weight ON pets BEGIN UPDATE pet_stats_gender SET count = count - 1, total_weight = total_weight - old.weight WHERE gender = old.gender; UPDATE pet_stats_breed SET count = count - 1 WHERE breed = old.breed; DELETE FROM pet_stats_breed WHERE breed = old.breed AND count <= 0; INSERT OR IGNORE INTO pet_stats_gender VALUES (new.gender, 0, 0); UPDATE pet_stats_gender SET count = count + 1, total_weight = total_weight + new.weight WHERE gender = new.gender; INSERT OR IGNORE INTO pet_stats_breed SELECT new.breed, 0 WHERE new.breed IS NOT NULL; UPDATE pet_stats_breed SET count = count + 1 WHERE breed = new.breed; END;
+CREATE TRIGGER pets_stats_delete AFTER DELETE ON pets BEGIN UPDATE pet_stats_gender SET count = count - 1, total_weight = total_weight - old.weight WHERE gender = old.gender; UPDATE pet_stats_breed SET count = count - 1 WHERE breed = old.breed; DELETE FROM pet_stats_breed WHERE breed = old.breed AND count <= 0; END;
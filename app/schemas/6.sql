@@ -0,0 +1,18 @@
+-- Schema version 6 of shelter.db, as PetDbHelper creates it. Checked by PetSchemaTest.
+CREATE VIRTUAL TABLE pets_fts USING fts4(name, breed);
+CREATE TABLE pet_stats_gender(gender INTEGER PRIMARY KEY,count INTEGER NOT NULL,total_weight INTEGER NOT NULL);
+CREATE TABLE breeds(_id INTEGER PRIMARY KEY,name TEXT NOT NULL UNIQUE);
+CREATE INDEX breeds_name_index ON breeds(name COLLATE NOCASE);
+CREATE TABLE "pets"(_id INTEGER PRIMARY KEY AUTOINCREMENT,name TEXT,breed_id INTEGER REFERENCES breeds(_id),gender INTEGER NOT NULL,weight INTEGER NOT NULL DEFAULT 0);
+CREATE INDEX pets_name_index ON pets(name COLLATE NOCASE);
+CREATE INDEX pets_breed_index ON pets(breed_id);
+CREATE INDEX pets_gender_weight_index ON pets(gender, weight);
+CREATE VIEW pets_with_breed AS SELECT p._id AS _id, p.name AS name, b.name AS breed, p.gender AS gender, p.weight AS weight FROM pets p LEFT JOIN breeds b ON b._id = p.breed_id;
+CREATE TRIGGER pets_fts_insert AFTER INSERT ON pets BEGIN INSERT INTO pets_fts(docid, name, breed) VALUES (new._id, new.name, (SELECT name FROM breeds WHERE _id = new.breed_id)); END;
+CREATE TRIGGER pets_fts_update AFTER UPDATE OF name, breed_id ON pets BEGIN UPDATE pets_fts SET name = new.name, breed = (SELECT name FROM breeds WHERE _id = new.breed_id) WHERE docid = old._id; END;
+CREATE TRIGGER pets_fts_delete AFTER DELETE ON pets BEGIN DELETE FROM pets_fts WHERE docid = old._id; END;
+CREATE TABLE pet_stats_breed(breed_id INTEGER PRIMARY KEY,count INTEGER NOT NULL);
+CREATE INDEX pet_stats_breed_count_index ON pet_stats_breed(count DESC);
+CREATE TRIGGER pets_stats_insert AFTER INSERT ON pets BEGIN INSERT OR IGNORE INTO pet_stats_gender VALUES (new.gender, 0, 0); UPDATE pet_stats_gender SET count = count + 1, total_weight = total_weight + new.weight WHERE gender = new.gender; INSERT OR IGNORE INTO pet_stats_breed SELECT new.breed_id, 0 WHERE new.breed_id IS NOT NULL; UPDATE pet_stats_breed SET count = count + 1 WHERE breed_id = new.breed_id; END;
+CREATE TRIGGER pets_stats_update AFTER UPDATE OF breed_id, gender, weight ON pets BEGIN UPDATE pet_stats_gender SET count = count - 1, total_weight = total_weight - old.weight WHERE gender = old.gender; UPDATE pet_stats_breed SET count = count - 1 WHERE breed_id = old.breed_id; DELETE FROM pet_stats_breed WHERE breed_id = old.breed_id AND count <= 0; INSERT OR IGNORE INTO pet_stats_gender VALUES (new.gender, 0, 0); UPDATE pet_stats_gender SET count = count + 1, total_weight = total_weight + new.weight WHERE gender = new.gender; INSERT OR IGNORE INTO pet_stats_breed SELECT new.breed_id, 0 WHERE new.breed_id IS NOT NULL; UPDATE pet_stats_breed SET count = count + 1 WHERE breed_id = new.breed_id; END;
+CREATE TRIGGER pets_stats_delete AFTER DELETE ON pets BEGIN UPDATE pet_stats_gender SET count = count - 1, total_weight = total_weight - old.weight WHERE gender = old.gender; UPDATE pet_stats_breed SET count = count - 1 WHERE breed_id = old.breed_id; DELETE FROM pet_stats_breed WHERE breed_id = old.breed_id AND count <= 0; END;
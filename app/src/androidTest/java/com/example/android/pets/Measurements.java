@@ -0,0 +1,30 @@
+package com.example.android.pets;
+
+import android.os.Bundle;
+import android.support.test.InstrumentationRegistry;
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * Reports the results of the tests that measure the app on a device rather than check it. Each
+ * result is logged under {@link #TAG} and sent as an instrumentation status, so it shows up both
+ * in logcat and in the output of {@code am instrument -r}.
+ */
+public final class Measurements {
+
+    public static final String TAG = "PetMeasurements";
+
+    private Measurements() {}
+
+    /**
+     * Report one measured value under the given name, e.g. "bind_ns_per_row".
+     */
+    public static void report(String name, double value) {
+        String formatted = String.format(Locale.US, "%.1f", value);
+        Log.i(TAG, name + ": " + formatted);
+        Bundle status = new Bundle();
+        status.putString(name, formatted);
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, status);
+    }
+}
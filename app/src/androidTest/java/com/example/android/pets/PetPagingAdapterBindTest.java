@@ -0,0 +1,237 @@
+package com.example.android.pets;
+
+import android.app.Instrumentation;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.v7.widget.RecyclerView;
+import android.view.ViewGroup;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures {@link PetPagingAdapter} over a catalog of 10k pets: how long binding a row takes,
+ * and how many rows an edit of one pet rebinds.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PetPagingAdapterBindTest {
+
+    private static final int PETS = 10000;
+    private static final int WARMUP_PASSES = 2;
+    private static final int PASSES = 5;
+    private static final int EDITS = 20;
+    private static final long TIMEOUT_MILLIS = 60000;
+
+    private Instrumentation mInstrumentation;
+    private Context mContext;
+    private long mLastIdBefore;
+    private PetPagingAdapter mAdapter;
+    private RecyclerView mRecyclerView;
+
+    @Before
+    public void setUp() {
+        mInstrumentation = InstrumentationRegistry.getInstrumentation();
+        mContext = InstrumentationRegistry.getTargetContext();
+        mLastIdBefore = TestPets.insert(mContext.getContentResolver(), PETS);
+    }
+
+    @After
+    public void tearDown() {
+        if (mAdapter != null) {
+            mInstrumentation.runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    mAdapter.close();
+                }
+            });
+        }
+        TestPets.delete(mContext.getContentResolver(), mLastIdBefore);
+    }
+
+    /**
+     * Load every page, then bind every position into one view holder, as a list does when
+     * scrolled through. Reports the mean time per bound row.
+     */
+    @Test
+    public void bindTimePerRow() {
+        final int count = TestPets.count(mContext.getContentResolver());
+        // enough resident pages for every row, so that no bind hits an evicted page
+        createAdapter(count / PetPagingAdapter.DEFAULT_PAGE_SIZE + 1);
+        loadAll(count);
+
+        final long[] nanos = new long[1];
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                PetPagingAdapter.ViewHolder holder = mAdapter.onCreateViewHolder(mRecyclerView, 0);
+                for (int pass = 0; pass < WARMUP_PASSES + PASSES; pass++) {
+                    long start = System.nanoTime();
+                    for (int position = 0; position < count; position++) {
+                        mAdapter.onBindViewHolder(holder, position);
+                    }
+                    if (pass >= WARMUP_PASSES) {
+                        nanos[0] += System.nanoTime() - start;
+                    }
+                }
+            }
+        });
+        Measurements.report("bind_ns_per_row", (double) nanos[0] / PASSES / count);
+    }
+
+    /**
+     * Rename one pet at a time and refresh, with the default memory bound, and count the rows the
+     * refresh notifies the recycler view of. Half of the edited pets are in resident pages and
+     * half in evicted ones. Reports the mean per edit for both, which must be at most one row.
+     */
+    @Test
+    public void rowsReboundPerEdit() {
+        int count = TestPets.count(mContext.getContentResolver());
+        createAdapter(PetPagingAdapter.DEFAULT_MAX_RESIDENT_PAGES);
+        loadAll(count);
+
+        final int[] rebound = new int[1];
+        final RecyclerView.AdapterDataObserver observer = new RecyclerView.AdapterDataObserver() {
+            @Override
+            public void onChanged() {
+                rebound[0] += mAdapter.getItemCount();
+            }
+
+            @Override
+            public void onItemRangeChanged(int positionStart, int itemCount) {
+                rebound[0] += itemCount;
+            }
+
+            @Override
+            public void onItemRangeInserted(int positionStart, int itemCount) {
+                rebound[0] += itemCount;
+            }
+
+            @Override
+            public void onItemRangeRemoved(int positionStart, int itemCount) {
+                rebound[0] += itemCount;
+            }
+
+            @Override
+            public void onItemRangeMoved(int fromPosition, int toPosition, int itemCount) {
+                rebound[0] += itemCount;
+            }
+        };
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mAdapter.registerAdapterDataObserver(observer);
+            }
+        });
+
+        // the test pets come last, and the last pages loaded are the resident ones
+        int pageSize = PetPagingAdapter.DEFAULT_PAGE_SIZE;
+        int firstResident = ((count - 1) / pageSize
+                - (PetPagingAdapter.DEFAULT_MAX_RESIDENT_PAGES - 1)) * pageSize;
+        int firstTestPet = count - PETS;
+        Random random = new Random(42);
+        int[] total = new int[2];
+        for (int edit = 0; edit < EDITS; edit++) {
+            boolean resident = edit % 2 == 0;
+            int position = resident ? firstResident + random.nextInt(count - firstResident)
+                    : firstTestPet + random.nextInt(firstResident - firstTestPet);
+            rebound[0] = 0;
+            rename(position, "Edited pet " + edit);
+            refreshAndWait();
+            assertTrue("Edit rebound " + rebound[0] + " rows", rebound[0] <= 1);
+            total[resident ? 0 : 1] += rebound[0];
+        }
+        Measurements.report("rows_rebound_per_resident_edit", (double) total[0] / (EDITS / 2));
+        Measurements.report("rows_rebound_per_evicted_edit", (double) total[1] / (EDITS / 2));
+    }
+
+    private void createAdapter(final int maxResidentPages) {
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mAdapter = new PetPagingAdapter(mContext, null,
+                        PetPagingAdapter.DEFAULT_PAGE_SIZE, maxResidentPages);
+                mRecyclerView = new RecyclerView(mContext);
+                mAdapter.refresh();
+            }
+        });
+    }
+
+    /**
+     * Bind the last loaded row until the adapter has prefetched all the given pets.
+     */
+    private void loadAll(int count) {
+        long deadline = SystemClock.uptimeMillis() + TIMEOUT_MILLIS;
+        final int[] loaded = new int[1];
+        while (true) {
+            mInstrumentation.runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    loaded[0] = mAdapter.getItemCount();
+                    if (loaded[0] > 0) {
+                        bind(mRecyclerView, loaded[0] - 1);
+                    }
+                }
+            });
+            if (loaded[0] >= count) {
+                return;
+            }
+            assertTrue("Loaded " + loaded[0] + " of " + count + " pets",
+                    SystemClock.uptimeMillis() < deadline);
+            SystemClock.sleep(10);
+        }
+    }
+
+    private void bind(ViewGroup parent, int position) {
+        mAdapter.onBindViewHolder(mAdapter.onCreateViewHolder(parent, 0), position);
+    }
+
+    private void rename(final int position, String name) {
+        final long[] id = new long[1];
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                id[0] = mAdapter.getItemId(position);
+            }
+        });
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, name);
+        mContext.getContentResolver().update(
+                ContentUris.withAppendedId(PetEntry.CONTENT_URI, id[0]), values, null, null);
+    }
+
+    private void refreshAndWait() {
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mAdapter.refresh();
+            }
+        });
+        long deadline = SystemClock.uptimeMillis() + TIMEOUT_MILLIS;
+        final boolean[] refreshing = new boolean[1];
+        while (true) {
+            mInstrumentation.runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    refreshing[0] = mAdapter.isRefreshing();
+                }
+            });
+            if (!refreshing[0]) {
+                return;
+            }
+            assertTrue("Refresh did not finish", SystemClock.uptimeMillis() < deadline);
+            SystemClock.sleep(10);
+        }
+    }
+}
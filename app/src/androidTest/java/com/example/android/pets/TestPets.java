@@ -0,0 +1,78 @@
+package com.example.android.pets;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * Pets the measuring tests add through the provider, and remove again afterwards.
+ */
+public final class TestPets {
+
+    private TestPets() {}
+
+    /**
+     * Pets per bulk insert.
+     */
+    private static final int CHUNK_SIZE = 10000;
+
+    /**
+     * Insert the given number of pets in bulk inserts of up to 10k. Returns the highest id before
+     * the insert, to pass to {@link #delete}.
+     */
+    public static long insert(ContentResolver resolver, int count) {
+        long lastId = lastId(resolver);
+        for (int start = 0; start < count; start += CHUNK_SIZE) {
+            ContentValues[] values = new ContentValues[Math.min(CHUNK_SIZE, count - start)];
+            for (int i = 0; i < values.length; i++) {
+                int pet = start + i;
+                values[i] = new ContentValues();
+                values[i].put(PetEntry.COLUMN_PET_NAME, "Test pet " + pet);
+                // a few without a breed, to also bind the unknown breed
+                values[i].put(PetEntry.COLUMN_PET_BREED,
+                        pet % 10 == 0 ? null : "Test breed " + pet % 20);
+                values[i].put(PetEntry.COLUMN_PET_GENDER, pet % 3);
+                values[i].put(PetEntry.COLUMN_PET_WEIGHT, pet % 60);
+            }
+            resolver.bulkInsert(PetEntry.CONTENT_URI, values);
+        }
+        return lastId;
+    }
+
+    /**
+     * Delete the pets added after the given id.
+     */
+    public static void delete(ContentResolver resolver, long afterId) {
+        resolver.delete(PetEntry.CONTENT_URI, PetEntry._ID + ">?",
+                new String[]{String.valueOf(afterId)});
+    }
+
+    /**
+     * Returns the number of pets in the provider.
+     */
+    public static int count(ContentResolver resolver) {
+        Cursor cursor = resolver.query(PetEntry.CONTENT_URI, new String[]{PetEntry._ID},
+                null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the highest pet id, or 0 without pets.
+     */
+    public static long lastId(ContentResolver resolver) {
+        Cursor cursor = resolver.query(PetEntry.CONTENT_URI.buildUpon()
+                        .appendQueryParameter(PetEntry.QUERY_PARAMETER_LIMIT, "1").build(),
+                new String[]{PetEntry._ID}, null, null, PetEntry._ID + " DESC");
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.database.AbstractWindowedCursor;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.pets.Measurements;
+import com.example.android.pets.TestPets;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the memory 200k catalog rows take in a {@link PetCatalogSnapshot}, in the parallel
+ * String arrays the catalog pages held before, and in the CursorWindow of the cursor a
+ * CursorLoader would keep open.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PetCatalogHeapTest {
+
+    private static final int PETS = 200000;
+
+    /**
+     * Default size of a CursorWindow, the config_cursorWindowSize of the platform. Windows are
+     * shared memory, outside the Java heap, and their size cannot be read back.
+     */
+    private static final int CURSOR_WINDOW_BYTES = 2 * 1024 * 1024;
+
+    private static final String[] PROJECTION = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT
+    };
+
+    private ContentResolver mResolver;
+    private long mLastIdBefore;
+
+    @Before
+    public void setUp() {
+        mResolver = InstrumentationRegistry.getTargetContext().getContentResolver();
+        mLastIdBefore = TestPets.insert(mResolver, PETS);
+    }
+
+    @After
+    public void tearDown() {
+        TestPets.delete(mResolver, mLastIdBefore);
+    }
+
+    @Test
+    public void heapPerRow() {
+        PetDbHelper helper = new PetDbHelper(InstrumentationRegistry.getTargetContext());
+        Cursor cursor = queryTestPets(helper.getReadableDatabase());
+        try {
+            assertEquals(PETS, cursor.getCount());
+
+            long before = usedHeap();
+            PetCatalogSnapshot snapshot = PetCatalogSnapshot.fromCursor(cursor);
+            long snapshotBytes = usedHeap() - before;
+            assertEquals(PETS, snapshot.size());
+
+            cursor.moveToPosition(-1);
+            before = usedHeap();
+            Object[] arrays = copyToArrays(cursor);
+            long arrayBytes = usedHeap() - before;
+
+            Measurements.report("snapshot_heap_bytes_per_row", (double) snapshotBytes / PETS);
+            Measurements.report("string_arrays_heap_bytes_per_row", (double) arrayBytes / PETS);
+            // keep both reachable until measured
+            assertTrue(snapshot.size() > 0 && arrays.length > 0);
+
+            // a window holds as many rows as fit, and is filled again on a move past them
+            cursor.moveToFirst();
+            assertTrue(cursor instanceof AbstractWindowedCursor);
+            int windowRows = ((AbstractWindowedCursor) cursor).getWindow().getNumRows();
+            Measurements.report("cursor_window_rows", windowRows);
+            Measurements.report("cursor_window_bytes_per_row",
+                    (double) CURSOR_WINDOW_BYTES / windowRows);
+        } finally {
+            cursor.close();
+            helper.close();
+        }
+    }
+
+    /**
+     * Query the test pets from the database rather than the provider, which wraps its cursors.
+     */
+    private Cursor queryTestPets(SQLiteDatabase db) {
+        return db.query(PetEntry.TABLE_NAME, PROJECTION, PetEntry._ID + ">?",
+                new String[]{String.valueOf(mLastIdBefore)}, null, null, PetEntry._ID + " ASC");
+    }
+
+    /**
+     * Copy the rows into the ids, names and breeds arrays of the pages before the snapshot.
+     */
+    private static Object[] copyToArrays(Cursor cursor) {
+        int count = cursor.getCount();
+        long[] ids = new long[count];
+        String[] names = new String[count];
+        String[] breeds = new String[count];
+        for (int i = 0; cursor.moveToNext(); i++) {
+            ids[i] = cursor.getLong(0);
+            names[i] = cursor.getString(1);
+            breeds[i] = cursor.getString(2);
+        }
+        return new Object[]{ids, names, breeds};
+    }
+
+    /**
+     * Returns the Java heap in use after collecting the garbage.
+     */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            runtime.gc();
+            runtime.runFinalization();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
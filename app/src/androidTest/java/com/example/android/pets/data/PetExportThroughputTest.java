@@ -0,0 +1,78 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.pets.Measurements;
+import com.example.android.pets.TestPets;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Measures the throughput of pets/export over 1M pets, in both formats.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PetExportThroughputTest {
+
+    private static final int PETS = 1000000;
+
+    private ContentResolver mResolver;
+    private long mLastIdBefore;
+
+    @Before
+    public void setUp() {
+        mResolver = InstrumentationRegistry.getTargetContext().getContentResolver();
+        mLastIdBefore = TestPets.insert(mResolver, PETS);
+    }
+
+    @After
+    public void tearDown() {
+        TestPets.delete(mResolver, mLastIdBefore);
+    }
+
+    @Test
+    public void exportThroughput() throws IOException {
+        int count = TestPets.count(mResolver);
+        measureExport("csv", PetEntry.EXPORT_TYPE_CSV, count + 1);
+        measureExport("ndjson", PetEntry.EXPORT_TYPE_NDJSON, count);
+    }
+
+    /**
+     * Read the whole export as an app would, and report rows and megabytes per second.
+     */
+    private void measureExport(String name, String mimeType, int expectedLines)
+            throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long bytes = 0;
+        int lines = 0;
+        long start = System.nanoTime();
+        InputStream in = mResolver.openInputStream(PetEntry.buildExportUri(mimeType));
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes += read;
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] == '\n') {
+                        lines++;
+                    }
+                }
+            }
+        } finally {
+            in.close();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        assertEquals(expectedLines, lines);
+        Measurements.report("export_" + name + "_rows_per_s", lines / seconds);
+        Measurements.report("export_" + name + "_mb_per_s", bytes / 1e6 / seconds);
+    }
+}
@@ -0,0 +1,98 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.pets.Measurements;
+import com.example.android.pets.TestPets;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Measures what {@link PetMetrics} adds to every provider call, against the cheapest call it is
+ * added to: a {@link PetEntry} lookup by id served from the row cache.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PetMetricsOverheadTest {
+
+    private static final int PETS = 1000;
+    private static final int WARMUP_OPS = 10000;
+    private static final int OPS = 100000;
+
+    private ContentResolver mResolver;
+    private long mLastIdBefore;
+
+    @Before
+    public void setUp() {
+        mResolver = InstrumentationRegistry.getTargetContext().getContentResolver();
+        mLastIdBefore = TestPets.insert(mResolver, PETS);
+    }
+
+    @After
+    public void tearDown() {
+        TestPets.delete(mResolver, mLastIdBefore);
+    }
+
+    @Test
+    public void metricsOverhead() {
+        PetMetrics metrics = new PetMetrics(new String[]{"PETS", "NO_MATCH"});
+        recordWrites(metrics, WARMUP_OPS);
+        long start = System.nanoTime();
+        recordWrites(metrics, OPS);
+        double writeNanos = (double) (System.nanoTime() - start) / OPS;
+
+        recordQueries(metrics, WARMUP_OPS);
+        start = System.nanoTime();
+        recordQueries(metrics, OPS);
+        double queryNanos = (double) (System.nanoTime() - start) / OPS;
+
+        long id = mLastIdBefore + 1;
+        queryById(id, WARMUP_OPS / 10);
+        start = System.nanoTime();
+        queryById(id, OPS / 10);
+        double lookupNanos = (double) (System.nanoTime() - start) / (OPS / 10);
+
+        Measurements.report("metrics_write_ns", writeNanos);
+        Measurements.report("metrics_query_ns", queryNanos);
+        Measurements.report("cached_lookup_ns", lookupNanos);
+        Measurements.report("metrics_query_overhead_percent", 100 * queryNanos / lookupNanos);
+    }
+
+    /**
+     * Record inserts the way {@link PetProvider#insert} does.
+     */
+    private static void recordWrites(PetMetrics metrics, int ops) {
+        for (int i = 0; i < ops; i++) {
+            long start = metrics.begin(PetMetrics.INSERT);
+            metrics.end(PetMetrics.INSERT, 0, start, 1, true);
+        }
+    }
+
+    /**
+     * Record queries the way {@link PetProvider#query} does, including the row count on close.
+     * Creating the empty cursor is counted too.
+     */
+    private static void recordQueries(PetMetrics metrics, int ops) {
+        String[] columns = {PetEntry._ID};
+        for (int i = 0; i < ops; i++) {
+            long start = metrics.begin(PetMetrics.QUERY);
+            metrics.endQuery(0, start, new MatrixCursor(columns)).close();
+        }
+    }
+
+    private void queryById(long id, int ops) {
+        for (int i = 0; i < ops; i++) {
+            Cursor cursor = mResolver.query(ContentUris.withAppendedId(PetEntry.CONTENT_URI, id),
+                    null, null, null, null);
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.RenamingDelegatingContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks PetDbHelper against the schemas exported to app/schemas, which the benchmark module
+ * runs its statements on.
+ *
+ * When a migration changes the schema, {@link #exportIsCurrent} fails and logs the new export;
+ * save it as app/schemas/&lt;DB_VERSION&gt;.sql next to the older ones, which stay as they are.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PetSchemaTest {
+
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        mContext = new RenamingDelegatingContext(InstrumentationRegistry.getTargetContext(),
+                "test.");
+        mContext.deleteDatabase(PetDbHelper.DB_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        mContext.deleteDatabase(PetDbHelper.DB_NAME);
+    }
+
+    /**
+     * The newest export is the one of DB_VERSION, and holds what a new database is created with.
+     */
+    @Test
+    public void exportIsCurrent() throws IOException {
+        Context testContext = InstrumentationRegistry.getContext();
+        List<String> actual = createSchema();
+        String message = "app/schemas/" + PetSchemas.fileName(PetDbHelper.DB_VERSION)
+                + " should be:\n" + PetSchemas.format(PetDbHelper.DB_VERSION, actual);
+
+        List<String> exported = PetSchemas.read(testContext, PetDbHelper.DB_VERSION);
+        assertNotNull(message, exported);
+        assertEquals(message, exported, actual);
+        assertNull("Export of a version newer than DB_VERSION",
+                PetSchemas.read(testContext, PetDbHelper.DB_VERSION + 1));
+    }
+
+    /**
+     * A database left at any exported older version is migrated to the schema of a new one.
+     */
+    @Test
+    public void migrationsMatchNewSchema() throws IOException {
+        Context testContext = InstrumentationRegistry.getContext();
+        List<String> expected = sorted(createSchema());
+        for (int version = 1; version < PetDbHelper.DB_VERSION; version++) {
+            List<String> exported = PetSchemas.read(testContext, version);
+            assertNotNull("Missing app/schemas/" + PetSchemas.fileName(version), exported);
+            PetSchemas.create(mContext, PetDbHelper.DB_NAME, version, exported);
+
+            PetDbHelper helper = new PetDbHelper(mContext);
+            try {
+                SQLiteDatabase db = helper.getWritableDatabase();
+                assertEquals(PetDbHelper.DB_VERSION, db.getVersion());
+                assertEquals("Migrated from version " + version, expected,
+                        sorted(PetSchemas.dump(db)));
+            } finally {
+                helper.close();
+            }
+        }
+    }
+
+    private List<String> createSchema() {
+        mContext.deleteDatabase(PetDbHelper.DB_NAME);
+        PetDbHelper helper = new PetDbHelper(mContext);
+        try {
+            return PetSchemas.dump(helper.getWritableDatabase());
+        } finally {
+            helper.close();
+            mContext.deleteDatabase(PetDbHelper.DB_NAME);
+        }
+    }
+
+    private static List<String> sorted(List<String> statements) {
+        List<String> copy = new ArrayList<>(statements);
+        Collections.sort(copy);
+        return copy;
+    }
+}
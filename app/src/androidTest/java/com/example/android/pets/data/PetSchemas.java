@@ -0,0 +1,132 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads and writes the exported schemas in app/schemas, which the build packages as assets of
+ * the test APK. Each file holds the SQL of one schema version as PetDbHelper creates it, one
+ * statement per line, in the order of sqlite_master. Lines starting with "--" are comments.
+ *
+ * SQLite's own tables, android_metadata and the shadow tables of full-text tables are not part
+ * of the export, as they are created on the side.
+ */
+final class PetSchemas {
+
+    private PetSchemas() {}
+
+    /**
+     * Returns the file name of the export of the given schema version.
+     */
+    static String fileName(int version) {
+        return version + ".sql";
+    }
+
+    /**
+     * Returns the statements of the exported schema version, or null if there is no export of it.
+     *
+     * @param context Context of the test APK, which holds the exports as assets
+     */
+    static List<String> read(Context context, int version) throws IOException {
+        InputStream in;
+        try {
+            in = context.getAssets().open(fileName(version));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        List<String> statements = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(in, Charset.forName("UTF-8")));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("--")) {
+                    statements.add(line.substring(0, line.length() - 1));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return statements;
+    }
+
+    /**
+     * Returns the statements creating the schema of the given database, in the export's form.
+     */
+    static List<String> dump(SQLiteDatabase db) {
+        List<String> virtualTables = new ArrayList<>();
+        List<String> statements = new ArrayList<>();
+        Cursor cursor = db.rawQuery("SELECT type, name, sql FROM sqlite_master"
+                + " WHERE sql IS NOT NULL ORDER BY rowid", null);
+        try {
+            while (cursor.moveToNext()) {
+                String type = cursor.getString(0);
+                String name = cursor.getString(1);
+                String sql = cursor.getString(2);
+                if (name.startsWith("sqlite_") || name.equals("android_metadata")
+                        || isShadowTable(type, name, virtualTables)) {
+                    continue;
+                }
+                if (sql.startsWith("CREATE VIRTUAL TABLE")) {
+                    virtualTables.add(name);
+                }
+                statements.add(sql);
+            }
+        } finally {
+            cursor.close();
+        }
+        return statements;
+    }
+
+    /**
+     * Returns the given statements as the content of an export file of the given version.
+     */
+    static String format(int version, List<String> statements) {
+        StringBuilder export = new StringBuilder("-- Schema version ").append(version)
+                .append(" of shelter.db, as PetDbHelper creates it. Checked by PetSchemaTest.\n");
+        for (String statement : statements) {
+            export.append(statement).append(";\n");
+        }
+        return export.toString();
+    }
+
+    /**
+     * Create a database at the given version from its export, the way an older release of the
+     * app left it, and close it.
+     */
+    static void create(Context context, String name, int version, List<String> statements) {
+        context.deleteDatabase(name);
+        SQLiteDatabase db = context.openOrCreateDatabase(name, Context.MODE_PRIVATE, null);
+        try {
+            for (String statement : statements) {
+                db.execSQL(statement);
+            }
+            db.setVersion(version);
+        } finally {
+            db.close();
+        }
+    }
+
+    private static boolean isShadowTable(String type, String name, List<String> virtualTables) {
+        if (!type.equals("table")) {
+            return false;
+        }
+        for (String virtualTable : virtualTables) {
+            if (name.startsWith(virtualTable + "_")) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,239 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.RenamingDelegatingContext;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the trigger-maintained summary tables always hold what GROUP BY computes from the
+ * pets, under random inserts, updates, deletes, soft deletes, purges and truncates, and after a
+ * migration. The full-text table must hold exactly the pets that are not deleted.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PetStatsTest {
+
+    private static final int OPERATIONS = 2000;
+    private static final int CHECK_INTERVAL = 50;
+
+    /**
+     * Few breeds, so that counts go up and down to zero, and null for pets without a breed.
+     */
+    private static final String[] BREEDS = {null, "Tabby", "Siamese", "Labrador", "Pug", "Husky"};
+
+    private static final String SQL_GENDER_STATS = "SELECT " + PetEntry.COLUMN_PET_GENDER + ", "
+            + PetDbHelper.COLUMN_STATS_COUNT + ", " + PetDbHelper.COLUMN_STATS_TOTAL_WEIGHT
+            + " FROM " + PetDbHelper.STATS_GENDER_TABLE_NAME
+            + " WHERE " + PetDbHelper.COLUMN_STATS_COUNT + " > 0"
+            + " ORDER BY " + PetEntry.COLUMN_PET_GENDER;
+
+    private static final String SQL_GENDER_GROUP_BY = "SELECT " + PetEntry.COLUMN_PET_GENDER
+            + ", COUNT(*), SUM(" + PetEntry.COLUMN_PET_WEIGHT + ")"
+            + " FROM " + PetDbHelper.PETS_VIEW_NAME
+            + " GROUP BY " + PetEntry.COLUMN_PET_GENDER
+            + " ORDER BY " + PetEntry.COLUMN_PET_GENDER;
+
+    private static final String SQL_BREED_STATS = "SELECT b." + PetDbHelper.COLUMN_BREED_NAME
+            + ", s." + PetDbHelper.COLUMN_STATS_COUNT
+            + " FROM " + PetDbHelper.STATS_BREED_TABLE_NAME + " s"
+            + " JOIN " + PetDbHelper.BREEDS_TABLE_NAME + " b"
+            + " ON b." + PetEntry._ID + " = s." + PetDbHelper.COLUMN_PET_BREED_ID
+            + " ORDER BY b." + PetDbHelper.COLUMN_BREED_NAME;
+
+    private static final String SQL_BREED_GROUP_BY = "SELECT " + PetEntry.COLUMN_PET_BREED
+            + ", COUNT(*) FROM " + PetDbHelper.PETS_VIEW_NAME
+            + " WHERE " + PetEntry.COLUMN_PET_BREED + " IS NOT NULL"
+            + " GROUP BY " + PetEntry.COLUMN_PET_BREED
+            + " ORDER BY " + PetEntry.COLUMN_PET_BREED;
+
+    private static final String SQL_FTS_IDS = "SELECT docid FROM " + PetDbHelper.FTS_TABLE_NAME
+            + " ORDER BY docid";
+
+    private static final String SQL_LIVE_IDS = "SELECT " + PetEntry._ID
+            + " FROM " + PetDbHelper.PETS_VIEW_NAME + " ORDER BY " + PetEntry._ID;
+
+    /**
+     * Marked pets purged at a time, fewer than usually are marked so that some stay marked.
+     */
+    private static final int PURGE_LIMIT = 3;
+
+    private final Random mRandom = new Random(42);
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        mContext = new RenamingDelegatingContext(InstrumentationRegistry.getTargetContext(),
+                "test.");
+        mContext.deleteDatabase(PetDbHelper.DB_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        mContext.deleteDatabase(PetDbHelper.DB_NAME);
+    }
+
+    @Test
+    public void statsMatchGroupByUnderRandomWrites() {
+        PetDbHelper helper = new PetDbHelper(mContext);
+        try {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            PetWriter writer = new PetWriter(db);
+            for (int i = 0; i < OPERATIONS; i++) {
+                randomOperation(db, writer);
+                if (i % CHECK_INTERVAL == 0) {
+                    assertStatsMatch(db, "after operation " + i);
+                }
+            }
+            assertStatsMatch(db, "at the end");
+        } finally {
+            helper.close();
+        }
+    }
+
+    /**
+     * Migrating a database with pets fills the summary tables from them. Version 5 is the last
+     * one storing the breed text on the pets.
+     */
+    @Test
+    public void statsMatchGroupByAfterMigration() throws IOException {
+        int version = 5;
+        PetSchemas.create(mContext, PetDbHelper.DB_NAME, version,
+                PetSchemas.read(InstrumentationRegistry.getContext(), version));
+        SQLiteDatabase old = mContext.openOrCreateDatabase(PetDbHelper.DB_NAME,
+                Context.MODE_PRIVATE, null);
+        try {
+            for (int i = 0; i < 500; i++) {
+                old.insert(PetEntry.TABLE_NAME, null, randomPet());
+            }
+        } finally {
+            old.close();
+        }
+
+        PetDbHelper helper = new PetDbHelper(mContext);
+        try {
+            assertStatsMatch(helper.getWritableDatabase(), "after migrating from " + version);
+        } finally {
+            helper.close();
+        }
+    }
+
+    /**
+     * Insert, update, delete or mark deleted a random pet, purge a few marked pets, or rarely
+     * delete every pet. Pets are written through the writer, which turns breeds into dictionary
+     * ids as the provider does, and marked and purged as the provider's soft delete does.
+     */
+    private void randomOperation(SQLiteDatabase db, PetWriter writer) {
+        int operation = mRandom.nextInt(100);
+        long id = randomId(db);
+        if (operation < 45 || id == 0) {
+            writer.insert("Pet " + mRandom.nextInt(1000), randomBreed(), mRandom.nextInt(3),
+                    mRandom.nextInt(60));
+        } else if (operation < 70) {
+            // a random subset of the columns the triggers watch
+            int columns = 0;
+            if (mRandom.nextBoolean()) {
+                columns |= PetWriter.COLUMN_BREED;
+            }
+            if (mRandom.nextBoolean()) {
+                columns |= PetWriter.COLUMN_GENDER;
+            }
+            if (mRandom.nextBoolean() || columns == 0) {
+                columns |= PetWriter.COLUMN_WEIGHT;
+            }
+            writer.update(id, columns, null, randomBreed(), mRandom.nextInt(3),
+                    mRandom.nextInt(60));
+        } else if (operation < 82) {
+            db.delete(PetEntry.TABLE_NAME, PetEntry._ID + "=?", new String[]{String.valueOf(id)});
+        } else if (operation < 94) {
+            ContentValues deleted = new ContentValues();
+            deleted.put(PetDbHelper.COLUMN_PET_DELETED, 1);
+            db.update(PetEntry.TABLE_NAME, deleted, PetEntry._ID + "=?",
+                    new String[]{String.valueOf(id)});
+        } else if (operation < 99) {
+            PetDbHelper.purgeDeletedPets(db, PURGE_LIMIT);
+        } else {
+            db.beginTransaction();
+            try {
+                PetDbHelper.truncatePets(db, mRandom.nextBoolean());
+                writer.clearBreedIds();
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    private String randomBreed() {
+        return BREEDS[mRandom.nextInt(BREEDS.length)];
+    }
+
+    /**
+     * Returns a random pet for the pets table of a version before 6, with its breed text.
+     */
+    private ContentValues randomPet() {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, "Pet " + mRandom.nextInt(1000));
+        values.put(PetEntry.COLUMN_PET_BREED, randomBreed());
+        values.put(PetEntry.COLUMN_PET_GENDER, mRandom.nextInt(3));
+        values.put(PetEntry.COLUMN_PET_WEIGHT, mRandom.nextInt(60));
+        return values;
+    }
+
+    /**
+     * Returns the id of a random pet, or 0 if there is none.
+     */
+    private long randomId(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("SELECT " + PetEntry._ID + " FROM " + PetDbHelper.PETS_VIEW_NAME
+                + " ORDER BY RANDOM() LIMIT 1", null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void assertStatsMatch(SQLiteDatabase db, String when) {
+        assertEquals("Gender stats " + when, rows(db, SQL_GENDER_GROUP_BY),
+                rows(db, SQL_GENDER_STATS));
+        assertEquals("Breed stats " + when, rows(db, SQL_BREED_GROUP_BY),
+                rows(db, SQL_BREED_STATS));
+        assertEquals("Full-text pets " + when, rows(db, SQL_LIVE_IDS), rows(db, SQL_FTS_IDS));
+    }
+
+    /**
+     * Returns the rows of the query, every column as a string.
+     */
+    private static List<String> rows(SQLiteDatabase db, String query) {
+        List<String> rows = new ArrayList<>();
+        Cursor cursor = db.rawQuery(query, null);
+        try {
+            while (cursor.moveToNext()) {
+                StringBuilder row = new StringBuilder();
+                for (int i = 0; i < cursor.getColumnCount(); i++) {
+                    row.append(i == 0 ? "" : "|").append(cursor.getString(i));
+                }
+                rows.add(row.toString());
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+}
@@ -16,47 +16,74 @@
 package com.example.android.pets;
 
 import android.app.AlertDialog;
-import android.app.LoaderManager;
 import android.content.ContentUris;
 import android.content.ContentValues;
-import android.content.CursorLoader;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.UriMatcher;
-import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
+import android.database.ContentObserver;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.design.widget.FloatingActionButton;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.widget.AdapterView;
-import android.widget.ListView;
+import android.view.ViewTreeObserver;
+import android.widget.ArrayAdapter;
+import android.widget.EditText;
+import android.widget.Spinner;
 import android.widget.Toast;
 
 import com.example.android.pets.data.PetContract;
-import com.example.android.pets.data.PetDbHelper;
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetFilter;
+import com.example.android.pets.data.PetRepository;
 
+import java.util.Arrays;
 import java.util.Random;
 
 
 /**
  * Displays list of pets that were entered and stored in the app.
  */
-public class CatalogActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<Cursor> {
+public class CatalogActivity extends AppCompatActivity {
 
     private static final int PETS = 100;
     private static final int PET_ID = 101;
     private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
     public static final String LOG_TAG = CatalogActivity.class.getSimpleName();
 
-    public static final int URL_LOADER=0;//identifies a specific loader used in this component
-
-    public PetCursorAdapter mPetCursorAdapter;
-    public ListView mPetListView;
+    /**
+     * Key of the current filter in the saved instance state, stored as a filtered content URI.
+     */
+    private static final String STATE_FILTER = "filter";
+
+    /**
+     * Sort keys in the order of the sort options of the filter dialog.
+     */
+    private static final String[] SORT_KEYS = {
+            PetEntry.SORT_ID,
+            PetEntry.SORT_NAME,
+            PetEntry.SORT_WEIGHT
+    };
+
+    public PetPagingAdapter mPetPagingAdapter;
+    public RecyclerView mPetRecyclerView;
+    private View mEmptyView;
+
+    /**
+     * Reloads the catalog pages whenever the pets data changes.
+     */
+    private final ContentObserver mPetsObserver = new ContentObserver(new Handler()) {
+        @Override
+        public void onChange(boolean selfChange) {
+            mPetPagingAdapter.refresh();
+        }
+    };
 
     static {
         sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS, PETS);
@@ -79,21 +106,17 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
 
             }
         });
-        //Find the listview
-        mPetListView = (ListView) findViewById(R.id.list_view_pet);
+        //Find the recycler view
+        mPetRecyclerView = (RecyclerView) findViewById(R.id.recycler_view_pet);
+        mPetRecyclerView.setLayoutManager(new LinearLayoutManager(this));
 
-        //find empty view for our listview
-        View emptyView=(View)findViewById(R.id.empty_view);
-        mPetListView.setEmptyView(emptyView);
+        //find empty view for our list
+        mEmptyView = findViewById(R.id.empty_view);
 
-        //Set up an adapter to create a list item for each row of pet data in the Cursor.
-        //There is no pet data yet (until the loader finishes). So we set its data to null for now.
-        mPetCursorAdapter= new PetCursorAdapter(this,null);
-        mPetListView.setAdapter(mPetCursorAdapter);
-
-        mPetListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+        //Set up an adapter that loads the pets page by page in the background as the list scrolls.
+        mPetPagingAdapter= new PetPagingAdapter(this, new PetPagingAdapter.OnPetClickListener() {
             @Override
-            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+            public void onPetClick(long id) {
                 Intent intent=new Intent(CatalogActivity.this, EditorActivity.class);
                 //create Uri to send to EditorActivity
                 Uri singleUri = ContentUris.withAppendedId(PetEntry.CONTENT_URI, id);
@@ -102,10 +125,32 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
                 startActivity(intent);
             }
         });
+        mPetPagingAdapter.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
+            @Override
+            public void onChanged() {
+                updateEmptyView();
+            }
+
+            @Override
+            public void onItemRangeInserted(int positionStart, int itemCount) {
+                updateEmptyView();
+                reportFirstRowDrawn();
+            }
 
-        //Kick off the loader
+            @Override
+            public void onItemRangeRemoved(int positionStart, int itemCount) {
+                updateEmptyView();
+            }
+        });
+        mPetRecyclerView.setAdapter(mPetPagingAdapter);
+        if (savedInstanceState != null && savedInstanceState.getString(STATE_FILTER) != null) {
+            mPetPagingAdapter.setFilter(
+                    PetFilter.fromUri(Uri.parse(savedInstanceState.getString(STATE_FILTER))));
+        }
 
-        getLoaderManager().initLoader(URL_LOADER,null,this);//initialize loader
+        //Load the first page and keep the list in sync with the provider
+        getContentResolver().registerContentObserver(PetEntry.CONTENT_URI, true, mPetsObserver);
+        mPetPagingAdapter.refresh();
 
 
 
@@ -117,9 +162,44 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
 
 
 
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putString(STATE_FILTER, mPetPagingAdapter.getFilter()
+                .appendTo(PetEntry.CONTENT_URI.buildUpon()).build().toString());
+    }
+
+    @Override
+    protected void onDestroy() {
+        getContentResolver().unregisterContentObserver(mPetsObserver);
+        mPetPagingAdapter.close();
+        super.onDestroy();
+    }
+
+    /**
+     * Tell {@link StartupTrace} once the first pets are on screen, i.e. right before the frame
+     * with them is drawn.
+     */
+    private void reportFirstRowDrawn() {
+        final ViewTreeObserver observer = mPetRecyclerView.getViewTreeObserver();
+        observer.addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                mPetRecyclerView.getViewTreeObserver().removeOnPreDrawListener(this);
+                StartupTrace.onFirstCatalogRow(CatalogActivity.this);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * RecyclerView has no empty view support, so show ours whenever the list is empty.
+     */
+    private void updateEmptyView() {
+        mEmptyView.setVisibility(mPetPagingAdapter.getItemCount() == 0 ? View.VISIBLE : View.GONE);
+    }
+
     private void insertPet() {
-        PetDbHelper petDbHelper = new PetDbHelper(this);
-        SQLiteDatabase db = petDbHelper.getWritableDatabase();
         ContentValues values = new ContentValues();
 
         values.put(PetEntry.COLUMN_PET_NAME, "Cute " + getSaltString());
@@ -127,16 +207,16 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
         values.put(PetEntry.COLUMN_PET_WEIGHT, 11);
         values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_MALE);
 
-        Uri uri = getContentResolver().insert(PetEntry.CONTENT_URI, values);
-
-        switch (sUriMatcher.match(uri)) {
-            case PET_ID:
-                Toast.makeText(getApplicationContext(), R.string.successful_insertion_msg, Toast.LENGTH_LONG).show();
-                return;
-            default:
-                Toast.makeText(getApplicationContext(), R.string.insert_failed_message, Toast.LENGTH_LONG).show();
-
-        }
+        PetRepository.getInstance(this).insert(values, new PetRepository.Callback<Uri>() {
+            @Override
+            public void onResult(Uri uri) {
+                if (uri != null && sUriMatcher.match(uri) == PET_ID) {
+                    Toast.makeText(getApplicationContext(), R.string.successful_insertion_msg, Toast.LENGTH_LONG).show();
+                } else {
+                    Toast.makeText(getApplicationContext(), R.string.insert_failed_message, Toast.LENGTH_LONG).show();
+                }
+            }
+        });
 
 
     }
@@ -168,6 +248,10 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
             case R.id.action_insert_dummy_data:
                 insertPet();
                 return true;
+            // Respond to a click on the "Filter" menu option
+            case R.id.action_filter:
+                showFilterDialog();
+                return true;
             // Respond to a click on the "Delete all entries" menu option
             case R.id.action_delete_all_entries:
                 //Add confirmation
@@ -191,54 +275,88 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
         return super.onOptionsItemSelected(item);
     }
 
-    private void deleteAllPets() {
-        int rowsDeleted=getContentResolver().delete(PetEntry.CONTENT_URI,null,null);
-        if(rowsDeleted>0){
-            Toast.makeText(getApplicationContext(),R.string.all_pets_deleted_successfully,Toast.LENGTH_SHORT).show();
-        }
-        else { //show failure
-            Toast.makeText(getApplicationContext(),R.string.pets_delete_failed,Toast.LENGTH_SHORT).show();
-        }
+    /**
+     * Show a dialog for choosing which pets are listed and in which order. The provider does the
+     * filtering and sorting, so only matching pets are ever loaded.
+     */
+    private void showFilterDialog() {
+        View dialogView = getLayoutInflater().inflate(R.layout.dialog_filter, null);
+        final Spinner genderSpinner = (Spinner) dialogView.findViewById(R.id.filter_gender);
+        final EditText minWeightEditText = (EditText) dialogView.findViewById(R.id.filter_min_weight);
+        final EditText maxWeightEditText = (EditText) dialogView.findViewById(R.id.filter_max_weight);
+        final EditText breedEditText = (EditText) dialogView.findViewById(R.id.filter_breed);
+        final Spinner sortSpinner = (Spinner) dialogView.findViewById(R.id.filter_sort);
+
+        ArrayAdapter genderAdapter = ArrayAdapter.createFromResource(this,
+                R.array.array_filter_gender_options, android.R.layout.simple_spinner_item);
+        genderAdapter.setDropDownViewResource(android.R.layout.simple_dropdown_item_1line);
+        genderSpinner.setAdapter(genderAdapter);
+        ArrayAdapter sortAdapter = ArrayAdapter.createFromResource(this,
+                R.array.array_filter_sort_options, android.R.layout.simple_spinner_item);
+        sortAdapter.setDropDownViewResource(android.R.layout.simple_dropdown_item_1line);
+        sortSpinner.setAdapter(sortAdapter);
+
+        // Show the current filter
+        PetFilter filter = mPetPagingAdapter.getFilter();
+        genderSpinner.setSelection(filter.gender == null ? 0 : filter.gender + 1);
+        minWeightEditText.setText(filter.minWeight == null ? "" : String.valueOf(filter.minWeight));
+        maxWeightEditText.setText(filter.maxWeight == null ? "" : String.valueOf(filter.maxWeight));
+        breedEditText.setText(filter.breedPrefix);
+        sortSpinner.setSelection(Arrays.asList(SORT_KEYS).indexOf(filter.sort));
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.filter_title);
+        builder.setView(dialogView);
+        builder.setPositiveButton(R.string.apply, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                // the first gender option is "any", the others follow the gender constants
+                int genderPosition = genderSpinner.getSelectedItemPosition();
+                mPetPagingAdapter.setFilter(new PetFilter(
+                        genderPosition == 0 ? null : genderPosition - 1,
+                        parseWeight(minWeightEditText),
+                        parseWeight(maxWeightEditText),
+                        breedEditText.getText().toString().trim(),
+                        SORT_KEYS[sortSpinner.getSelectedItemPosition()]));
+            }
+        });
+        builder.setNeutralButton(R.string.clear, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                mPetPagingAdapter.setFilter(PetFilter.NONE);
+            }
+        });
+        builder.setNegativeButton(R.string.cancel, null);
+        builder.create().show();
     }
 
-
-    @Override
-    public android.content.Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        //Create a projection for CursorLoader
-        String [] projection = {
-                PetEntry._ID,
-                PetEntry.COLUMN_PET_NAME,
-                PetEntry.COLUMN_PET_BREED,
-                };
-
-        //Take action based on the ID of the Loader that is being created.
-        switch(id){
-            case URL_LOADER:
-                //return a new CursorLoader
-                return new CursorLoader(
-                        getApplicationContext(),
-                        PetEntry.CONTENT_URI,
-                        projection,
-                        null,
-                        null,
-                        null
-                );
-            default:
-                //invalid id was passed
-                return null;
+    /**
+     * Returns the weight entered in the given field, or null if it is empty or not a valid
+     * weight.
+     */
+    private static Integer parseWeight(EditText editText) {
+        try {
+            int weight = Integer.parseInt(editText.getText().toString().trim());
+            return PetEntry.isValidWeight(weight) ? weight : null;
+        } catch (NumberFormatException e) {
+            return null;
         }
     }
 
-    @Override
-    public void onLoadFinished(android.content.Loader<Cursor> loader, Cursor data) {
-
-        mPetCursorAdapter.swapCursor(data);
-
-    }
-
-    @Override
-    public void onLoaderReset(android.content.Loader<Cursor> loader) {
-        mPetCursorAdapter.swapCursor(null);
+    private void deleteAllPets() {
+        // A fresh start: ids count from 1 again and the space is given back to the system
+        Uri deleteAllUri = PetEntry.buildDeleteAllUri(true, true);
+        PetRepository.getInstance(this).delete(deleteAllUri, new PetRepository.Callback<Integer>() {
+            @Override
+            public void onResult(Integer rowsDeleted) {
+                if(rowsDeleted>0){
+                    Toast.makeText(getApplicationContext(),R.string.all_pets_deleted_successfully,Toast.LENGTH_SHORT).show();
+                }
+                else { //show failure
+                    Toast.makeText(getApplicationContext(),R.string.pets_delete_failed,Toast.LENGTH_SHORT).show();
+                }
+            }
+        });
     }
 
 
@@ -41,6 +41,7 @@ import android.widget.Spinner;
 import android.widget.Toast;
 
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetRepository;
 
 
 /**
@@ -259,22 +260,35 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         values.put(PetEntry.COLUMN_PET_GENDER, mGenderSpinner.getSelectedItemPosition());
 
         //Determine save mode i.e. check whether it is insert mode or edit mode
+        //The write runs in the background, the result comes back on the main thread
         if(mCurrentPetUri==null) // insert mode
         {
-            Toast.makeText(getApplicationContext(),R.string.successful_insertion_msg,Toast.LENGTH_LONG).show();
-            getContentResolver().insert(PetEntry.CONTENT_URI, values);
+            PetRepository.getInstance(this).insert(values, new PetRepository.Callback<Uri>() {
+                @Override
+                public void onResult(Uri newUri) {
+                    if (newUri != null) {
+                        Toast.makeText(getApplicationContext(), R.string.successful_insertion_msg, Toast.LENGTH_LONG).show();
+                    } else {
+                        Toast.makeText(getApplicationContext(), R.string.insert_failed_message, Toast.LENGTH_LONG).show();
+                    }
+                }
+            });
 
         }
         else { //uri is not null so an item has been passed for edit, thus edit mode
-            int rowsAffected=getContentResolver().update(mCurrentPetUri, values, null, null);
-            if(rowsAffected != 0){
-                Toast.makeText(getApplicationContext(),R.string.edit_pet_success_msg, Toast.LENGTH_LONG).show();
+            PetRepository.getInstance(this).update(mCurrentPetUri, values, new PetRepository.Callback<Integer>() {
+                @Override
+                public void onResult(Integer rowsAffected) {
+                    if(rowsAffected != 0){
+                        Toast.makeText(getApplicationContext(),R.string.edit_pet_success_msg, Toast.LENGTH_LONG).show();
 
-            }
-            else {
-                Toast.makeText(getApplicationContext(), R.string.edit_pet_failure_msg, Toast.LENGTH_LONG).show();
+                    }
+                    else {
+                        Toast.makeText(getApplicationContext(), R.string.edit_pet_failure_msg, Toast.LENGTH_LONG).show();
 
-            }
+                    }
+                }
+            });
         }
 
     }
@@ -435,10 +449,14 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
      * Perform the deletion of the pet in the database.
      */
     private void deletePet() {
-        //Delete the pet with the Uri of mCurrentPetUri
-        int rowsDeleted=getContentResolver().delete(mCurrentPetUri, null, null);
-        if(rowsDeleted>0) Toast.makeText(getApplicationContext(),R.string.editor_delete_pet_successful,Toast.LENGTH_SHORT).show();
-        else Toast.makeText(getApplicationContext(),R.string.editor_delete_pet_failed,Toast.LENGTH_SHORT).show();
+        //Delete the pet with the Uri of mCurrentPetUri in the background
+        PetRepository.getInstance(this).delete(mCurrentPetUri, new PetRepository.Callback<Integer>() {
+            @Override
+            public void onResult(Integer rowsDeleted) {
+                if(rowsDeleted>0) Toast.makeText(getApplicationContext(),R.string.editor_delete_pet_successful,Toast.LENGTH_SHORT).show();
+                else Toast.makeText(getApplicationContext(),R.string.editor_delete_pet_failed,Toast.LENGTH_SHORT).show();
+            }
+        });
     }
 
 
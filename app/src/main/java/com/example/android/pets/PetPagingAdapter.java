@@ -0,0 +1,564 @@
+package com.example.android.pets;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
+import android.text.TextUtils;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import com.example.android.pets.data.PetCatalogSnapshot;
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetFilter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * {@link PetPagingAdapter} is an adapter for a recycler view that loads pets from the provider
+ * one page at a time, using keyset paging on the sort key of its {@link PetFilter} and
+ * {@link PetEntry#_ID}.
+ *
+ * Pages are loaded on a background thread, and the next page is prefetched when the user scrolls
+ * into the last loaded one. Each page copies its rows into a {@link PetCatalogSnapshot} and closes
+ * the cursor. Only a bounded number of pages keep their rows in memory; older pages are evicted
+ * and loaded again when they scroll back into view.
+ *
+ * When the data changes, {@link #refresh()} reloads the pages on the background thread, compares
+ * the new rows with the old ones by {@link PetEntry#_ID} there, and only dispatches the rows that
+ * were inserted, removed or changed.
+ */
+public class PetPagingAdapter extends RecyclerView.Adapter<PetPagingAdapter.ViewHolder> {
+
+    /**
+     * Default number of pets per page.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 50;
+
+    /**
+     * Default number of pages whose rows are kept in memory.
+     */
+    public static final int DEFAULT_MAX_RESIDENT_PAGES = 8;
+
+    private static final String[] PROJECTION = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT
+    };
+
+    private static final String[] ID_PROJECTION = {
+            PetEntry._ID
+    };
+
+    /**
+     * Interface for receiving clicks on pets.
+     */
+    public interface OnPetClickListener {
+        void onPetClick(long id);
+    }
+
+    private final Context mContext;
+    private final ContentResolver mContentResolver;
+    private final int mPageSize;
+    private final int mMaxResidentPages;
+    private final OnPetClickListener mOnPetClickListener;
+
+    /**
+     * Text shown for pets without a breed, looked up once instead of on every bind.
+     */
+    private final String mUnknownBreed;
+
+    /**
+     * Filter and order of the pets shown.
+     */
+    private PetFilter mFilter = PetFilter.NONE;
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * All pages loaded so far, in order. Evicted pages keep their ids so positions and item ids
+     * stay stable, but drop their rows.
+     */
+    private List<Page> mPages = new ArrayList<>();
+
+    /**
+     * Indices of the pages that currently hold their rows, least recently used first.
+     */
+    private final LinkedHashMap<Integer, Boolean> mResidentPages =
+            new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Indices of the pages being loaded right now.
+     */
+    private final Set<Integer> mLoadingPages = new HashSet<>();
+
+    /**
+     * Indices of the pages a refresh kept from loading: pages that were loading when it started,
+     * and evicted pages whose placeholder was bound while it ran. They are loaded once it is done,
+     * as their rows may be blank and the diff does not rebind rows missing on both sides.
+     */
+    private final Set<Integer> mDeferredPages = new HashSet<>();
+
+    private int mCount;
+    private boolean mHasMore = true;
+
+    /**
+     * True while a refresh runs in the background. No pages are loaded or evicted meanwhile, so
+     * the rows the refresh compares against stay the ones the recycler view shows.
+     */
+    private boolean mRefreshing;
+
+    /**
+     * True if the data changed again while a refresh was running.
+     */
+    private boolean mRefreshPending;
+
+    /**
+     * Incremented whenever the pages are replaced, so that results of older loads are dropped.
+     */
+    private int mGeneration;
+
+    /**
+     * Constructs a new {@link PetPagingAdapter} with the default page size and memory bound.
+     *
+     * @param context  The context
+     * @param listener Receives clicks on pets
+     */
+    public PetPagingAdapter(Context context, OnPetClickListener listener) {
+        this(context, listener, DEFAULT_PAGE_SIZE, DEFAULT_MAX_RESIDENT_PAGES);
+    }
+
+    /**
+     * Constructs a new {@link PetPagingAdapter}.
+     *
+     * @param context          The context
+     * @param listener         Receives clicks on pets
+     * @param pageSize         Number of pets per page
+     * @param maxResidentPages Number of pages whose rows are kept in memory
+     */
+    public PetPagingAdapter(Context context, OnPetClickListener listener, int pageSize,
+                            int maxResidentPages) {
+        mContext = context;
+        mContentResolver = context.getContentResolver();
+        mOnPetClickListener = listener;
+        mPageSize = pageSize;
+        mMaxResidentPages = maxResidentPages;
+        mUnknownBreed = context.getString(R.string.unknown_breed);
+        setHasStableIds(true);
+    }
+
+    /**
+     * Returns the filter of the pets shown.
+     */
+    public PetFilter getFilter() {
+        return mFilter;
+    }
+
+    /**
+     * Show the pets matching the given filter, in its order. The pets are reloaded like on
+     * {@link #refresh()}, so rows kept by the new filter stay in place.
+     */
+    public void setFilter(PetFilter filter) {
+        if (filter.equals(mFilter)) {
+            return;
+        }
+        mFilter = filter;
+        refresh();
+    }
+
+    /**
+     * Reload the pages on the background thread and dispatch the differences to the recycler
+     * view once done. The first call loads the first page.
+     */
+    public void refresh() {
+        if (mRefreshing) {
+            mRefreshPending = true;
+            return;
+        }
+        mRefreshing = true;
+        mGeneration++;
+        mDeferredPages.addAll(mLoadingPages);
+        mLoadingPages.clear();
+
+        final Snapshot oldSnapshot = new Snapshot(mPages, mCount);
+        final int pageCount = Math.max(1, mPages.size());
+        final boolean[] resident = new boolean[pageCount];
+        for (int i = 0; i < pageCount; i++) {
+            resident[i] = i >= mPages.size() || mResidentPages.containsKey(i);
+        }
+        final int generation = mGeneration;
+        final PetFilter filter = mFilter;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Snapshot newSnapshot = querySnapshot(filter, pageCount, resident);
+                final DiffUtil.DiffResult diff = DiffUtil.calculateDiff(
+                        new SnapshotDiffCallback(oldSnapshot, newSnapshot), false);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mGeneration) {
+                            return;
+                        }
+                        onRefreshed(newSnapshot, resident, diff);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Stop the background loader. The adapter must not be used afterwards.
+     */
+    public void close() {
+        mGeneration++;
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Returns true while a refresh runs in the background.
+     */
+    boolean isRefreshing() {
+        return mRefreshing;
+    }
+
+    @Override
+    public int getItemCount() {
+        return mCount;
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mPages.get(position / mPageSize).ids[position % mPageSize];
+    }
+
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(mContext).inflate(R.layout.list_item, parent, false);
+        return new ViewHolder(view);
+    }
+
+    /**
+     * Binds the pet at the given position, or an empty row while its page is being loaded again.
+     */
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        int pageIndex = position / mPageSize;
+        Page page = mPages.get(pageIndex);
+        if (mResidentPages.get(pageIndex) == null) {
+            // the page was evicted, show a placeholder until it is back
+            loadPage(pageIndex);
+            holder.nameTextView.setText(null);
+            holder.summaryTextView.setText(null);
+        } else {
+            int row = position % mPageSize;
+            String summary = page.rows.getBreed(row);
+            if (TextUtils.isEmpty(summary)) //if breed is null, then show it as unknown
+                summary = mUnknownBreed;
+            holder.nameTextView.setText(page.rows.getName(row));
+            holder.summaryTextView.setText(summary);
+        }
+
+        // Prefetch the next page as soon as the last loaded one comes into view
+        if (mHasMore && pageIndex == mPages.size() - 1) {
+            loadPage(mPages.size());
+        }
+    }
+
+    /**
+     * Load the page with the given index on the background thread, unless it is already loading.
+     * While a refresh runs, the page is loaded once it is done.
+     */
+    private void loadPage(final int pageIndex) {
+        if (mRefreshing) {
+            mDeferredPages.add(pageIndex);
+            return;
+        }
+        if (!mLoadingPages.add(pageIndex)) {
+            return;
+        }
+        // the page starts after the last pet of the previous one
+        final long afterId;
+        final String afterKey;
+        if (pageIndex == 0) {
+            afterId = 0;
+            afterKey = null;
+        } else {
+            Page previous = mPages.get(pageIndex - 1);
+            afterId = previous.ids[previous.ids.length - 1];
+            afterKey = previous.lastKey;
+        }
+        final int generation = mGeneration;
+        final PetFilter filter = mFilter;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Page page = queryPage(filter, afterId, afterKey, true);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mGeneration) {
+                            return;
+                        }
+                        mLoadingPages.remove(pageIndex);
+                        onPageLoaded(pageIndex, page);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Query one page of pets from the provider, with or without its rows. Runs on the background
+     * thread.
+     */
+    private Page queryPage(PetFilter filter, long afterId, String afterKey, boolean withRows) {
+        String[] projection = withRows ? PROJECTION : ID_PROJECTION;
+        String sortColumn = filter.getSortColumn();
+        if (!Arrays.asList(projection).contains(sortColumn)) {
+            // the sort key of the last pet is needed for the next page
+            projection = Arrays.copyOf(projection, projection.length + 1);
+            projection[projection.length - 1] = sortColumn;
+        }
+        Cursor cursor = mContentResolver.query(filter.buildPageUri(afterId, afterKey, mPageSize),
+                projection, null, null, null);
+        if (cursor == null) {
+            return new Page(new long[0], withRows ? PetCatalogSnapshot.EMPTY : null, null);
+        }
+        try {
+            long[] ids;
+            PetCatalogSnapshot rows = null;
+            if (withRows) {
+                rows = PetCatalogSnapshot.fromCursor(cursor);
+                ids = rows.getIds();
+            } else {
+                ids = new long[cursor.getCount()];
+                int idColumnIndex = cursor.getColumnIndexOrThrow(PetEntry._ID);
+                for (int i = 0; cursor.moveToNext(); i++) {
+                    ids[i] = cursor.getLong(idColumnIndex);
+                }
+            }
+            String lastKey = null;
+            if (cursor.moveToLast()) {
+                lastKey = cursor.getString(cursor.getColumnIndexOrThrow(sortColumn));
+            }
+            return new Page(ids, rows, lastKey);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Query up to {@code pageCount} pages from the start. Pages marked resident are loaded with
+     * their rows, the others with ids only. Runs on the background thread.
+     */
+    private Snapshot querySnapshot(PetFilter filter, int pageCount, boolean[] resident) {
+        List<Page> pages = new ArrayList<>(pageCount);
+        int count = 0;
+        long afterId = 0;
+        String afterKey = null;
+        for (int i = 0; i < pageCount; i++) {
+            Page page = queryPage(filter, afterId, afterKey, resident[i]);
+            if (page.ids.length == 0) {
+                break;
+            }
+            pages.add(page);
+            count += page.ids.length;
+            afterId = page.ids[page.ids.length - 1];
+            afterKey = page.lastKey;
+            if (page.ids.length < mPageSize) {
+                break;
+            }
+        }
+        return new Snapshot(pages, count);
+    }
+
+    private void onRefreshed(Snapshot snapshot, boolean[] resident, DiffUtil.DiffResult diff) {
+        mGeneration++;
+        mPages = snapshot.pages;
+        mCount = snapshot.count;
+        mHasMore = !mPages.isEmpty() && mPages.get(mPages.size() - 1).ids.length == mPageSize;
+        mResidentPages.clear();
+        for (int i = 0; i < mPages.size(); i++) {
+            if (resident[i]) {
+                mResidentPages.put(i, Boolean.TRUE);
+            }
+        }
+        mRefreshing = false;
+        diff.dispatchUpdatesTo(this);
+
+        for (int pageIndex : mDeferredPages) {
+            if (pageIndex < mPages.size() ? !mResidentPages.containsKey(pageIndex)
+                    : pageIndex == mPages.size() && mHasMore) {
+                loadPage(pageIndex);
+            }
+        }
+        mDeferredPages.clear();
+
+        if (mRefreshPending) {
+            mRefreshPending = false;
+            refresh();
+        }
+    }
+
+    private void onPageLoaded(int pageIndex, Page page) {
+        if (pageIndex == mPages.size()) {
+            // a new page at the end of the list
+            mHasMore = page.ids.length == mPageSize;
+            if (page.ids.length == 0) {
+                return;
+            }
+            mPages.add(page);
+            mCount += page.ids.length;
+            mResidentPages.put(pageIndex, Boolean.TRUE);
+            evictPages();
+            notifyItemRangeInserted(mCount - page.ids.length, page.ids.length);
+        } else {
+            // an evicted page coming back, keep the ids the positions were built with
+            Page existing = mPages.get(pageIndex);
+            if (page.ids.length != existing.ids.length) {
+                // the data changed under us, the next refresh will catch up
+                return;
+            }
+            existing.rows = page.rows;
+            mResidentPages.put(pageIndex, Boolean.TRUE);
+            evictPages();
+            notifyItemRangeChanged(pageIndex * mPageSize, page.ids.length);
+        }
+    }
+
+    /**
+     * Drop the rows of the least recently used pages until the memory bound is met.
+     */
+    private void evictPages() {
+        Iterator<Map.Entry<Integer, Boolean>> iterator = mResidentPages.entrySet().iterator();
+        while (mResidentPages.size() > mMaxResidentPages && iterator.hasNext()) {
+            mPages.get(iterator.next().getKey()).rows = null;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Views of a list item, looked up once when the item is inflated.
+     */
+    class ViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
+        final TextView nameTextView;
+        final TextView summaryTextView;
+
+        ViewHolder(View view) {
+            super(view);
+            nameTextView = (TextView) view.findViewById(R.id.name);
+            summaryTextView = (TextView) view.findViewById(R.id.summary);
+            view.setOnClickListener(this);
+        }
+
+        @Override
+        public void onClick(View view) {
+            if (mOnPetClickListener != null && getItemId() != RecyclerView.NO_ID) {
+                mOnPetClickListener.onPetClick(getItemId());
+            }
+        }
+    }
+
+    /**
+     * One page of pets. Only the ids and the sort key survive eviction.
+     */
+    private static class Page {
+        final long[] ids;
+
+        /**
+         * Sort key of the last pet, where the next page starts.
+         */
+        final String lastKey;
+
+        /**
+         * Rows of the page, or null while it is evicted.
+         */
+        PetCatalogSnapshot rows;
+
+        Page(long[] ids, PetCatalogSnapshot rows, String lastKey) {
+            this.ids = ids;
+            this.rows = rows;
+            this.lastKey = lastKey;
+        }
+    }
+
+    /**
+     * Immutable copy of the pages, compared on the background thread during a refresh.
+     */
+    private static class Snapshot {
+        final List<Page> pages;
+        final int count;
+
+        Snapshot(List<Page> pages, int count) {
+            this.pages = new ArrayList<>(pages.size());
+            for (Page page : pages) {
+                this.pages.add(new Page(page.ids, page.rows, page.lastKey));
+            }
+            this.count = count;
+        }
+    }
+
+    /**
+     * Compares two snapshots by pet id. Rows are the same content if name and breed match, or if
+     * neither side has its row in memory. Placeholders showing for such rows are filled by
+     * loading their pages once the refresh is done, see {@link #mDeferredPages}.
+     */
+    private class SnapshotDiffCallback extends DiffUtil.Callback {
+        private final Snapshot mOld;
+        private final Snapshot mNew;
+
+        SnapshotDiffCallback(Snapshot oldSnapshot, Snapshot newSnapshot) {
+            mOld = oldSnapshot;
+            mNew = newSnapshot;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return mOld.count;
+        }
+
+        @Override
+        public int getNewListSize() {
+            return mNew.count;
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldPosition, int newPosition) {
+            return page(mOld, oldPosition).ids[oldPosition % mPageSize]
+                    == page(mNew, newPosition).ids[newPosition % mPageSize];
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldPosition, int newPosition) {
+            Page oldPage = page(mOld, oldPosition);
+            Page newPage = page(mNew, newPosition);
+            if (oldPage.rows == null || newPage.rows == null) {
+                return oldPage.rows == newPage.rows;
+            }
+            return oldPage.rows.sameNameAndBreed(oldPosition % mPageSize, newPage.rows,
+                    newPosition % mPageSize);
+        }
+
+        private Page page(Snapshot snapshot, int position) {
+            return snapshot.pages.get(position / mPageSize);
+        }
+    }
+}
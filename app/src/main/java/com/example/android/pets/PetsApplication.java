@@ -0,0 +1,62 @@
+package com.example.android.pets;
+
+import android.app.Application;
+import android.os.StrictMode;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * {@link Application} for the Pets app.
+ */
+public class PetsApplication extends Application {
+
+    private static final String LOG_TAG = PetsApplication.class.getSimpleName();
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        boolean warmUp = getResources().getBoolean(R.bool.config_warm_up_database);
+        StartupTrace.onApplicationCreate(warmUp);
+        if (BuildConfig.DEBUG) {
+            // Database access belongs on a background thread, so crash debug builds on any disk
+            // access from the main thread instead of letting it turn into jank or an ANR.
+            StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                    .detectDiskReads()
+                    .detectDiskWrites()
+                    .penaltyLog()
+                    .penaltyDeath()
+                    .build());
+            StrictMode.setVmPolicy(new StrictMode.VmPolicy.Builder()
+                    .detectLeakedSqlLiteObjects()
+                    .detectLeakedClosableObjects()
+                    .penaltyLog()
+                    .build());
+        }
+        if (warmUp) {
+            warmUpDatabase();
+        }
+    }
+
+    /**
+     * Have the provider open the database and read the first catalog page on a background
+     * thread, while the catalog activity is still being created. The thread keeps the default
+     * priority, since the first catalog query waits for the database it opens.
+     */
+    private void warmUpDatabase() {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    getContentResolver().call(PetEntry.CONTENT_URI, PetContract.METHOD_WARM_UP,
+                            String.valueOf(PetPagingAdapter.DEFAULT_PAGE_SIZE), null);
+                    StartupTrace.mark("database warm-up done");
+                } catch (RuntimeException e) {
+                    // only an optimization, the first query opens the database anyway
+                    Log.w(LOG_TAG, "Database warm-up failed", e);
+                }
+            }
+        }, "PetsWarmUp").start();
+    }
+}
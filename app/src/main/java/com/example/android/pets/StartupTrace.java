@@ -0,0 +1,66 @@
+package com.example.android.pets;
+
+import android.app.Activity;
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Records how long the app takes from process start to showing the first pet in the catalog,
+ * for comparing cold starts with and without the database warm-up.
+ *
+ * Milestones are logged under the {@link #LOG_TAG} tag with their time since process start, and
+ * the first catalog row is also reported with {@link Activity#reportFullyDrawn()}.
+ */
+public final class StartupTrace {
+
+    public static final String LOG_TAG = "PetsStartup";
+
+    /**
+     * Process start in {@link SystemClock#elapsedRealtime()} time. Before Nougat the start time
+     * is not available, so the application start is used instead.
+     */
+    private static long sStartTime = -1;
+
+    private static boolean sFirstCatalogRowReported;
+
+    private StartupTrace() {}
+
+    /**
+     * Called from {@link android.app.Application#onCreate()}.
+     */
+    public static synchronized void onApplicationCreate(boolean warmUp) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            sStartTime = Process.getStartElapsedRealtime();
+        } else {
+            sStartTime = SystemClock.elapsedRealtime();
+        }
+        mark(warmUp ? "application created, warm-up on" : "application created, warm-up off");
+    }
+
+    /**
+     * Log a milestone with its time since process start.
+     */
+    public static synchronized void mark(String milestone) {
+        if (sStartTime < 0) {
+            return;
+        }
+        Log.i(LOG_TAG, milestone + ": " + (SystemClock.elapsedRealtime() - sStartTime) + " ms");
+    }
+
+    /**
+     * Called when the catalog has drawn its first pet. Only the first call in the process
+     * counts.
+     */
+    public static synchronized void onFirstCatalogRow(Activity activity) {
+        if (sFirstCatalogRowReported) {
+            return;
+        }
+        sFirstCatalogRowReported = true;
+        mark("first catalog row");
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            activity.reportFullyDrawn();
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-only copy of a list of pets, stored column by column in primitive arrays so that it does
+ * not keep the cursor and its window alive.
+ *
+ * Names and breeds are kept in a string pool: every distinct value is stored once and rows refer
+ * to it by index. Breeds repeat a lot, so most rows share their breed with other rows.
+ *
+ * A snapshot is immutable once built and may be read from any thread.
+ */
+public final class PetCatalogSnapshot {
+
+    /**
+     * Snapshot without pets.
+     */
+    public static final PetCatalogSnapshot EMPTY = new PetCatalogSnapshot(new long[0], new int[0],
+            new int[0], new int[0], new int[0], new String[0]);
+
+    /**
+     * Pool index stored for a null name or breed.
+     */
+    private static final int NULL_REF = -1;
+
+    private final long[] mIds;
+    private final int[] mGenders;
+    private final int[] mWeights;
+    private final int[] mNameRefs;
+    private final int[] mBreedRefs;
+
+    /**
+     * Distinct names and breeds, referenced by {@link #mNameRefs} and {@link #mBreedRefs}.
+     */
+    private final String[] mStrings;
+
+    private PetCatalogSnapshot(long[] ids, int[] genders, int[] weights, int[] nameRefs,
+                               int[] breedRefs, String[] strings) {
+        mIds = ids;
+        mGenders = genders;
+        mWeights = weights;
+        mNameRefs = nameRefs;
+        mBreedRefs = breedRefs;
+        mStrings = strings;
+    }
+
+    /**
+     * Copy every remaining row of the cursor into a new snapshot. The cursor must have the
+     * {@link PetEntry#_ID} column; name, breed, gender and weight are read when the cursor has
+     * them and are null or 0 otherwise. The cursor is not closed.
+     */
+    public static PetCatalogSnapshot fromCursor(Cursor cursor) {
+        int count = cursor.getCount() - cursor.getPosition() - 1;
+        if (count <= 0) {
+            return EMPTY;
+        }
+        long[] ids = new long[count];
+        int[] genders = new int[count];
+        int[] weights = new int[count];
+        int[] nameRefs = new int[count];
+        int[] breedRefs = new int[count];
+        StringPool pool = new StringPool();
+
+        int idColumnIndex = cursor.getColumnIndexOrThrow(PetEntry._ID);
+        int nameColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_NAME);
+        int breedColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_BREED);
+        int genderColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_GENDER);
+        int weightColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_WEIGHT);
+        for (int i = 0; i < count && cursor.moveToNext(); i++) {
+            ids[i] = cursor.getLong(idColumnIndex);
+            nameRefs[i] = nameColumnIndex < 0 ? NULL_REF : pool.add(cursor.getString(nameColumnIndex));
+            breedRefs[i] = breedColumnIndex < 0 ? NULL_REF : pool.add(cursor.getString(breedColumnIndex));
+            genders[i] = genderColumnIndex < 0 ? PetEntry.GENDER_UNKNOWN : cursor.getInt(genderColumnIndex);
+            weights[i] = weightColumnIndex < 0 ? 0 : cursor.getInt(weightColumnIndex);
+        }
+        return new PetCatalogSnapshot(ids, genders, weights, nameRefs, breedRefs, pool.toArray());
+    }
+
+    /**
+     * Returns the number of pets.
+     */
+    public int size() {
+        return mIds.length;
+    }
+
+    public long getId(int row) {
+        return mIds[row];
+    }
+
+    public int getGender(int row) {
+        return mGenders[row];
+    }
+
+    public int getWeight(int row) {
+        return mWeights[row];
+    }
+
+    public String getName(int row) {
+        return get(mNameRefs[row]);
+    }
+
+    public String getBreed(int row) {
+        return get(mBreedRefs[row]);
+    }
+
+    /**
+     * Returns a copy of the ids of all pets, in order.
+     */
+    public long[] getIds() {
+        return mIds.clone();
+    }
+
+    /**
+     * Returns whether the pets in the given rows of this and the other snapshot have the same
+     * name and breed. Equal strings in one pool share an index, so this mostly compares ints.
+     */
+    public boolean sameNameAndBreed(int row, PetCatalogSnapshot other, int otherRow) {
+        return sameString(mNameRefs[row], other, other.mNameRefs[otherRow])
+                && sameString(mBreedRefs[row], other, other.mBreedRefs[otherRow]);
+    }
+
+    private boolean sameString(int ref, PetCatalogSnapshot other, int otherRef) {
+        if (other == this) {
+            return ref == otherRef;
+        }
+        String value = get(ref);
+        String otherValue = other.get(otherRef);
+        return value == null ? otherValue == null : value.equals(otherValue);
+    }
+
+    private String get(int ref) {
+        return ref == NULL_REF ? null : mStrings[ref];
+    }
+
+    /**
+     * Assigns every distinct string an index while a snapshot is built.
+     */
+    private static final class StringPool {
+        private final Map<String, Integer> mIndices = new HashMap<>();
+        private final List<String> mStrings = new ArrayList<>();
+
+        int add(String value) {
+            if (value == null) {
+                return NULL_REF;
+            }
+            Integer index = mIndices.get(value);
+            if (index == null) {
+                index = mStrings.size();
+                mIndices.put(value, index);
+                mStrings.add(value);
+            }
+            return index;
+        }
+
+        String[] toArray() {
+            return mStrings.toArray(new String[mStrings.size()]);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces content change notifications for the pets provider.
+ *
+ * Changed URIs are collected over a short window and every distinct URI is notified once when
+ * the window closes, so a burst of writes only makes the catalog loader reload once instead of
+ * once per write.
+ */
+public class PetChangeNotifier {
+
+    /**
+     * Default length of the coalescing window in milliseconds.
+     */
+    public static final long DEFAULT_WINDOW_MS = 50;
+
+    private final ContentResolver mResolver;
+    private final Handler mHandler;
+    private final long mWindowMs;
+
+    /**
+     * URIs changed since the last flush. Guarded by itself.
+     */
+    private final Set<Uri> mDirtyUris = new LinkedHashSet<>();
+
+    /**
+     * Instrumentation counters: notifications asked for by the provider vs. actually sent.
+     */
+    private final AtomicLong mRequestedCount = new AtomicLong();
+    private final AtomicLong mSentCount = new AtomicLong();
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Create a notifier that coalesces over {@link #DEFAULT_WINDOW_MS}.
+     */
+    public PetChangeNotifier(ContentResolver resolver) {
+        this(resolver, DEFAULT_WINDOW_MS);
+    }
+
+    /**
+     * Create a notifier with the given coalescing window. A window of 0 sends every notification
+     * right away.
+     */
+    public PetChangeNotifier(ContentResolver resolver, long windowMs) {
+        mResolver = resolver;
+        mWindowMs = windowMs;
+        HandlerThread thread = new HandlerThread(PetChangeNotifier.class.getSimpleName());
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Record that the data at the given URI has changed. The notification is sent when the
+     * current window closes.
+     */
+    public void notifyChange(Uri uri) {
+        mRequestedCount.incrementAndGet();
+        if (mWindowMs <= 0) {
+            send(uri);
+            return;
+        }
+        boolean scheduleFlush;
+        synchronized (mDirtyUris) {
+            scheduleFlush = mDirtyUris.isEmpty();
+            mDirtyUris.add(uri);
+        }
+        if (scheduleFlush) {
+            mHandler.postDelayed(mFlushRunnable, mWindowMs);
+        }
+    }
+
+    /**
+     * Send the notifications collected so far without waiting for the window to close.
+     */
+    public void flush() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        List<Uri> dirtyUris;
+        synchronized (mDirtyUris) {
+            if (mDirtyUris.isEmpty()) {
+                return;
+            }
+            dirtyUris = new ArrayList<>(mDirtyUris);
+            mDirtyUris.clear();
+        }
+        for (Uri uri : dirtyUris) {
+            send(uri);
+        }
+    }
+
+    /**
+     * Stop the notifier thread after sending anything still pending.
+     */
+    public void quit() {
+        flush();
+        Looper looper = mHandler.getLooper();
+        looper.quit();
+    }
+
+    /**
+     * Number of notifications requested through {@link #notifyChange(Uri)}.
+     */
+    public long getRequestedCount() {
+        return mRequestedCount.get();
+    }
+
+    /**
+     * Number of notifications actually delivered to the content resolver.
+     */
+    public long getSentCount() {
+        return mSentCount.get();
+    }
+
+    private void send(Uri uri) {
+        mSentCount.incrementAndGet();
+        mResolver.notifyChange(uri, null);
+    }
+}
@@ -34,6 +34,20 @@ public final class PetContract {
     public static final String CONTENT_AUTHORITY = "com.example.android.pets";
     public static final Uri BASE_CONTENT_URI = Uri.parse("content://" + CONTENT_AUTHORITY);
     public static final String PATH_PETS = "pets";
+    public static final String PATH_SEARCH = "search";
+    public static final String PATH_EXPORT = "export";
+    public static final String PATH_STATS = "stats";
+    public static final String PATH_BREEDS = "breeds";
+    public static final String PATH_METRICS = "metrics";
+    public static final String PATH_CHANGES = "changes";
+
+    /**
+     * Provider method for {@link ContentResolver#call(Uri, String, String, android.os.Bundle)}
+     * that opens the database and reads the first pets ahead of the first query, so that it does
+     * not pay for it. The argument is the number of pets to read, as a string. Blocks until done,
+     * so call it on a background thread.
+     */
+    public static final String METHOD_WARM_UP = "warm_up";
 
     /**
      * Inner class that defines constant values for the pets database table.
@@ -44,7 +58,15 @@ public final class PetContract {
         /** Name of database table for pets */
         public final static String TABLE_NAME = "pets";
 
+        /**
+         * The content URI of the list of pets. With more than one shard, the sort order argument
+         * of a query may only list columns, each with an optional {@code COLLATE NOCASE} or
+         * {@code COLLATE BINARY} and {@code ASC} or {@code DESC}; any other sort order throws an
+         * {@link IllegalArgumentException}. The sort keys of {@link #QUERY_PARAMETER_SORT}
+         * always work.
+         */
         public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_PETS);
+
         /**
          * The MIME type of the {@link #CONTENT_URI} for a list of pets.
          */
@@ -57,6 +79,250 @@ public final class PetContract {
         public static final String CONTENT_ITEM_TYPE =
                 ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_PETS;
 
+        /**
+         * The MIME type of the {@link #CONTENT_STATS_URI}.
+         */
+        public static final String CONTENT_STATS_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_STATS;
+
+        /**
+         * The MIME type of the {@link #CONTENT_STATS_BREEDS_URI}.
+         */
+        public static final String CONTENT_STATS_BREEDS_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_BREEDS;
+
+        /**
+         * The MIME type of the {@link #CONTENT_CHANGES_URI}.
+         */
+        public static final String CONTENT_CHANGES_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_CHANGES;
+
+        /**
+         * Query parameter on {@link #CONTENT_URI} limiting the number of rows returned.
+         */
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+        /**
+         * Query parameter on {@link #CONTENT_URI} for keyset paging: only pets with an
+         * {@link #_ID} greater than this value are returned, ordered by {@link #_ID}.
+         */
+        public static final String QUERY_PARAMETER_AFTER = "after";
+
+        /**
+         * Query parameter on {@link #CONTENT_URI} for keyset paging in an order other than
+         * {@link #SORT_ID}: the sort key of the pet given by {@link #QUERY_PARAMETER_AFTER}.
+         */
+        public static final String QUERY_PARAMETER_AFTER_KEY = "after_key";
+
+        /**
+         * Filter query parameters on {@link #CONTENT_URI}, see {@link PetFilter}: only pets of a
+         * gender, within a weight range, or whose breed starts with a prefix (ignoring case).
+         */
+        public static final String QUERY_PARAMETER_GENDER = "gender";
+        public static final String QUERY_PARAMETER_MIN_WEIGHT = "min_weight";
+        public static final String QUERY_PARAMETER_MAX_WEIGHT = "max_weight";
+        public static final String QUERY_PARAMETER_BREED_PREFIX = "breed_prefix";
+
+        /**
+         * Query parameter on {@link #CONTENT_URI} with the sort key, one of the SORT_ constants.
+         * It takes precedence over the sort order argument of the query. Ties are broken by
+         * {@link #_ID}.
+         */
+        public static final String QUERY_PARAMETER_SORT = "sort";
+
+        /**
+         * Sort keys: order added, name ignoring case, and weight.
+         */
+        public static final String SORT_ID = "id";
+        public static final String SORT_NAME = "name";
+        public static final String SORT_WEIGHT = "weight";
+
+        /**
+         * Query parameter for deleting every pet through {@link #CONTENT_URI}: when "true", ids
+         * are reused from 1 again afterwards.
+         */
+        public static final String QUERY_PARAMETER_RESET_IDS = "reset_ids";
+
+        /**
+         * Query parameter for deleting every pet through {@link #CONTENT_URI}: when "true", the
+         * freed space is given back to the file system afterwards. The first time this rebuilds
+         * the database file, which is quick once the pets are gone.
+         */
+        public static final String QUERY_PARAMETER_VACUUM = "vacuum";
+
+        /**
+         * Content URI for full-text search over pet names and breeds. Append the search text as
+         * the last path segment, see {@link #buildSearchUri(String)}. Returns the 100 most
+         * relevant pets, or as many as {@link #QUERY_PARAMETER_LIMIT} asks for up to 1000.
+         */
+        public static final Uri CONTENT_SEARCH_URI = Uri.withAppendedPath(CONTENT_URI, PATH_SEARCH);
+
+        /**
+         * Content URI for statistics over all pets: a single row with the columns
+         * {@link #COLUMN_STATS_TOTAL}, {@link #COLUMN_STATS_MALE}, {@link #COLUMN_STATS_FEMALE},
+         * {@link #COLUMN_STATS_UNKNOWN} and {@link #COLUMN_STATS_AVERAGE_WEIGHT}.
+         */
+        public static final Uri CONTENT_STATS_URI = Uri.withAppendedPath(CONTENT_URI, PATH_STATS);
+
+        /**
+         * Content URI for the number of pets per breed, one row per breed with the columns
+         * {@link #COLUMN_PET_BREED} and {@link #COLUMN_STATS_COUNT}, most common breeds first.
+         * Use {@link #QUERY_PARAMETER_LIMIT} to get the top breeds only.
+         */
+        public static final Uri CONTENT_STATS_BREEDS_URI =
+                Uri.withAppendedPath(CONTENT_STATS_URI, PATH_BREEDS);
+
+        /**
+         * Content URI for the pets changed since a sequence number, for keeping a copy of the
+         * pets in sync without reading all of them. See {@link #buildChangesUri(long[], int)}.
+         *
+         * Every row is the latest change of one pet, ordered by {@link #COLUMN_CHANGE_SEQ}, with
+         * {@link #_ID}, {@link #COLUMN_CHANGE_DELETED} and, unless the pet was deleted, its
+         * current name, breed, gender and weight. A pet changed several times since is returned
+         * once. Every shard numbers the changes of its pets in its own range, so
+         * {@link #getShard(long)} of a sequence number is the shard, as for pet ids. To sync, pass
+         * the largest sequence number seen so far of every shard, starting from none, which
+         * returns every pet. With a single shard that is one number, starting from 0.
+         *
+         * Deleted pets are only reported for {@link #CHANGES_TOMBSTONE_RETENTION_MILLIS}. A copy
+         * that was not synced for longer must sync again from the start and drop the pets not
+         * returned. After every pet was deleted at once, a single deleted row per shard stands
+         * for all of them, see {@link #isChangeReset(long)}: drop every pet of the copy in that
+         * shard.
+         */
+        public static final Uri CONTENT_CHANGES_URI = Uri.withAppendedPath(CONTENT_URI, PATH_CHANGES);
+
+        /**
+         * Query parameter on {@link #CONTENT_CHANGES_URI}: comma-separated sequence numbers, at
+         * most one per shard. Only changes with a greater {@link #COLUMN_CHANGE_SEQ} than the
+         * number of their shard are returned, or every change of a shard without a number.
+         */
+        public static final String QUERY_PARAMETER_SINCE = "since";
+
+        /**
+         * Pet ids and change sequence numbers of shard {@code n} start at
+         * {@code n << SHARD_SHIFT}, see {@link #getShard(long)}.
+         */
+        public static final int SHARD_SHIFT = 40;
+
+        /**
+         * {@link #_ID} of the row of {@link #CONTENT_CHANGES_URI} telling that every pet of
+         * shard 0 was deleted. Shard {@code n} uses {@code n << SHARD_SHIFT}. No pet has these
+         * ids.
+         */
+        public static final long CHANGE_RESET_ID = 0;
+
+        /**
+         * How long deleted pets are reported by {@link #CONTENT_CHANGES_URI}: 7 days.
+         */
+        public static final long CHANGES_TOMBSTONE_RETENTION_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+        /**
+         * Content URI for streaming every pet as a file, opened with
+         * {@link ContentResolver#openInputStream(Uri)} or
+         * {@link ContentResolver#openTypedAssetFileDescriptor(Uri, String, android.os.Bundle)}.
+         * See {@link #buildExportUri(String)} for choosing the format.
+         */
+        public static final Uri CONTENT_EXPORT_URI = Uri.withAppendedPath(CONTENT_URI, PATH_EXPORT);
+
+        /**
+         * Export format with a header row followed by one comma-separated row per pet.
+         */
+        public static final String EXPORT_TYPE_CSV = "text/csv";
+
+        /**
+         * Export format with one JSON object per line and pet.
+         */
+        public static final String EXPORT_TYPE_NDJSON = "application/x-ndjson";
+
+        /**
+         * Query parameter on {@link #CONTENT_EXPORT_URI} with the export MIME type. Defaults to
+         * {@link #EXPORT_TYPE_CSV}.
+         */
+        public static final String QUERY_PARAMETER_TYPE = "type";
+
+        /**
+         * Build the content URI exporting every pet in the given format, one of the
+         * EXPORT_TYPE_ constants.
+         */
+        public static Uri buildExportUri(String mimeType) {
+            return CONTENT_EXPORT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_TYPE, mimeType)
+                    .build();
+        }
+
+        /**
+         * Build the content URI searching for pets whose name or breed contains words starting
+         * with the words of the given text. Results are ordered by relevance.
+         */
+        public static Uri buildSearchUri(String text) {
+            return CONTENT_SEARCH_URI.buildUpon().appendPath(text).build();
+        }
+
+        /**
+         * Build the content URI for one page of pets, i.e. at most {@code limit} pets whose
+         * {@link #_ID} comes after {@code afterId}. Use 0 to get the first page.
+         */
+        public static Uri buildPageUri(long afterId, int limit) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_AFTER, String.valueOf(afterId))
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+                    .build();
+        }
+
+        /**
+         * Build the content URI for at most {@code limit} changes after the sequence number
+         * {@code since}, see {@link #CONTENT_CHANGES_URI}. With more than one shard this only
+         * follows the shard of {@code since}; use {@link #buildChangesUri(long[], int)}.
+         */
+        public static Uri buildChangesUri(long since, int limit) {
+            return buildChangesUri(new long[]{since}, limit);
+        }
+
+        /**
+         * Build the content URI for at most {@code limit} changes after the given sequence
+         * numbers, the largest seen so far of every shard, see {@link #CONTENT_CHANGES_URI}.
+         */
+        public static Uri buildChangesUri(long[] since, int limit) {
+            StringBuilder value = new StringBuilder();
+            for (long seq : since) {
+                if (value.length() > 0) {
+                    value.append(',');
+                }
+                value.append(seq);
+            }
+            return CONTENT_CHANGES_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_SINCE, value.toString())
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+                    .build();
+        }
+
+        /**
+         * Returns the shard of a pet id or of a change sequence number.
+         */
+        public static long getShard(long idOrSeq) {
+            return idOrSeq >>> SHARD_SHIFT;
+        }
+
+        /**
+         * Returns whether the row of {@link #CONTENT_CHANGES_URI} with the given {@link #_ID}
+         * tells that every pet of its shard was deleted.
+         */
+        public static boolean isChangeReset(long id) {
+            return id == getShard(id) << SHARD_SHIFT;
+        }
+
+        /**
+         * Build the content URI for deleting every pet, see {@link #QUERY_PARAMETER_RESET_IDS}
+         * and {@link #QUERY_PARAMETER_VACUUM}.
+         */
+        public static Uri buildDeleteAllUri(boolean resetIds, boolean vacuum) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_RESET_IDS, String.valueOf(resetIds))
+                    .appendQueryParameter(QUERY_PARAMETER_VACUUM, String.valueOf(vacuum))
+                    .build();
+        }
+
 
 
 
@@ -98,6 +364,59 @@ public final class PetContract {
          */
         public final static String COLUMN_PET_WEIGHT = "weight";
 
+        /**
+         * Search results only: name and breed text around the matched words, with the matches
+         * wrapped in {@code <b>} tags.
+         *
+         * Type: TEXT
+         */
+        public final static String COLUMN_SEARCH_SNIPPET = "snippet";
+
+        /**
+         * Search results only: relevance of the result, higher is better.
+         *
+         * Type: REAL
+         */
+        public final static String COLUMN_SEARCH_RANK = "rank";
+
+        /**
+         * Statistics only: number of pets, in total and per gender.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_STATS_TOTAL = "total";
+        public final static String COLUMN_STATS_MALE = "male";
+        public final static String COLUMN_STATS_FEMALE = "female";
+        public final static String COLUMN_STATS_UNKNOWN = "unknown";
+
+        /**
+         * Statistics only: average weight of all pets, 0 if there are none.
+         *
+         * Type: REAL
+         */
+        public final static String COLUMN_STATS_AVERAGE_WEIGHT = "average_weight";
+
+        /**
+         * Breed statistics only: number of pets of the breed.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_STATS_COUNT = "count";
+
+        /**
+         * Changes only: sequence number of the change, increasing with every change of a shard.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_CHANGE_SEQ = "seq";
+
+        /**
+         * Changes only: 1 if the pet was deleted, 0 if it was added or updated.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_CHANGE_DELETED = "deleted";
+
         /**
          * Possible values for the gender of the pet.
          */
@@ -108,6 +427,87 @@ public final class PetContract {
         public static boolean isValidGender(int gender){
             return (gender==GENDER_UNKNOWN || gender==GENDER_MALE || gender ==GENDER_FEMALE);
         }
+
+        public static boolean isValidWeight(int weight){
+            return weight >= 0;
+        }
+    }
+
+    /**
+     * Columns of the provider metrics, one row per operation and URI type that was used since
+     * the provider started. Latencies are in microseconds and include running the query.
+     */
+    public static final class MetricsEntry {
+
+        private MetricsEntry() {}
+
+        /** The content URI to read the provider metrics */
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(PetEntry.CONTENT_URI, PATH_METRICS);
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for the provider metrics.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_METRICS;
+
+        /**
+         * Operation: query, insert, update or delete.
+         *
+         * Type: TEXT
+         */
+        public final static String COLUMN_OPERATION = "operation";
+
+        /**
+         * Type of the URI the operation was called with, such as PET_ID.
+         *
+         * Type: TEXT
+         */
+        public final static String COLUMN_URI = "uri";
+
+        /**
+         * Number of calls, and how many of them threw.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_COUNT = "count";
+        public final static String COLUMN_ERRORS = "errors";
+
+        /**
+         * Latency percentiles, rounded up to the next power of two, and the maximum latency. The
+         * latency of a query does not include reading its rows, which happens on first access.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_LATENCY_P50 = "latency_p50_us";
+        public final static String COLUMN_LATENCY_P90 = "latency_p90_us";
+        public final static String COLUMN_LATENCY_P99 = "latency_p99_us";
+        public final static String COLUMN_LATENCY_MAX = "latency_max_us";
+
+        /**
+         * Total and largest number of rows returned or changed by one call. The rows of a query
+         * are counted when its cursor is closed, if they were read by then.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_ROWS = "rows";
+        public final static String COLUMN_ROWS_MAX = "rows_max";
+
+        /**
+         * Number of calls that changed pets and notified observers.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_NOTIFICATIONS = "notifications";
+
+        /**
+         * All columns, in the default order.
+         */
+        public static final String[] COLUMNS = {
+                COLUMN_OPERATION, COLUMN_URI, COLUMN_COUNT, COLUMN_ERRORS, COLUMN_LATENCY_P50,
+                COLUMN_LATENCY_P90, COLUMN_LATENCY_P99, COLUMN_LATENCY_MAX, COLUMN_ROWS,
+                COLUMN_ROWS_MAX, COLUMN_NOTIFICATIONS
+        };
     }
 
 
@@ -1,8 +1,15 @@
 package com.example.android.pets.data;
 
+import android.content.ContentValues;
 import android.content.Context;
+import android.os.Build;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.provider.BaseColumns;
+import android.util.Log;
 
 import com.example.android.pets.data.PetContract.PetEntry;
 
@@ -11,14 +18,527 @@ import com.example.android.pets.data.PetContract.PetEntry;
  */
 
 public class PetDbHelper extends SQLiteOpenHelper {
+    private static final String LOG_TAG = PetDbHelper.class.getSimpleName();
+
     public static final String DB_NAME = "shelter.db";
-    public static final int DB_VERSION = 1;
+    public static final int DB_VERSION = 8;
+
+    /**
+     * Ids of pets in shard {@code n} start at {@code n << SHARD_ID_SHIFT}, so the shard of a pet
+     * is the high bits of its id. Shard 0 is {@link #DB_NAME} and keeps the ids it always had.
+     * The sequence numbers of the change log are split the same way.
+     */
+    static final int SHARD_ID_SHIFT = PetEntry.SHARD_SHIFT;
+
+    /**
+     * FTS4 table mirroring the name and breed of every pet, with the pet's _id as docid.
+     * It is kept in sync with the pets table by triggers.
+     */
+    static final String FTS_TABLE_NAME = "pets_fts";
+
+    private static final String SQL_CREATE_FTS_TABLE = "CREATE VIRTUAL TABLE " + FTS_TABLE_NAME
+            + " USING fts4(" + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED + ");";
+
+    private static final String SQL_CREATE_FTS_DELETE_TRIGGER = "CREATE TRIGGER pets_fts_delete"
+            + " AFTER DELETE ON " + PetEntry.TABLE_NAME
+            + " BEGIN DELETE FROM " + FTS_TABLE_NAME + " WHERE docid = old." + PetEntry._ID + "; END;";
+
+    /**
+     * Dictionary of the distinct breeds. Pets refer to their breed by {@link #COLUMN_PET_BREED_ID}
+     * instead of repeating the text.
+     */
+    static final String BREEDS_TABLE_NAME = "breeds";
+
+    /**
+     * Column of {@link #BREEDS_TABLE_NAME} with the text of the breed, unique.
+     */
+    static final String COLUMN_BREED_NAME = "name";
+
+    /**
+     * Column of the pets table with the {@link #BREEDS_TABLE_NAME} id of the pet's breed, or null
+     * if the breed is unknown. Replaces {@link PetEntry#COLUMN_PET_BREED} since version 6.
+     */
+    static final String COLUMN_PET_BREED_ID = "breed_id";
+
+    /**
+     * Column of the pets table marking pets that were deleted but not purged yet, 1 or 0. Since
+     * version 8.
+     */
+    static final String COLUMN_PET_DELETED = "deleted";
+
+    /**
+     * View of the pets with the columns of {@link PetEntry}, joining the breed back in. Reads go
+     * through this view so that clients still see and select on the breed text. Since version 8
+     * it also leaves out pets marked {@link #COLUMN_PET_DELETED}.
+     */
+    static final String PETS_VIEW_NAME = "pets_with_breed";
+
+    private static String createPetsView(String condition) {
+        return "CREATE VIEW " + PETS_VIEW_NAME + " AS SELECT"
+                + " p." + PetEntry._ID + " AS " + PetEntry._ID + ","
+                + " p." + PetEntry.COLUMN_PET_NAME + " AS " + PetEntry.COLUMN_PET_NAME + ","
+                + " b." + COLUMN_BREED_NAME + " AS " + PetEntry.COLUMN_PET_BREED + ","
+                + " p." + PetEntry.COLUMN_PET_GENDER + " AS " + PetEntry.COLUMN_PET_GENDER + ","
+                + " p." + PetEntry.COLUMN_PET_WEIGHT + " AS " + PetEntry.COLUMN_PET_WEIGHT
+                + " FROM " + PetEntry.TABLE_NAME + " p LEFT JOIN " + BREEDS_TABLE_NAME + " b"
+                + " ON b." + BaseColumns._ID + " = p." + COLUMN_PET_BREED_ID
+                + (condition == null ? "" : " WHERE " + condition) + ";";
+    }
+
+    /**
+     * Summary table with the number of pets and their total weight per gender, kept up to date
+     * by triggers on the pets table.
+     */
+    static final String STATS_GENDER_TABLE_NAME = "pet_stats_gender";
+
+    /**
+     * Summary table with the number of pets per breed id, kept up to date by triggers on the pets
+     * table. Pets without a breed are not counted and breeds without pets are removed. Before
+     * version 6 it was keyed by the breed text.
+     */
+    static final String STATS_BREED_TABLE_NAME = "pet_stats_breed";
+
+    /**
+     * Column of both summary tables with the number of pets.
+     */
+    static final String COLUMN_STATS_COUNT = "count";
+
+    /**
+     * Column of {@link #STATS_GENDER_TABLE_NAME} with the total weight of the pets.
+     */
+    static final String COLUMN_STATS_TOTAL_WEIGHT = "total_weight";
+
+    /**
+     * Change log with the latest change of every pet, maintained by triggers on the pets table.
+     * A new change of a pet replaces its previous entry and gets the next sequence number, so
+     * the log holds at most one entry per pet and deleted pets are kept as tombstones until
+     * {@link #compactChanges} removes them.
+     */
+    static final String CHANGES_TABLE_NAME = "pet_changes";
+
+    /**
+     * Columns of {@link #CHANGES_TABLE_NAME}: the sequence number, the pet, whether the pet was
+     * deleted, and the time of the change in seconds since the epoch.
+     */
+    static final String COLUMN_CHANGE_SEQ = PetEntry.COLUMN_CHANGE_SEQ;
+    static final String COLUMN_CHANGE_PET_ID = "pet_id";
+    static final String COLUMN_CHANGE_DELETED = PetEntry.COLUMN_CHANGE_DELETED;
+    static final String COLUMN_CHANGE_TIME = "time";
+
+    /**
+     * Pet of the entry {@link #truncatePets} leaves in the change log, telling that every pet was
+     * deleted: the first id of the shard, which no pet has.
+     */
+    private static final String SQL_CHANGE_RESET_PET_ID = "(IFNULL((SELECT seq FROM sqlite_sequence"
+            + " WHERE name = '" + CHANGES_TABLE_NAME + "'), 0) >> " + SHARD_ID_SHIFT + ") << "
+            + SHARD_ID_SHIFT;
+
+    private static final String SQL_NOW = "CAST(strftime('%s', 'now') AS INTEGER)";
+
+    /**
+     * Statement recording a change of the given pet.
+     *
+     * @param deleted Expression for whether the pet is deleted
+     */
+    private static String recordChange(String petId, String deleted) {
+        return "INSERT OR REPLACE INTO " + CHANGES_TABLE_NAME + "("
+                + COLUMN_CHANGE_PET_ID + ", " + COLUMN_CHANGE_DELETED + ", " + COLUMN_CHANGE_TIME + ")"
+                + " VALUES (" + petId + ", " + deleted + ", " + SQL_NOW + "); ";
+    }
+
+    /**
+     * Returns the WHEN clause of a trigger, or nothing for a null condition.
+     */
+    private static String when(String condition) {
+        return condition == null ? "" : " WHEN " + condition;
+    }
+
+    private static String createChangesDeleteTrigger(String condition) {
+        return "CREATE TRIGGER pets_changes_delete AFTER DELETE ON " + PetEntry.TABLE_NAME
+                + when(condition) + " BEGIN " + recordChange("old." + PetEntry._ID, "1") + "END;";
+    }
+
+    /**
+     * Pets marked deleted are already gone for the statistics and the change log, so their purge
+     * must not count again.
+     */
+    private static final String SQL_NOT_MARKED_DELETED = "old." + COLUMN_PET_DELETED + " = 0";
+
+    private static final String SQL_CREATE_CHANGES_DELETE_TRIGGER =
+            createChangesDeleteTrigger(SQL_NOT_MARKED_DELETED);
+
+    // Statements shared by the stats triggers, adding or removing the pet "new" or "old". The
+    // breed column is the breed text before version 6 and the breed id since.
+    private static String statsAdd(String pet, String breedColumn) {
+        return "INSERT OR IGNORE INTO " + STATS_GENDER_TABLE_NAME + " VALUES ("
+                + pet + "." + PetEntry.COLUMN_PET_GENDER + ", 0, 0); "
+                + "UPDATE " + STATS_GENDER_TABLE_NAME + " SET "
+                + COLUMN_STATS_COUNT + " = " + COLUMN_STATS_COUNT + " + 1, "
+                + COLUMN_STATS_TOTAL_WEIGHT + " = " + COLUMN_STATS_TOTAL_WEIGHT
+                + " + " + pet + "." + PetEntry.COLUMN_PET_WEIGHT
+                + " WHERE " + PetEntry.COLUMN_PET_GENDER + " = " + pet + "." + PetEntry.COLUMN_PET_GENDER + "; "
+                + "INSERT OR IGNORE INTO " + STATS_BREED_TABLE_NAME
+                + " SELECT " + pet + "." + breedColumn + ", 0"
+                + " WHERE " + pet + "." + breedColumn + " IS NOT NULL; "
+                + "UPDATE " + STATS_BREED_TABLE_NAME + " SET "
+                + COLUMN_STATS_COUNT + " = " + COLUMN_STATS_COUNT + " + 1"
+                + " WHERE " + breedColumn + " = " + pet + "." + breedColumn + "; ";
+    }
+
+    private static String statsRemove(String pet, String breedColumn) {
+        return "UPDATE " + STATS_GENDER_TABLE_NAME + " SET "
+                + COLUMN_STATS_COUNT + " = " + COLUMN_STATS_COUNT + " - 1, "
+                + COLUMN_STATS_TOTAL_WEIGHT + " = " + COLUMN_STATS_TOTAL_WEIGHT
+                + " - " + pet + "." + PetEntry.COLUMN_PET_WEIGHT
+                + " WHERE " + PetEntry.COLUMN_PET_GENDER + " = " + pet + "." + PetEntry.COLUMN_PET_GENDER + "; "
+                + "UPDATE " + STATS_BREED_TABLE_NAME + " SET "
+                + COLUMN_STATS_COUNT + " = " + COLUMN_STATS_COUNT + " - 1"
+                + " WHERE " + breedColumn + " = " + pet + "." + breedColumn + "; "
+                + "DELETE FROM " + STATS_BREED_TABLE_NAME
+                + " WHERE " + breedColumn + " = " + pet + "." + breedColumn
+                + " AND " + COLUMN_STATS_COUNT + " <= 0; ";
+    }
+
+    private static String createStatsDeleteTrigger(String breedColumn, String condition) {
+        return "CREATE TRIGGER pets_stats_delete AFTER DELETE ON " + PetEntry.TABLE_NAME
+                + when(condition) + " BEGIN " + statsRemove("old", breedColumn) + "END;";
+    }
+
+    private static final String SQL_CREATE_STATS_DELETE_TRIGGER =
+            createStatsDeleteTrigger(COLUMN_PET_BREED_ID, SQL_NOT_MARKED_DELETED);
+
+    /**
+     * Breed text of the pet "new", looked up in the dictionary.
+     */
+    private static final String NEW_BREED_NAME = "(SELECT " + COLUMN_BREED_NAME
+            + " FROM " + BREEDS_TABLE_NAME + " WHERE " + BaseColumns._ID + " = new." + COLUMN_PET_BREED_ID + ")";
+
+    /**
+     * Schema migrations in version order. Every migration upgrades the schema from the previous
+     * version to its own, so a fresh database and an upgraded one end up with the same schema.
+     * To change the schema, append a migration and bump {@link #DB_VERSION} to its version.
+     */
+    private static final Migration[] MIGRATIONS = {
+            // Secondary indexes for filtering and sorting by name, breed and gender/weight
+            new Migration(2) {
+                @Override
+                void apply(SQLiteDatabase db) {
+                    db.execSQL("CREATE INDEX pets_name_index ON " + PetEntry.TABLE_NAME
+                            + "(" + PetEntry.COLUMN_PET_NAME + " COLLATE NOCASE);");
+                    db.execSQL("CREATE INDEX pets_breed_index ON " + PetEntry.TABLE_NAME
+                            + "(" + PetEntry.COLUMN_PET_BREED + ");");
+                    db.execSQL("CREATE INDEX pets_gender_weight_index ON " + PetEntry.TABLE_NAME
+                            + "(" + PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.COLUMN_PET_WEIGHT + ");");
+                }
+            },
+            // Full-text search over name and breed
+            new Migration(3) {
+                @Override
+                void apply(SQLiteDatabase db) {
+                    db.execSQL(SQL_CREATE_FTS_TABLE);
+                    db.execSQL("INSERT INTO " + FTS_TABLE_NAME + "(docid, "
+                            + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED + ")"
+                            + " SELECT " + PetEntry._ID + ", " + PetEntry.COLUMN_PET_NAME + ", "
+                            + PetEntry.COLUMN_PET_BREED + " FROM " + PetEntry.TABLE_NAME + ";");
+                    db.execSQL("CREATE TRIGGER pets_fts_insert AFTER INSERT ON " + PetEntry.TABLE_NAME
+                            + " BEGIN INSERT INTO " + FTS_TABLE_NAME + "(docid, "
+                            + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED + ")"
+                            + " VALUES (new." + PetEntry._ID + ", new." + PetEntry.COLUMN_PET_NAME
+                            + ", new." + PetEntry.COLUMN_PET_BREED + "); END;");
+                    db.execSQL("CREATE TRIGGER pets_fts_update AFTER UPDATE OF "
+                            + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED
+                            + " ON " + PetEntry.TABLE_NAME
+                            + " BEGIN UPDATE " + FTS_TABLE_NAME + " SET "
+                            + PetEntry.COLUMN_PET_NAME + " = new." + PetEntry.COLUMN_PET_NAME + ", "
+                            + PetEntry.COLUMN_PET_BREED + " = new." + PetEntry.COLUMN_PET_BREED
+                            + " WHERE docid = old." + PetEntry._ID + "; END;");
+                    db.execSQL(SQL_CREATE_FTS_DELETE_TRIGGER);
+                }
+            },
+            // Summary tables for the statistics, maintained by triggers
+            new Migration(4) {
+                @Override
+                void apply(SQLiteDatabase db) {
+                    db.execSQL("CREATE TABLE " + STATS_GENDER_TABLE_NAME + "("
+                            + PetEntry.COLUMN_PET_GENDER + " INTEGER PRIMARY KEY,"
+                            + COLUMN_STATS_COUNT + " INTEGER NOT NULL,"
+                            + COLUMN_STATS_TOTAL_WEIGHT + " INTEGER NOT NULL);");
+                    db.execSQL("CREATE TABLE " + STATS_BREED_TABLE_NAME + "("
+                            + PetEntry.COLUMN_PET_BREED + " TEXT PRIMARY KEY,"
+                            + COLUMN_STATS_COUNT + " INTEGER NOT NULL);");
+                    // matches the order of the top breeds query
+                    db.execSQL("CREATE INDEX pet_stats_breed_count_index ON " + STATS_BREED_TABLE_NAME
+                            + "(" + COLUMN_STATS_COUNT + " DESC, " + PetEntry.COLUMN_PET_BREED + ");");
+                    db.execSQL("INSERT INTO " + STATS_GENDER_TABLE_NAME
+                            + " SELECT " + PetEntry.COLUMN_PET_GENDER + ", COUNT(*), "
+                            + "TOTAL(" + PetEntry.COLUMN_PET_WEIGHT + ") FROM " + PetEntry.TABLE_NAME
+                            + " GROUP BY " + PetEntry.COLUMN_PET_GENDER + ";");
+                    db.execSQL("INSERT INTO " + STATS_BREED_TABLE_NAME
+                            + " SELECT " + PetEntry.COLUMN_PET_BREED + ", COUNT(*) FROM "
+                            + PetEntry.TABLE_NAME + " WHERE " + PetEntry.COLUMN_PET_BREED + " IS NOT NULL"
+                            + " GROUP BY " + PetEntry.COLUMN_PET_BREED + ";");
+                    db.execSQL("CREATE TRIGGER pets_stats_insert AFTER INSERT ON " + PetEntry.TABLE_NAME
+                            + " BEGIN " + statsAdd("new", PetEntry.COLUMN_PET_BREED) + "END;");
+                    db.execSQL("CREATE TRIGGER pets_stats_update AFTER UPDATE OF "
+                            + PetEntry.COLUMN_PET_BREED + ", " + PetEntry.COLUMN_PET_GENDER + ", "
+                            + PetEntry.COLUMN_PET_WEIGHT + " ON " + PetEntry.TABLE_NAME
+                            + " BEGIN " + statsRemove("old", PetEntry.COLUMN_PET_BREED)
+                            + statsAdd("new", PetEntry.COLUMN_PET_BREED) + "END;");
+                    db.execSQL(createStatsDeleteTrigger(PetEntry.COLUMN_PET_BREED, null));
+                }
+            },
+            // Breed index ignoring case, for breed prefix filters
+            new Migration(5) {
+                @Override
+                void apply(SQLiteDatabase db) {
+                    db.execSQL("DROP INDEX pets_breed_index;");
+                    db.execSQL("CREATE INDEX pets_breed_index ON " + PetEntry.TABLE_NAME
+                            + "(" + PetEntry.COLUMN_PET_BREED + " COLLATE NOCASE);");
+                }
+            },
+            // Breed dictionary: pets store a breed id instead of the text
+            new Migration(6) {
+                @Override
+                void apply(SQLiteDatabase db) {
+                    db.execSQL("CREATE TABLE " + BREEDS_TABLE_NAME + "("
+                            + BaseColumns._ID + " INTEGER PRIMARY KEY,"
+                            + COLUMN_BREED_NAME + " TEXT NOT NULL UNIQUE);");
+                    // for breed prefix filters
+                    db.execSQL("CREATE INDEX breeds_name_index ON " + BREEDS_TABLE_NAME
+                            + "(" + COLUMN_BREED_NAME + " COLLATE NOCASE);");
+                    db.execSQL("INSERT INTO " + BREEDS_TABLE_NAME + "(" + COLUMN_BREED_NAME + ")"
+                            + " SELECT DISTINCT " + PetEntry.COLUMN_PET_BREED + " FROM " + PetEntry.TABLE_NAME
+                            + " WHERE " + PetEntry.COLUMN_PET_BREED + " IS NOT NULL;");
 
+                    // SQLite cannot change a column in place, so copy the pets into a new table.
+                    // Dropping the old one also drops its indexes and triggers.
+                    db.execSQL("CREATE TABLE pets_new("
+                            + PetEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+                            + PetEntry.COLUMN_PET_NAME + " TEXT,"
+                            + COLUMN_PET_BREED_ID + " INTEGER REFERENCES " + BREEDS_TABLE_NAME + "(" + BaseColumns._ID + "),"
+                            + PetEntry.COLUMN_PET_GENDER + " INTEGER NOT NULL,"
+                            + PetEntry.COLUMN_PET_WEIGHT + " INTEGER NOT NULL DEFAULT 0);");
+                    db.execSQL("INSERT INTO pets_new SELECT p." + PetEntry._ID + ", p." + PetEntry.COLUMN_PET_NAME
+                            + ", b." + BaseColumns._ID + ", p." + PetEntry.COLUMN_PET_GENDER + ", p." + PetEntry.COLUMN_PET_WEIGHT
+                            + " FROM " + PetEntry.TABLE_NAME + " p LEFT JOIN " + BREEDS_TABLE_NAME + " b"
+                            + " ON b." + COLUMN_BREED_NAME + " = p." + PetEntry.COLUMN_PET_BREED + ";");
+                    // keep the AUTOINCREMENT position, which may be past the largest id left
+                    db.execSQL("DELETE FROM sqlite_sequence WHERE name = 'pets_new';");
+                    db.execSQL("UPDATE sqlite_sequence SET name = 'pets_new' WHERE name = '"
+                            + PetEntry.TABLE_NAME + "';");
+                    db.execSQL("DROP TABLE " + PetEntry.TABLE_NAME + ";");
+                    db.execSQL("ALTER TABLE pets_new RENAME TO " + PetEntry.TABLE_NAME + ";");
+
+                    db.execSQL("CREATE INDEX pets_name_index ON " + PetEntry.TABLE_NAME
+                            + "(" + PetEntry.COLUMN_PET_NAME + " COLLATE NOCASE);");
+                    db.execSQL("CREATE INDEX pets_breed_index ON " + PetEntry.TABLE_NAME
+                            + "(" + COLUMN_PET_BREED_ID + ");");
+                    db.execSQL("CREATE INDEX pets_gender_weight_index ON " + PetEntry.TABLE_NAME
+                            + "(" + PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.COLUMN_PET_WEIGHT + ");");
+                    db.execSQL(createPetsView(null));
+
+                    // the full-text table keeps the breed text, looked up by the triggers
+                    db.execSQL("CREATE TRIGGER pets_fts_insert AFTER INSERT ON " + PetEntry.TABLE_NAME
+                            + " BEGIN INSERT INTO " + FTS_TABLE_NAME + "(docid, "
+                            + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED + ")"
+                            + " VALUES (new." + PetEntry._ID + ", new." + PetEntry.COLUMN_PET_NAME
+                            + ", " + NEW_BREED_NAME + "); END;");
+                    db.execSQL("CREATE TRIGGER pets_fts_update AFTER UPDATE OF "
+                            + PetEntry.COLUMN_PET_NAME + ", " + COLUMN_PET_BREED_ID
+                            + " ON " + PetEntry.TABLE_NAME
+                            + " BEGIN UPDATE " + FTS_TABLE_NAME + " SET "
+                            + PetEntry.COLUMN_PET_NAME + " = new." + PetEntry.COLUMN_PET_NAME + ", "
+                            + PetEntry.COLUMN_PET_BREED + " = " + NEW_BREED_NAME
+                            + " WHERE docid = old." + PetEntry._ID + "; END;");
+                    db.execSQL(SQL_CREATE_FTS_DELETE_TRIGGER);
+
+                    db.execSQL("DROP TABLE " + STATS_BREED_TABLE_NAME + ";");
+                    db.execSQL("CREATE TABLE " + STATS_BREED_TABLE_NAME + "("
+                            + COLUMN_PET_BREED_ID + " INTEGER PRIMARY KEY,"
+                            + COLUMN_STATS_COUNT + " INTEGER NOT NULL);");
+                    db.execSQL("CREATE INDEX pet_stats_breed_count_index ON " + STATS_BREED_TABLE_NAME
+                            + "(" + COLUMN_STATS_COUNT + " DESC);");
+                    db.execSQL("INSERT INTO " + STATS_BREED_TABLE_NAME
+                            + " SELECT " + COLUMN_PET_BREED_ID + ", COUNT(*) FROM " + PetEntry.TABLE_NAME
+                            + " WHERE " + COLUMN_PET_BREED_ID + " IS NOT NULL"
+                            + " GROUP BY " + COLUMN_PET_BREED_ID + ";");
+                    db.execSQL("CREATE TRIGGER pets_stats_insert AFTER INSERT ON " + PetEntry.TABLE_NAME
+                            + " BEGIN " + statsAdd("new", COLUMN_PET_BREED_ID) + "END;");
+                    db.execSQL("CREATE TRIGGER pets_stats_update AFTER UPDATE OF "
+                            + COLUMN_PET_BREED_ID + ", " + PetEntry.COLUMN_PET_GENDER + ", "
+                            + PetEntry.COLUMN_PET_WEIGHT + " ON " + PetEntry.TABLE_NAME
+                            + " BEGIN " + statsRemove("old", COLUMN_PET_BREED_ID)
+                            + statsAdd("new", COLUMN_PET_BREED_ID) + "END;");
+                    db.execSQL(createStatsDeleteTrigger(COLUMN_PET_BREED_ID, null));
+                }
+            },
+            // Change log for incremental sync
+            new Migration(7) {
+                @Override
+                void apply(SQLiteDatabase db) {
+                    db.execSQL("CREATE TABLE " + CHANGES_TABLE_NAME + "("
+                            + COLUMN_CHANGE_SEQ + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+                            + COLUMN_CHANGE_PET_ID + " INTEGER NOT NULL UNIQUE,"
+                            + COLUMN_CHANGE_DELETED + " INTEGER NOT NULL,"
+                            + COLUMN_CHANGE_TIME + " INTEGER NOT NULL);");
+                    // tombstones in log order, for compaction
+                    db.execSQL("CREATE INDEX pet_changes_deleted_index ON " + CHANGES_TABLE_NAME
+                            + "(" + COLUMN_CHANGE_DELETED + ", " + COLUMN_CHANGE_SEQ + ");");
+                    db.execSQL("INSERT INTO " + CHANGES_TABLE_NAME + "(" + COLUMN_CHANGE_PET_ID + ", "
+                            + COLUMN_CHANGE_DELETED + ", " + COLUMN_CHANGE_TIME + ")"
+                            + " SELECT " + PetEntry._ID + ", 0, " + SQL_NOW + " FROM " + PetEntry.TABLE_NAME
+                            + " ORDER BY " + PetEntry._ID + ";");
+                    db.execSQL("CREATE TRIGGER pets_changes_insert AFTER INSERT ON " + PetEntry.TABLE_NAME
+                            + " BEGIN " + recordChange("new." + PetEntry._ID, "0") + "END;");
+                    // a changed id counts as deleting the old pet
+                    db.execSQL("CREATE TRIGGER pets_changes_update AFTER UPDATE ON " + PetEntry.TABLE_NAME
+                            + " BEGIN INSERT OR REPLACE INTO " + CHANGES_TABLE_NAME + "("
+                            + COLUMN_CHANGE_PET_ID + ", " + COLUMN_CHANGE_DELETED + ", " + COLUMN_CHANGE_TIME + ")"
+                            + " SELECT old." + PetEntry._ID + ", 1, " + SQL_NOW
+                            + " WHERE old." + PetEntry._ID + " <> new." + PetEntry._ID + "; "
+                            + recordChange("new." + PetEntry._ID, "0") + "END;");
+                    db.execSQL(createChangesDeleteTrigger(null));
+                }
+            },
+            // Deleted flag, so that deletes only mark pets and a background job purges them
+            new Migration(8) {
+                @Override
+                void apply(SQLiteDatabase db) {
+                    db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN "
+                            + COLUMN_PET_DELETED + " INTEGER NOT NULL DEFAULT 0;");
+                    // finds the marked pets for the purge
+                    db.execSQL("CREATE INDEX pets_deleted_index ON " + PetEntry.TABLE_NAME
+                            + "(" + COLUMN_PET_DELETED + ");");
+                    db.execSQL("DROP VIEW " + PETS_VIEW_NAME + ";");
+                    // The unary + keeps SQLite from using that index for the view: almost every
+                    // pet is live, and reading them through it would beat the sort indexes
+                    db.execSQL(createPetsView("+p." + COLUMN_PET_DELETED + " = 0"));
+
+                    // Marking a pet deleted counts as deleting it for the statistics and the
+                    // change log, and purging it later does not count again
+                    db.execSQL("DROP TRIGGER pets_stats_insert;");
+                    db.execSQL("DROP TRIGGER pets_stats_update;");
+                    db.execSQL("DROP TRIGGER pets_stats_delete;");
+                    db.execSQL("CREATE TRIGGER pets_stats_insert AFTER INSERT ON " + PetEntry.TABLE_NAME
+                            + " WHEN new." + COLUMN_PET_DELETED + " = 0"
+                            + " BEGIN " + statsAdd("new", COLUMN_PET_BREED_ID) + "END;");
+                    db.execSQL("CREATE TRIGGER pets_stats_update AFTER UPDATE OF "
+                            + COLUMN_PET_BREED_ID + ", " + PetEntry.COLUMN_PET_GENDER + ", "
+                            + PetEntry.COLUMN_PET_WEIGHT + ", " + COLUMN_PET_DELETED
+                            + " ON " + PetEntry.TABLE_NAME + " WHEN old." + COLUMN_PET_DELETED + " = 0"
+                            + " BEGIN " + statsRemove("old", COLUMN_PET_BREED_ID) + "END;");
+                    db.execSQL("CREATE TRIGGER pets_stats_update_add AFTER UPDATE OF "
+                            + COLUMN_PET_BREED_ID + ", " + PetEntry.COLUMN_PET_GENDER + ", "
+                            + PetEntry.COLUMN_PET_WEIGHT + ", " + COLUMN_PET_DELETED
+                            + " ON " + PetEntry.TABLE_NAME + " WHEN new." + COLUMN_PET_DELETED + " = 0"
+                            + " BEGIN " + statsAdd("new", COLUMN_PET_BREED_ID) + "END;");
+                    db.execSQL(SQL_CREATE_STATS_DELETE_TRIGGER);
+
+                    db.execSQL("DROP TRIGGER pets_changes_update;");
+                    db.execSQL("DROP TRIGGER pets_changes_delete;");
+                    db.execSQL("CREATE TRIGGER pets_changes_update AFTER UPDATE ON " + PetEntry.TABLE_NAME
+                            + " BEGIN INSERT OR REPLACE INTO " + CHANGES_TABLE_NAME + "("
+                            + COLUMN_CHANGE_PET_ID + ", " + COLUMN_CHANGE_DELETED + ", " + COLUMN_CHANGE_TIME + ")"
+                            + " SELECT old." + PetEntry._ID + ", 1, " + SQL_NOW
+                            + " WHERE old." + PetEntry._ID + " <> new." + PetEntry._ID + "; "
+                            + recordChange("new." + PetEntry._ID, "new." + COLUMN_PET_DELETED) + "END;");
+                    db.execSQL(SQL_CREATE_CHANGES_DELETE_TRIGGER);
+
+                    // marked pets leave the full-text table right away, so that searches do not
+                    // rank them; the delete trigger finds nothing left when they are purged
+                    db.execSQL("CREATE TRIGGER pets_fts_soft_delete AFTER UPDATE OF "
+                            + COLUMN_PET_DELETED + " ON " + PetEntry.TABLE_NAME
+                            + " WHEN new." + COLUMN_PET_DELETED + " = 1 AND old." + COLUMN_PET_DELETED + " = 0"
+                            + " BEGIN DELETE FROM " + FTS_TABLE_NAME + " WHERE docid = old." + PetEntry._ID + "; END;");
+                }
+            },
+    };
+
+    /**
+     * Values for the {@code synchronous} pragma. With write-ahead logging, NORMAL only syncs at
+     * checkpoints and is still safe against corruption; FULL also syncs every commit.
+     */
+    public static final String SYNCHRONOUS_OFF = "OFF";
+    public static final String SYNCHRONOUS_NORMAL = "NORMAL";
+    public static final String SYNCHRONOUS_FULL = "FULL";
+
+    /**
+     * Default number of WAL pages after which a commit triggers a checkpoint (SQLite's default).
+     */
+    public static final int DEFAULT_WAL_AUTOCHECKPOINT = 1000;
+
+    /**
+     * Value of the {@code auto_vacuum} pragma for incremental mode.
+     */
+    private static final long AUTO_VACUUM_INCREMENTAL = 2;
+
+    private final int mShard;
+    private final boolean mWriteAheadLogging;
+    private final String mSynchronous;
+    private final int mWalAutoCheckpoint;
+
+    /**
+     * Open the database with write-ahead logging, {@link #SYNCHRONOUS_NORMAL} and the default
+     * checkpoint interval.
+     */
     public PetDbHelper(Context context) {
-        super(context, DB_NAME, null, DB_VERSION);
+        this(context, 0);
+    }
+
+    /**
+     * Open the database of the given shard, with the same settings as
+     * {@link #PetDbHelper(Context)}.
+     */
+    public PetDbHelper(Context context, int shard) {
+        this(context, shard, true, SYNCHRONOUS_NORMAL, DEFAULT_WAL_AUTOCHECKPOINT);
+    }
+
+    /**
+     * @param writeAheadLogging Use write-ahead logging, so readers are not blocked by a writer
+     * @param synchronous       One of the SYNCHRONOUS_ constants
+     * @param walAutoCheckpoint Number of WAL pages after which a checkpoint runs, or 0 to disable
+     *                          automatic checkpoints
+     */
+    public PetDbHelper(Context context, boolean writeAheadLogging, String synchronous,
+                       int walAutoCheckpoint) {
+        this(context, 0, writeAheadLogging, synchronous, walAutoCheckpoint);
+    }
+
+    /**
+     * @param shard Shard of the database, 0 for {@link #DB_NAME}
+     * @see #PetDbHelper(Context, boolean, String, int)
+     */
+    public PetDbHelper(Context context, int shard, boolean writeAheadLogging, String synchronous,
+                       int walAutoCheckpoint) {
+        super(context, getDatabaseName(shard), null, DB_VERSION);
+        mShard = shard;
+        mWriteAheadLogging = writeAheadLogging;
+        mSynchronous = synchronous;
+        mWalAutoCheckpoint = walAutoCheckpoint;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(writeAheadLogging);
+        }
+    }
+
+
+    /**
+     * Returns the file name of the database of the given shard.
+     */
+    public static String getDatabaseName(int shard) {
+        return shard == 0 ? DB_NAME : "shelter_" + shard + ".db";
     }
 
+    /**
+     * Returns the shard holding the pet with the given id.
+     */
+    static long getShard(long id) {
+        return id >>> SHARD_ID_SHIFT;
+    }
 
+    /**
+     * Create the version 1 schema, then bring it up to date with the migrations. The ids and
+     * change sequence numbers of a new shard start at its first id.
+     */
     @Override
     public void onCreate(SQLiteDatabase db) {
         String SQL_CREATE_PETS_TABLE = "CREATE TABLE " + PetEntry.TABLE_NAME
@@ -29,11 +549,168 @@ public class PetDbHelper extends SQLiteOpenHelper {
                 + PetEntry.COLUMN_PET_WEIGHT + " INTEGER NOT NULL DEFAULT 0);";
         db.execSQL(SQL_CREATE_PETS_TABLE);
 
+        migrate(db, 1, DB_VERSION);
+        if (mShard > 0) {
+            for (String table : new String[]{PetEntry.TABLE_NAME, CHANGES_TABLE_NAME}) {
+                ContentValues sequence = new ContentValues();
+                sequence.put("name", table);
+                sequence.put("seq", (long) mShard << SHARD_ID_SHIFT);
+                db.insert("sqlite_sequence", null, sequence);
+            }
+        }
+    }
 
+    /**
+     * Apply the journal settings to the primary connection. Before Jelly Bean
+     * setWriteAheadLoggingEnabled() is not available, so WAL is turned on here instead.
+     */
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (db.isReadOnly()) {
+            return;
+        }
+        if (mWriteAheadLogging && Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            db.enableWriteAheadLogging();
+        }
+        db.execSQL("PRAGMA synchronous = " + mSynchronous);
+        if (mWriteAheadLogging) {
+            // wal_autocheckpoint returns the new value, so it has to go through a query
+            Cursor cursor = db.rawQuery("PRAGMA wal_autocheckpoint = " + mWalAutoCheckpoint, null);
+            cursor.close();
+        }
     }
 
     @Override
-    public void onUpgrade(SQLiteDatabase sqLiteDatabase, int i, int i1) {
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        migrate(db, oldVersion, newVersion);
+    }
+
+    /**
+     * Run, in order, every migration after {@code fromVersion} up to and including
+     * {@code toVersion}. They all run in the single transaction SQLiteOpenHelper wraps around
+     * onCreate and onUpgrade, so if one fails the whole upgrade rolls back and the database stays
+     * at {@code fromVersion}, to be upgraded again on the next open.
+     */
+    private static void migrate(SQLiteDatabase db, int fromVersion, int toVersion) {
+        for (Migration migration : MIGRATIONS) {
+            if (migration.version <= fromVersion || migration.version > toVersion) {
+                continue;
+            }
+            migration.apply(db);
+        }
+    }
+
+    /**
+     * Delete every pet and everything derived from the pets table. Must be called inside a
+     * transaction. Pets marked deleted are removed as well.
+     *
+     * A DELETE without WHERE lets SQLite drop all pages of the table at once instead of deleting
+     * row by row, but only if the table has no delete triggers. So the triggers are dropped for
+     * the duration, and the tables they maintain are emptied the same way. The breed dictionary
+     * is emptied too, so cached breed ids must be dropped afterwards. The change log is emptied
+     * as well and only gets a {@link #SQL_CHANGE_RESET_PET_ID} entry, instead of a tombstone
+     * for every pet.
+     *
+     * @param resetIds Also forget the last AUTOINCREMENT id, so ids start from the first id of
+     *                 the shard again, 1 for shard 0
+     */
+    static void truncatePets(SQLiteDatabase db, boolean resetIds) {
+        db.execSQL("DROP TRIGGER IF EXISTS pets_fts_delete;");
+        db.execSQL("DROP TRIGGER IF EXISTS pets_stats_delete;");
+        db.execSQL("DROP TRIGGER IF EXISTS pets_changes_delete;");
+        db.execSQL("DELETE FROM " + PetEntry.TABLE_NAME + ";");
+        // one entry stands for every pet, the sequence numbers go on from where they were
+        db.execSQL("DELETE FROM " + CHANGES_TABLE_NAME + ";");
+        db.execSQL(recordChange(SQL_CHANGE_RESET_PET_ID, "1"));
+        // deleting from a virtual table is row by row too, recreating it is not
+        db.execSQL("DROP TABLE IF EXISTS " + FTS_TABLE_NAME + ";");
+        db.execSQL(SQL_CREATE_FTS_TABLE);
+        db.execSQL("DELETE FROM " + STATS_GENDER_TABLE_NAME + ";");
+        db.execSQL("DELETE FROM " + STATS_BREED_TABLE_NAME + ";");
+        // no pet refers to a breed anymore
+        db.execSQL("DELETE FROM " + BREEDS_TABLE_NAME + ";");
+        db.execSQL(SQL_CREATE_FTS_DELETE_TRIGGER);
+        db.execSQL(SQL_CREATE_STATS_DELETE_TRIGGER);
+        db.execSQL(SQL_CREATE_CHANGES_DELETE_TRIGGER);
+        if (resetIds) {
+            // keeps the shard bits
+            db.execSQL("UPDATE sqlite_sequence SET seq = (seq >> " + SHARD_ID_SHIFT + ") << "
+                    + SHARD_ID_SHIFT + " WHERE name = ?", new Object[]{PetEntry.TABLE_NAME});
+        }
+    }
+
+    /**
+     * Hard delete up to {@code limit} pets marked {@link #COLUMN_PET_DELETED}, and return how many
+     * were deleted. The triggers leave them alone, since they already left the statistics, the
+     * change log and the full-text table when they were marked.
+     */
+    static int purgeDeletedPets(SQLiteDatabase db, int limit) {
+        return db.delete(PetEntry.TABLE_NAME, PetEntry._ID + " IN (SELECT " + PetEntry._ID
+                        + " FROM " + PetEntry.TABLE_NAME + " WHERE " + COLUMN_PET_DELETED + " = 1"
+                        + " LIMIT " + limit + ")", null);
+    }
+
+    /**
+     * Remove the tombstones of pets deleted before the given time from the change log, and
+     * return how many were removed. Only the tombstones being removed are read, in log order,
+     * so this stays cheap however large the log is.
+     *
+     * @param beforeSeconds Time in seconds since the epoch
+     */
+    static int compactChanges(SQLiteDatabase db, long beforeSeconds) {
+        // tombstones are in time order along the log, so everything before the first recent one
+        // is old
+        return db.delete(CHANGES_TABLE_NAME, COLUMN_CHANGE_DELETED + " = 1 AND "
+                        + COLUMN_CHANGE_SEQ + " < IFNULL((SELECT " + COLUMN_CHANGE_SEQ
+                        + " FROM " + CHANGES_TABLE_NAME + " WHERE " + COLUMN_CHANGE_DELETED + " = 1"
+                        + " AND " + COLUMN_CHANGE_TIME + " >= ? ORDER BY " + COLUMN_CHANGE_SEQ
+                        + " LIMIT 1), " + Long.MAX_VALUE + ")",
+                new String[]{String.valueOf(beforeSeconds)});
+    }
+
+    /**
+     * Give the free pages of the database file back to the file system. Must be called outside
+     * of a transaction, and not on the main thread.
+     *
+     * This uses incremental auto-vacuum. A database that does not have it yet is switched over
+     * first, which takes a VACUUM, as the pragma alone only takes effect on an empty file and
+     * SQLiteOpenHelper has written android_metadata before onCreate. The VACUUM copies the whole
+     * database and frees every page at once, so it is cheapest right after the pets were
+     * deleted. If it fails, for example for lack of space for the copy, the next call tries
+     * again.
+     */
+    static void vacuumFreePages(SQLiteDatabase db) {
+        if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) != AUTO_VACUUM_INCREMENTAL) {
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            try {
+                db.execSQL("VACUUM");
+            } catch (SQLiteException e) {
+                Log.w(LOG_TAG, "Switching " + db.getPath() + " to incremental auto-vacuum failed", e);
+            }
+            return;
+        }
+        // incremental_vacuum frees pages while its result is being stepped through
+        Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum", null);
+        try {
+            while (cursor.moveToNext()) {
+                // nothing to read
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * One step of the schema history, upgrading from the previous version to {@link #version}.
+     */
+    abstract static class Migration {
+        final int version;
+
+        Migration(int version) {
+            this.version = version;
+        }
 
+        abstract void apply(SQLiteDatabase db);
     }
 }
@@ -0,0 +1,244 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Locale;
+
+/**
+ * Streams the pets table to a byte channel as CSV or newline-delimited JSON.
+ *
+ * Pets are read in pages of {@link #ROWS_PER_QUERY} by _id, one database after the other, and
+ * every row is encoded into a fixed-size buffer that is written out whenever it fills up, so
+ * memory use does not depend on the number of pets. Each page is a separate query, so a pet
+ * changed while the export runs may show up with either its old or its new values.
+ */
+final class PetExporter {
+
+    /**
+     * Exported columns, in output order.
+     */
+    static final String[] COLUMNS = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT
+    };
+
+    /**
+     * Number of pets read per query.
+     */
+    static final int ROWS_PER_QUERY = 1000;
+
+    /**
+     * Size of the output buffer in bytes.
+     */
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private final WritableByteChannel mChannel;
+    private final boolean mJson;
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final CharsetEncoder mEncoder = Charset.forName("UTF-8").newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    /**
+     * The row being encoded, reused for every row.
+     */
+    private final StringBuilder mRow = new StringBuilder(256);
+
+    private PetExporter(WritableByteChannel channel, boolean json) {
+        mChannel = channel;
+        mJson = json;
+    }
+
+    /**
+     * Write every pet of the given databases to the channel in the format of the given export
+     * MIME type and return the number of pets written. The channel is not closed. The ids of a
+     * shard are all below those of the next one, so passing the shards in order keeps the pets
+     * in _id order.
+     *
+     * @param mimeType {@link PetEntry#EXPORT_TYPE_CSV} or {@link PetEntry#EXPORT_TYPE_NDJSON}
+     */
+    static long export(SQLiteDatabase[] dbs, WritableByteChannel channel, String mimeType)
+            throws IOException {
+        boolean json;
+        if (PetEntry.EXPORT_TYPE_CSV.equals(mimeType)) {
+            json = false;
+        } else if (PetEntry.EXPORT_TYPE_NDJSON.equals(mimeType)) {
+            json = true;
+        } else {
+            throw new IllegalArgumentException("Unsupported export type " + mimeType);
+        }
+        return new PetExporter(channel, json).exportPets(dbs);
+    }
+
+    private long exportPets(SQLiteDatabase[] dbs) throws IOException {
+        if (!mJson) {
+            for (int i = 0; i < COLUMNS.length; i++) {
+                if (i > 0) mRow.append(',');
+                mRow.append(COLUMNS[i]);
+            }
+            mRow.append('\n');
+            encodeRow();
+        }
+
+        long count = 0;
+        for (SQLiteDatabase db : dbs) {
+            count += exportPets(db);
+        }
+
+        mEncoder.encode(CharBuffer.allocate(0), mBuffer, true);
+        mEncoder.flush(mBuffer);
+        writeBuffer();
+        return count;
+    }
+
+    private long exportPets(SQLiteDatabase db) throws IOException {
+        long count = 0;
+        long lastId = 0;
+        String[] selectionArgs = new String[1];
+        while (true) {
+            selectionArgs[0] = String.valueOf(lastId);
+            Cursor cursor = db.query(PetDbHelper.PETS_VIEW_NAME, COLUMNS, PetEntry._ID + ">?",
+                    selectionArgs, null, null, PetEntry._ID + " ASC",
+                    String.valueOf(ROWS_PER_QUERY));
+            int rows;
+            try {
+                rows = cursor.getCount();
+                while (cursor.moveToNext()) {
+                    lastId = cursor.getLong(0);
+                    if (mJson) {
+                        appendJsonRow(cursor);
+                    } else {
+                        appendCsvRow(cursor);
+                    }
+                    encodeRow();
+                }
+            } finally {
+                cursor.close();
+            }
+            count += rows;
+            if (rows < ROWS_PER_QUERY) {
+                break;
+            }
+        }
+        return count;
+    }
+
+    private void appendCsvRow(Cursor cursor) {
+        mRow.append(cursor.getLong(0)).append(',');
+        appendCsvField(cursor.getString(1));
+        mRow.append(',');
+        appendCsvField(cursor.getString(2));
+        mRow.append(',').append(cursor.getInt(3))
+                .append(',').append(cursor.getInt(4))
+                .append('\n');
+    }
+
+    /**
+     * Append a text field, quoted as in RFC 4180 if needed. Null is written as an empty field.
+     */
+    private void appendCsvField(String value) {
+        if (value == null) {
+            return;
+        }
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            mRow.append(value);
+            return;
+        }
+        mRow.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') mRow.append('"');
+            mRow.append(c);
+        }
+        mRow.append('"');
+    }
+
+    private void appendJsonRow(Cursor cursor) {
+        mRow.append("{\"").append(COLUMNS[0]).append("\":").append(cursor.getLong(0));
+        mRow.append(",\"").append(COLUMNS[1]).append("\":");
+        appendJsonString(cursor.getString(1));
+        mRow.append(",\"").append(COLUMNS[2]).append("\":");
+        appendJsonString(cursor.getString(2));
+        mRow.append(",\"").append(COLUMNS[3]).append("\":").append(cursor.getInt(3));
+        mRow.append(",\"").append(COLUMNS[4]).append("\":").append(cursor.getInt(4));
+        mRow.append("}\n");
+    }
+
+    private void appendJsonString(String value) {
+        if (value == null) {
+            mRow.append("null");
+            return;
+        }
+        mRow.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    mRow.append("\\\"");
+                    break;
+                case '\\':
+                    mRow.append("\\\\");
+                    break;
+                case '\n':
+                    mRow.append("\\n");
+                    break;
+                case '\r':
+                    mRow.append("\\r");
+                    break;
+                case '\t':
+                    mRow.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        mRow.append(String.format(Locale.US, "\\u%04x", (int) c));
+                    } else {
+                        mRow.append(c);
+                    }
+            }
+        }
+        mRow.append('"');
+    }
+
+    /**
+     * Encode the current row into the output buffer, writing the buffer out whenever it is full,
+     * and clear the row.
+     */
+    private void encodeRow() throws IOException {
+        CharBuffer chars = CharBuffer.wrap(mRow);
+        while (true) {
+            CoderResult result = mEncoder.encode(chars, mBuffer, false);
+            if (!result.isOverflow()) {
+                break;
+            }
+            writeBuffer();
+        }
+        mRow.setLength(0);
+    }
+
+    private void writeBuffer() throws IOException {
+        mBuffer.flip();
+        while (mBuffer.hasRemaining()) {
+            mChannel.write(mBuffer);
+        }
+        mBuffer.clear();
+    }
+}
@@ -0,0 +1,176 @@
+package com.example.android.pets.data;
+
+import android.net.Uri;
+import android.text.TextUtils;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * Filter and sort order for lists of pets, carried as typed query parameters on
+ * {@link PetEntry#CONTENT_URI} and turned into SQL by the provider.
+ *
+ * Every field is optional; null means no restriction.
+ */
+public final class PetFilter {
+
+    /**
+     * All pets in the order they were added.
+     */
+    public static final PetFilter NONE = new PetFilter(null, null, null, null, PetEntry.SORT_ID);
+
+    /**
+     * Only pets of this gender, one of the GENDER_ constants of {@link PetEntry}.
+     */
+    public final Integer gender;
+
+    /**
+     * Only pets weighing at least / at most this much.
+     */
+    public final Integer minWeight;
+    public final Integer maxWeight;
+
+    /**
+     * Only pets whose breed starts with this text, ignoring case.
+     */
+    public final String breedPrefix;
+
+    /**
+     * Sort key, one of the SORT_ constants of {@link PetEntry}.
+     */
+    public final String sort;
+
+    /**
+     * @throws IllegalArgumentException if the gender, a weight or the sort key is invalid
+     */
+    public PetFilter(Integer gender, Integer minWeight, Integer maxWeight, String breedPrefix,
+                     String sort) {
+        if (gender != null && !PetEntry.isValidGender(gender)) {
+            throw new IllegalArgumentException("Pet gender is invalid");
+        }
+        if ((minWeight != null && !PetEntry.isValidWeight(minWeight))
+                || (maxWeight != null && !PetEntry.isValidWeight(maxWeight))) {
+            throw new IllegalArgumentException("Weight not valid");
+        }
+        if (!PetEntry.SORT_ID.equals(sort) && !PetEntry.SORT_NAME.equals(sort)
+                && !PetEntry.SORT_WEIGHT.equals(sort)) {
+            throw new IllegalArgumentException("Unknown sort key " + sort);
+        }
+        this.gender = gender;
+        this.minWeight = minWeight;
+        this.maxWeight = maxWeight;
+        this.breedPrefix = TextUtils.isEmpty(breedPrefix) ? null : breedPrefix;
+        this.sort = sort;
+    }
+
+    /**
+     * Read the filter from the query parameters of the given URI. Missing parameters mean no
+     * restriction.
+     *
+     * @throws IllegalArgumentException if a parameter is invalid
+     */
+    public static PetFilter fromUri(Uri uri) {
+        String sort = uri.getQueryParameter(PetEntry.QUERY_PARAMETER_SORT);
+        return new PetFilter(
+                parseInteger(uri, PetEntry.QUERY_PARAMETER_GENDER),
+                parseInteger(uri, PetEntry.QUERY_PARAMETER_MIN_WEIGHT),
+                parseInteger(uri, PetEntry.QUERY_PARAMETER_MAX_WEIGHT),
+                uri.getQueryParameter(PetEntry.QUERY_PARAMETER_BREED_PREFIX),
+                sort == null ? PetEntry.SORT_ID : sort);
+    }
+
+    /**
+     * Append the filter as query parameters. Parameters without a restriction are left out.
+     */
+    public Uri.Builder appendTo(Uri.Builder builder) {
+        appendParameter(builder, PetEntry.QUERY_PARAMETER_GENDER, gender);
+        appendParameter(builder, PetEntry.QUERY_PARAMETER_MIN_WEIGHT, minWeight);
+        appendParameter(builder, PetEntry.QUERY_PARAMETER_MAX_WEIGHT, maxWeight);
+        appendParameter(builder, PetEntry.QUERY_PARAMETER_BREED_PREFIX, breedPrefix);
+        if (!PetEntry.SORT_ID.equals(sort)) {
+            builder.appendQueryParameter(PetEntry.QUERY_PARAMETER_SORT, sort);
+        }
+        return builder;
+    }
+
+    /**
+     * Build the content URI for one page of the filtered pets in the filter's order, i.e. at
+     * most {@code limit} pets after the pet with the given id and sort key. Use 0 and null to
+     * get the first page.
+     *
+     * @param afterKey Value of the {@link #getSortColumn() sort column} of the last pet of the
+     *                 previous page; not needed when sorting by {@link PetEntry#_ID}
+     */
+    public Uri buildPageUri(long afterId, String afterKey, int limit) {
+        if (afterId == 0 && afterKey == null && !PetEntry.SORT_ID.equals(sort)) {
+            // The first page in another order than by id has no pet to page after, and the
+            // provider requires a sort key with "after". The sort parameter orders it already.
+            return appendTo(PetEntry.CONTENT_URI.buildUpon())
+                    .appendQueryParameter(PetEntry.QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+                    .build();
+        }
+        Uri.Builder builder = appendTo(PetEntry.buildPageUri(afterId, limit).buildUpon());
+        if (afterKey != null && !PetEntry.SORT_ID.equals(sort)) {
+            builder.appendQueryParameter(PetEntry.QUERY_PARAMETER_AFTER_KEY, afterKey);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns the column the pets are sorted by, before {@link PetEntry#_ID}.
+     */
+    public String getSortColumn() {
+        if (PetEntry.SORT_NAME.equals(sort)) {
+            return PetEntry.COLUMN_PET_NAME;
+        } else if (PetEntry.SORT_WEIGHT.equals(sort)) {
+            return PetEntry.COLUMN_PET_WEIGHT;
+        }
+        return PetEntry._ID;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof PetFilter)) {
+            return false;
+        }
+        PetFilter other = (PetFilter) o;
+        return equal(gender, other.gender)
+                && equal(minWeight, other.minWeight)
+                && equal(maxWeight, other.maxWeight)
+                && equal(breedPrefix, other.breedPrefix)
+                && sort.equals(other.sort);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = gender != null ? gender.hashCode() : 0;
+        result = 31 * result + (minWeight != null ? minWeight.hashCode() : 0);
+        result = 31 * result + (maxWeight != null ? maxWeight.hashCode() : 0);
+        result = 31 * result + (breedPrefix != null ? breedPrefix.hashCode() : 0);
+        return 31 * result + sort.hashCode();
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static Integer parseInteger(Uri uri, String parameter) {
+        String value = uri.getQueryParameter(parameter);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Integer.valueOf(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + parameter + " in " + uri, e);
+        }
+    }
+
+    private static void appendParameter(Uri.Builder builder, String parameter, Object value) {
+        if (value != null) {
+            builder.appendQueryParameter(parameter, String.valueOf(value));
+        }
+    }
+}
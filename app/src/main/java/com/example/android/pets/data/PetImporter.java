@@ -0,0 +1,407 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Imports pets from CSV or newline-delimited JSON, in the formats written by the
+ * {@link PetEntry#CONTENT_EXPORT_URI export}.
+ *
+ * The input is decoded from a buffered channel and parsed one row at a time. Valid rows are
+ * collected into chunks that are written with {@link ContentResolver#bulkInsert}, so each chunk
+ * is one transaction and one change notification. Invalid rows are skipped and reported in the
+ * {@link Result} instead of failing the import. Memory use depends on the chunk size, not on
+ * the size of the input.
+ *
+ * Imports block while they run, so they must not be started on the main thread.
+ */
+public class PetImporter {
+
+    private static final String LOG_TAG = PetImporter.class.getSimpleName();
+
+    /**
+     * Default number of pets written per transaction.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 5000;
+
+    /**
+     * Number of row errors kept in a {@link Result}. Further errors are only counted.
+     */
+    public static final int MAX_REPORTED_ERRORS = 1000;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Receives progress on the importing thread, after every chunk is written.
+     */
+    public interface ProgressListener {
+        void onProgress(long rowsRead, long rowsImported, long rowsFailed);
+    }
+
+    /**
+     * A row that was not imported.
+     */
+    public static final class RowError {
+        /**
+         * Number of the row in the input, starting from 1 and not counting a CSV header.
+         */
+        public final long row;
+        public final String message;
+
+        RowError(long row, String message) {
+            this.row = row;
+            this.message = message;
+        }
+
+        @Override
+        public String toString() {
+            return "row " + row + ": " + message;
+        }
+    }
+
+    /**
+     * Outcome of an import.
+     */
+    public static final class Result {
+        public final long rowsRead;
+        public final long rowsImported;
+        public final long rowsFailed;
+
+        /**
+         * The first {@link #MAX_REPORTED_ERRORS} failed rows.
+         */
+        public final List<RowError> errors;
+
+        Result(long rowsRead, long rowsImported, long rowsFailed, List<RowError> errors) {
+            this.rowsRead = rowsRead;
+            this.rowsImported = rowsImported;
+            this.rowsFailed = rowsFailed;
+            this.errors = Collections.unmodifiableList(errors);
+        }
+    }
+
+    private final ContentResolver mContentResolver;
+    private final int mChunkSize;
+
+    public PetImporter(ContentResolver contentResolver) {
+        this(contentResolver, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param chunkSize Number of pets written per transaction
+     */
+    public PetImporter(ContentResolver contentResolver, int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Invalid chunk size " + chunkSize);
+        }
+        mContentResolver = contentResolver;
+        mChunkSize = chunkSize;
+    }
+
+    /**
+     * Import the pets in the file at the given content or file URI.
+     *
+     * @param mimeType {@link PetEntry#EXPORT_TYPE_CSV} or {@link PetEntry#EXPORT_TYPE_NDJSON}
+     * @param listener Progress listener, or null
+     */
+    public Result importPets(Uri source, String mimeType, ProgressListener listener)
+            throws IOException {
+        ParcelFileDescriptor file = mContentResolver.openFileDescriptor(source, "r");
+        if (file == null) {
+            throw new FileNotFoundException("Cannot open " + source);
+        }
+        FileInputStream in = new ParcelFileDescriptor.AutoCloseInputStream(file);
+        try {
+            return importPets(in.getChannel(), mimeType, listener);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Import the pets read from the given channel, which is not closed.
+     *
+     * @param mimeType {@link PetEntry#EXPORT_TYPE_CSV} or {@link PetEntry#EXPORT_TYPE_NDJSON}
+     * @param listener Progress listener, or null
+     */
+    public Result importPets(ReadableByteChannel channel, String mimeType,
+                             ProgressListener listener) throws IOException {
+        CharsetDecoder decoder = Charset.forName("UTF-8").newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        Reader reader = Channels.newReader(channel, decoder, BUFFER_SIZE);
+        Import run = new Import(listener);
+        if (PetEntry.EXPORT_TYPE_CSV.equals(mimeType)) {
+            readCsv(reader, run);
+        } else if (PetEntry.EXPORT_TYPE_NDJSON.equals(mimeType)) {
+            readNdjson(reader, run);
+        } else {
+            throw new IllegalArgumentException("Unsupported import type " + mimeType);
+        }
+        run.writeChunk();
+        return new Result(run.rowsRead, run.rowsImported, run.rowsFailed, run.errors);
+    }
+
+    /**
+     * Read CSV with a header row naming the columns. Unknown columns, such as _id, are ignored.
+     */
+    private void readCsv(Reader reader, Import run) throws IOException {
+        CsvReader csv = new CsvReader(reader);
+        List<String> fields = new ArrayList<>();
+        if (!csv.readRecord(fields)) {
+            return;
+        }
+        int nameIndex = fields.indexOf(PetEntry.COLUMN_PET_NAME);
+        int breedIndex = fields.indexOf(PetEntry.COLUMN_PET_BREED);
+        int genderIndex = fields.indexOf(PetEntry.COLUMN_PET_GENDER);
+        int weightIndex = fields.indexOf(PetEntry.COLUMN_PET_WEIGHT);
+        while (csv.readRecord(fields)) {
+            if (fields.size() == 1 && fields.get(0).isEmpty()) {
+                // blank line
+                continue;
+            }
+            run.addRow(field(fields, nameIndex), field(fields, breedIndex),
+                    field(fields, genderIndex), field(fields, weightIndex));
+        }
+    }
+
+    private void readNdjson(Reader reader, Import run) throws IOException {
+        BufferedReader lines = new BufferedReader(reader, BUFFER_SIZE);
+        String line;
+        while ((line = lines.readLine()) != null) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            JSONObject pet;
+            try {
+                pet = new JSONObject(line);
+            } catch (JSONException e) {
+                run.rowsRead++;
+                run.fail("Malformed JSON: " + e.getMessage());
+                continue;
+            }
+            run.addRow(field(pet, PetEntry.COLUMN_PET_NAME), field(pet, PetEntry.COLUMN_PET_BREED),
+                    field(pet, PetEntry.COLUMN_PET_GENDER), field(pet, PetEntry.COLUMN_PET_WEIGHT));
+        }
+    }
+
+    private static String field(List<String> fields, int index) {
+        if (index < 0 || index >= fields.size() || fields.get(index).isEmpty()) {
+            return null;
+        }
+        return fields.get(index);
+    }
+
+    private static String field(JSONObject object, String key) {
+        return object.isNull(key) ? null : object.opt(key).toString();
+    }
+
+    /**
+     * State of one import: the chunk being collected and the counts so far.
+     */
+    private class Import {
+        final ProgressListener listener;
+        final List<ContentValues> chunk = new ArrayList<>(mChunkSize);
+        final long[] chunkRows = new long[mChunkSize];
+        final List<RowError> errors = new ArrayList<>();
+        long rowsRead;
+        long rowsImported;
+        long rowsFailed;
+
+        Import(ProgressListener listener) {
+            this.listener = listener;
+        }
+
+        /**
+         * Validate a row with the same rules as the provider and add it to the chunk, or report
+         * it as failed.
+         */
+        void addRow(String name, String breed, String gender, String weight) {
+            rowsRead++;
+            if (name == null) {
+                fail("Pet requires a name");
+                return;
+            }
+            int genderValue;
+            try {
+                genderValue = gender == null ? -1 : Integer.parseInt(gender.trim());
+            } catch (NumberFormatException e) {
+                genderValue = -1;
+            }
+            if (!PetEntry.isValidGender(genderValue)) {
+                fail("Pet gender is invalid: " + gender);
+                return;
+            }
+            int weightValue;
+            try {
+                weightValue = weight == null ? 0 : Integer.parseInt(weight.trim());
+            } catch (NumberFormatException e) {
+                weightValue = -1;
+            }
+            if (!PetEntry.isValidWeight(weightValue)) {
+                fail("Weight not valid: " + weight);
+                return;
+            }
+
+            ContentValues values = new ContentValues(4);
+            values.put(PetEntry.COLUMN_PET_NAME, name);
+            values.put(PetEntry.COLUMN_PET_BREED, breed);
+            values.put(PetEntry.COLUMN_PET_GENDER, genderValue);
+            values.put(PetEntry.COLUMN_PET_WEIGHT, weightValue);
+            chunkRows[chunk.size()] = rowsRead;
+            chunk.add(values);
+            if (chunk.size() >= mChunkSize) {
+                writeChunk();
+            }
+        }
+
+        /**
+         * Report the last row read as failed.
+         */
+        void fail(String message) {
+            rowsFailed++;
+            if (errors.size() < MAX_REPORTED_ERRORS) {
+                errors.add(new RowError(rowsRead, message));
+            }
+        }
+
+        /**
+         * Write the collected rows in one transaction and report progress. If the write fails,
+         * the chunk is written again in halves, down to single rows, so that only the rows that
+         * cannot be written are reported as failed and the import goes on.
+         */
+        void writeChunk() {
+            if (!chunk.isEmpty()) {
+                writeRows(0, chunk.size());
+                chunk.clear();
+            }
+            if (listener != null) {
+                listener.onProgress(rowsRead, rowsImported, rowsFailed);
+            }
+        }
+
+        /**
+         * Write the rows of the chunk from {@code from} up to {@code to}, exclusive. A failed
+         * bulk insert rolls back as a whole, so its rows can be written again.
+         */
+        private void writeRows(int from, int to) {
+            int size = to - from;
+            try {
+                rowsImported += mContentResolver.bulkInsert(PetEntry.CONTENT_URI,
+                        chunk.subList(from, to).toArray(new ContentValues[size]));
+            } catch (RuntimeException e) {
+                if (size > 1) {
+                    int middle = from + size / 2;
+                    writeRows(from, middle);
+                    writeRows(middle, to);
+                    return;
+                }
+                Log.e(LOG_TAG, "Writing row " + chunkRows[from] + " failed", e);
+                rowsFailed++;
+                if (errors.size() < MAX_REPORTED_ERRORS) {
+                    errors.add(new RowError(chunkRows[from], "Write failed: " + e.getMessage()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Minimal RFC 4180 reader: comma-separated fields, optionally quoted, with "" for a quote
+     * inside a quoted field, which may also span lines.
+     */
+    private static final class CsvReader {
+        private final Reader mReader;
+        private final char[] mBuffer = new char[8192];
+        private final StringBuilder mField = new StringBuilder();
+        private int mPosition;
+        private int mLimit;
+        private boolean mStarted;
+
+        CsvReader(Reader reader) {
+            mReader = reader;
+        }
+
+        /**
+         * Read the next record into {@code fields}. Returns false at the end of the input.
+         */
+        boolean readRecord(List<String> fields) throws IOException {
+            fields.clear();
+            int c = read();
+            if (!mStarted) {
+                mStarted = true;
+                if (c == '\uFEFF') {
+                    // byte order mark
+                    c = read();
+                }
+            }
+            if (c == -1) {
+                return false;
+            }
+            mField.setLength(0);
+            boolean quoted = false;
+            while (true) {
+                if (quoted) {
+                    if (c == -1) {
+                        // unterminated quote, take what is there
+                        fields.add(mField.toString());
+                        return true;
+                    } else if (c == '"') {
+                        c = read();
+                        if (c != '"') {
+                            quoted = false;
+                            continue;
+                        }
+                        mField.append('"');
+                    } else {
+                        mField.append((char) c);
+                    }
+                } else if (c == -1 || c == '\n') {
+                    fields.add(mField.toString());
+                    return true;
+                } else if (c == ',') {
+                    fields.add(mField.toString());
+                    mField.setLength(0);
+                } else if (c == '"' && mField.length() == 0) {
+                    quoted = true;
+                } else if (c != '\r') {
+                    mField.append((char) c);
+                }
+                c = read();
+            }
+        }
+
+        private int read() throws IOException {
+            if (mPosition == mLimit) {
+                mLimit = mReader.read(mBuffer, 0, mBuffer.length);
+                mPosition = 0;
+                if (mLimit <= 0) {
+                    mLimit = 0;
+                    return -1;
+                }
+            }
+            return mBuffer[mPosition++];
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package com.example.android.pets.data;
+
+import android.database.AbstractWindowedCursor;
+import android.database.CrossProcessCursorWrapper;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.Build;
+import android.os.Trace;
+
+import com.example.android.pets.data.PetContract.MetricsEntry;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and histograms for the provider's operations, kept per operation and URI match.
+ *
+ * Recording only takes two clock reads and a few atomic increments, without locks or
+ * allocations, so it stays on in production. Each operation also shows up as a
+ * {@link Trace} section in systrace and perfetto.
+ */
+final class PetMetrics {
+
+    /**
+     * Instrumented operations.
+     */
+    static final int QUERY = 0;
+    static final int INSERT = 1;
+    static final int UPDATE = 2;
+    static final int DELETE = 3;
+
+    private static final String[] OPERATION_NAMES = {"query", "insert", "update", "delete"};
+    private static final String[] TRACE_SECTIONS = {
+            "PetProvider.query", "PetProvider.insert", "PetProvider.update", "PetProvider.delete"
+    };
+
+    /**
+     * Row count passed to {@link #end} for an operation that succeeded but whose rows are counted
+     * later, or not at all.
+     */
+    static final long ROWS_UNKNOWN = -2;
+
+    private static final boolean TRACE_AVAILABLE =
+            Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+
+    /**
+     * Names of the URI matches, indexed by the match slot passed to {@link #end}.
+     */
+    private final String[] mMatchNames;
+
+    /**
+     * Statistics indexed by operation, then match slot.
+     */
+    private final OperationStats[][] mStats;
+
+    /**
+     * @param matchNames Names of the URI matches, in slot order
+     */
+    PetMetrics(String[] matchNames) {
+        mMatchNames = matchNames;
+        mStats = new OperationStats[OPERATION_NAMES.length][matchNames.length];
+        for (int operation = 0; operation < OPERATION_NAMES.length; operation++) {
+            for (int slot = 0; slot < matchNames.length; slot++) {
+                mStats[operation][slot] = new OperationStats();
+            }
+        }
+    }
+
+    /**
+     * Start timing an operation and open its trace section. Returns the start time to pass to
+     * {@link #end}, which must be called on the same thread.
+     */
+    long begin(int operation) {
+        if (TRACE_AVAILABLE) {
+            Trace.beginSection(TRACE_SECTIONS[operation]);
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * Record an operation started with {@link #begin(int)} and close its trace section.
+     *
+     * @param rows     Rows returned or affected, -1 if the operation failed, or
+     *                 {@link #ROWS_UNKNOWN}
+     * @param notified Whether the operation notified observers of a change
+     */
+    void end(int operation, int slot, long startNanos, long rows, boolean notified) {
+        long micros = (System.nanoTime() - startNanos) / 1000;
+        if (TRACE_AVAILABLE) {
+            Trace.endSection();
+        }
+        OperationStats stats = mStats[operation][slot];
+        stats.latencyMicros.record(micros);
+        if (rows == -1) {
+            stats.errors.incrementAndGet();
+        } else if (rows != ROWS_UNKNOWN) {
+            stats.rows.record(rows);
+        }
+        if (notified) {
+            stats.notifications.incrementAndGet();
+        }
+    }
+
+    /**
+     * Record a query started with {@link #begin(int)} that returned the given cursor, and return
+     * the cursor to hand out instead. The query's rows are usually only read on the caller's
+     * first access, so the latency covers preparing the query, and the rows are counted when the
+     * cursor is closed, if they were read by then.
+     */
+    Cursor endQuery(int slot, long startNanos, Cursor cursor) {
+        end(QUERY, slot, startNanos, cursor == null ? -1 : ROWS_UNKNOWN, false);
+        return cursor == null ? null : new RowCountingCursor(cursor, mStats[QUERY][slot]);
+    }
+
+    /**
+     * Returns one row per operation and URI match that was used, with the columns of
+     * {@link MetricsEntry}, or the requested subset of them.
+     */
+    Cursor toCursor(String[] projection) {
+        String[] columns = MetricsEntry.COLUMNS;
+        if (projection == null) {
+            projection = columns;
+        }
+        int[] columnMap = new int[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            columnMap[i] = indexOf(columns, projection[i]);
+        }
+        MatrixCursor cursor = new MatrixCursor(projection);
+        Object[] row = new Object[columns.length];
+        for (int operation = 0; operation < OPERATION_NAMES.length; operation++) {
+            for (int slot = 0; slot < mMatchNames.length; slot++) {
+                OperationStats stats = mStats[operation][slot];
+                long count = stats.latencyMicros.getCount();
+                if (count == 0) {
+                    continue;
+                }
+                row[0] = OPERATION_NAMES[operation];
+                row[1] = mMatchNames[slot];
+                row[2] = count;
+                row[3] = stats.errors.get();
+                row[4] = stats.latencyMicros.getPercentile(0.5);
+                row[5] = stats.latencyMicros.getPercentile(0.9);
+                row[6] = stats.latencyMicros.getPercentile(0.99);
+                row[7] = stats.latencyMicros.getMax();
+                row[8] = stats.rows.getSum();
+                row[9] = stats.rows.getMax();
+                row[10] = stats.notifications.get();
+                Object[] values = new Object[projection.length];
+                for (int i = 0; i < projection.length; i++) {
+                    values[i] = row[columnMap[i]];
+                }
+                cursor.addRow(values);
+            }
+        }
+        return cursor;
+    }
+
+    /**
+     * Print a table of the operations that were used.
+     */
+    void dump(PrintWriter writer) {
+        writer.println(String.format(Locale.US, "%-8s %-18s %8s %6s %9s %9s %9s %9s %10s %8s",
+                "op", "uri", "count", "errors", "p50 us", "p90 us", "p99 us", "max us", "rows",
+                "notified"));
+        for (int operation = 0; operation < OPERATION_NAMES.length; operation++) {
+            for (int slot = 0; slot < mMatchNames.length; slot++) {
+                OperationStats stats = mStats[operation][slot];
+                long count = stats.latencyMicros.getCount();
+                if (count == 0) {
+                    continue;
+                }
+                writer.println(String.format(Locale.US,
+                        "%-8s %-18s %8d %6d %9d %9d %9d %9d %10d %8d",
+                        OPERATION_NAMES[operation], mMatchNames[slot], count, stats.errors.get(),
+                        stats.latencyMicros.getPercentile(0.5),
+                        stats.latencyMicros.getPercentile(0.9),
+                        stats.latencyMicros.getPercentile(0.99),
+                        stats.latencyMicros.getMax(), stats.rows.getSum(),
+                        stats.notifications.get()));
+            }
+        }
+    }
+
+    private static int indexOf(String[] columns, String column) {
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].equals(column)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown metrics column " + column);
+    }
+
+    /**
+     * Counts the rows of a query cursor into its statistics when it is closed. A cursor whose
+     * window was never filled is not counted, since counting would run its query.
+     */
+    private static final class RowCountingCursor extends CrossProcessCursorWrapper {
+        private final OperationStats mStats;
+
+        RowCountingCursor(Cursor cursor, OperationStats stats) {
+            super(cursor);
+            mStats = stats;
+        }
+
+        @Override
+        public void close() {
+            Cursor cursor = getWrappedCursor();
+            if (!cursor.isClosed() && (!(cursor instanceof AbstractWindowedCursor)
+                    || ((AbstractWindowedCursor) cursor).hasWindow())) {
+                mStats.rows.record(cursor.getCount());
+            }
+            super.close();
+        }
+    }
+
+    private static final class OperationStats {
+        final Histogram latencyMicros = new Histogram();
+        final Histogram rows = new Histogram();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong notifications = new AtomicLong();
+    }
+
+    /**
+     * Lock-free histogram of non-negative values with power of two buckets: bucket 0 counts
+     * zeros and bucket i counts values in [2^(i-1), 2^i). Percentiles are the upper bound of
+     * their bucket, so they are accurate to a factor of two.
+     */
+    static final class Histogram {
+        private static final int BUCKETS = 64;
+
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            mBuckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+            mCount.incrementAndGet();
+            mSum.addAndGet(value);
+            long max = mMax.get();
+            while (value > max && !mMax.compareAndSet(max, value)) {
+                max = mMax.get();
+            }
+        }
+
+        long getCount() {
+            return mCount.get();
+        }
+
+        long getSum() {
+            return mSum.get();
+        }
+
+        long getMax() {
+            return mMax.get();
+        }
+
+        /**
+         * Returns an upper bound of the given percentile, between 0 and 1, or 0 if empty.
+         */
+        long getPercentile(double percentile) {
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                count += mBuckets.get(i);
+            }
+            long target = (long) Math.ceil(count * percentile);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += mBuckets.get(i);
+                if (seen >= target && seen > 0) {
+                    long upperBound = i == 0 ? 0 : (1L << i) - 1;
+                    return Math.min(upperBound, getMax());
+                }
+            }
+            return 0;
+        }
+    }
+}
@@ -1,19 +1,53 @@
 package com.example.android.pets.data;
 
+import android.content.ClipDescription;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.net.UrlQuerySanitizer;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.Trace;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
 import android.widget.Toast;
+import com.example.android.pets.R;
+import com.example.android.pets.data.PetContract.MetricsEntry;
 import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * {@link ContentProvider} for Pets app.
  */
@@ -23,8 +57,23 @@ public class PetProvider extends ContentProvider {
      * Tag for the log messages
      */
     public static final String LOG_TAG = PetProvider.class.getSimpleName();
-    PetDbHelper mDbHelper;
-    
+
+    /**
+     * Database files the pets are spread over, see {@code R.integer.config_pet_shards}. Without
+     * sharding this is the shelter database alone.
+     */
+    private PetShard[] mShards;
+
+    /**
+     * Coalesces the change notifications sent after successful writes.
+     */
+    PetChangeNotifier mNotifier;
+
+    /**
+     * Caches single pet rows for {@link #PET_ID} lookups.
+     */
+    final PetRowCache mRowCache = new PetRowCache();
+
     /**
      * URI matcher code for the content URI for the pets table
      */
@@ -35,6 +84,131 @@ public class PetProvider extends ContentProvider {
      */
     private static final int PET_ID = 101;
 
+    /**
+     * URI matcher code for the content URI for full-text search over the pets table
+     */
+    private static final int PETS_SEARCH = 102;
+
+    /**
+     * URI matcher code for the content URI exporting the pets table as a file
+     */
+    private static final int PETS_EXPORT = 103;
+
+    /**
+     * URI matcher codes for the statistics over the pets table
+     */
+    private static final int PETS_STATS = 104;
+    private static final int PETS_STATS_BREEDS = 105;
+
+    /**
+     * URI matcher code for the content URI with the provider metrics
+     */
+    private static final int PETS_METRICS = 106;
+
+    /**
+     * URI matcher code for the content URI with the change log
+     */
+    private static final int PETS_CHANGES = 107;
+
+    /**
+     * Names of the URI matcher codes from {@link #PETS} to {@link #PETS_CHANGES} for the metrics,
+     * followed by the name used for URIs that did not match.
+     */
+    private static final String[] MATCH_NAMES = {
+            "PETS", "PET_ID", "PETS_SEARCH", "PETS_EXPORT", "PETS_STATS", "PETS_STATS_BREEDS",
+            "PETS_METRICS", "PETS_CHANGES", "NO_MATCH"
+    };
+
+    /**
+     * Latency, row and notification statistics of every query, insert, update and delete.
+     */
+    final PetMetrics mMetrics = new PetMetrics(MATCH_NAMES);
+
+    /**
+     * Single row of statistics computed from the few rows of the per gender summary table.
+     */
+    private static final String STATS_SUMMARY_TABLE = "(SELECT "
+            + "IFNULL(SUM(" + PetDbHelper.COLUMN_STATS_COUNT + "), 0) AS " + PetEntry.COLUMN_STATS_TOTAL + ", "
+            + statsCountOf(PetEntry.GENDER_MALE) + " AS " + PetEntry.COLUMN_STATS_MALE + ", "
+            + statsCountOf(PetEntry.GENDER_FEMALE) + " AS " + PetEntry.COLUMN_STATS_FEMALE + ", "
+            + statsCountOf(PetEntry.GENDER_UNKNOWN) + " AS " + PetEntry.COLUMN_STATS_UNKNOWN + ", "
+            + "IFNULL(TOTAL(" + PetDbHelper.COLUMN_STATS_TOTAL_WEIGHT + ") / SUM(NULLIF("
+            + PetDbHelper.COLUMN_STATS_COUNT + ", 0)), 0) AS " + PetEntry.COLUMN_STATS_AVERAGE_WEIGHT
+            + " FROM " + PetDbHelper.STATS_GENDER_TABLE_NAME + ")";
+
+    /**
+     * Per breed counts with the breed text looked up in the dictionary, as a table expression.
+     */
+    private static final String STATS_BREED_TABLE = "(SELECT "
+            + "b." + PetDbHelper.COLUMN_BREED_NAME + " AS " + PetEntry.COLUMN_PET_BREED + ", "
+            + "s." + PetDbHelper.COLUMN_STATS_COUNT + " AS " + PetEntry.COLUMN_STATS_COUNT
+            + " FROM " + PetDbHelper.STATS_BREED_TABLE_NAME + " s JOIN " + PetDbHelper.BREEDS_TABLE_NAME + " b"
+            + " ON b." + PetEntry._ID + " = s." + PetDbHelper.COLUMN_PET_BREED_ID + ")";
+
+    /**
+     * Change log joined with the current pets, as a table expression. The pets and breeds are
+     * joined directly rather than through the view so that SQLite can flatten the expression
+     * and range scan the log.
+     */
+    private static final String CHANGES_TABLE = "(SELECT "
+            + "c." + PetDbHelper.COLUMN_CHANGE_SEQ + " AS " + PetEntry.COLUMN_CHANGE_SEQ + ", "
+            + "c." + PetDbHelper.COLUMN_CHANGE_PET_ID + " AS " + PetEntry._ID + ", "
+            + "c." + PetDbHelper.COLUMN_CHANGE_DELETED + " AS " + PetEntry.COLUMN_CHANGE_DELETED + ", "
+            + "p." + PetEntry.COLUMN_PET_NAME + " AS " + PetEntry.COLUMN_PET_NAME + ", "
+            + "b." + PetDbHelper.COLUMN_BREED_NAME + " AS " + PetEntry.COLUMN_PET_BREED + ", "
+            + "p." + PetEntry.COLUMN_PET_GENDER + " AS " + PetEntry.COLUMN_PET_GENDER + ", "
+            + "p." + PetEntry.COLUMN_PET_WEIGHT + " AS " + PetEntry.COLUMN_PET_WEIGHT
+            + " FROM " + PetDbHelper.CHANGES_TABLE_NAME + " c"
+            + " LEFT JOIN " + PetEntry.TABLE_NAME + " p ON p." + PetEntry._ID + " = c." + PetDbHelper.COLUMN_CHANGE_PET_ID
+            + " AND p." + PetDbHelper.COLUMN_PET_DELETED + " = 0"
+            + " LEFT JOIN " + PetDbHelper.BREEDS_TABLE_NAME + " b ON b." + PetEntry._ID + " = p." + PetDbHelper.COLUMN_PET_BREED_ID + ")";
+
+    /**
+     * Minimum time between two compactions of the change log, see {@link #compactChangesIfDue}.
+     */
+    private static final long CHANGES_COMPACTION_INTERVAL_MILLIS = 60 * 60 * 1000;
+
+    /**
+     * Time of the last compaction of the change log, 0 if none ran since the provider started.
+     */
+    private volatile long mLastChangesCompaction;
+
+    /**
+     * Number of marked pets purged per transaction, see {@link #schedulePurge}. Small enough that
+     * other writers do not wait long for the database.
+     */
+    private static final int PURGE_CHUNK_SIZE = 500;
+
+    /**
+     * Whether deletes only mark the pets and leave removing them to the purge, see
+     * {@code R.bool.config_soft_delete}.
+     */
+    private boolean mSoftDelete;
+
+    /**
+     * Runs the purge of marked pets in the background.
+     */
+    private final ExecutorService mPurgeExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * Whether a purge is scheduled and has not started yet, so that deletes in a row only
+     * schedule one.
+     */
+    private final AtomicBoolean mPurgeScheduled = new AtomicBoolean();
+
+    /**
+     * Counter picking the shard of the next insert of pets without ids, round-robin.
+     */
+    private final AtomicInteger mNextInsertShard = new AtomicInteger();
+
+    /**
+     * MIME types {@link #PETS_EXPORT} can be opened as.
+     */
+    private static final String[] EXPORT_TYPES = {
+            PetEntry.EXPORT_TYPE_CSV,
+            PetEntry.EXPORT_TYPE_NDJSON
+    };
+
     /**
      * UriMatcher object to match a content URI to a corresponding code.
      * The input passed into the constructor represents the code to return for the root URI.
@@ -42,12 +216,31 @@ public class PetProvider extends ContentProvider {
      */
     private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 
+    /**
+     * Changes made by the batch currently being applied on this thread, or null when no batch is
+     * in progress. They are published once the batch transaction commits.
+     */
+    private final ThreadLocal<BatchChanges> mBatchChanges = new ThreadLocal<>();
+
     static {
         // The calls to addURI() go here, for all of the content URI patterns that the provider
         // should recognize. All paths added to the UriMatcher have a corresponding code to return
         // when a match is found.
         sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS, PETS);
         sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS + "/#", PET_ID);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_SEARCH + "/*", PETS_SEARCH);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_EXPORT, PETS_EXPORT);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_STATS, PETS_STATS);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_STATS + "/" + PetContract.PATH_BREEDS,
+                PETS_STATS_BREEDS);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_METRICS, PETS_METRICS);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_CHANGES, PETS_CHANGES);
 
     }
 
@@ -56,19 +249,83 @@ public class PetProvider extends ContentProvider {
      */
     @Override
     public boolean onCreate() {
-        mDbHelper = new PetDbHelper(getContext());
+        int shardCount = Math.max(1, getContext().getResources().getInteger(R.integer.config_pet_shards));
+        mShards = new PetShard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            mShards[i] = new PetShard(getContext(), i);
+        }
+        mNotifier = new PetChangeNotifier(getContext().getContentResolver());
+        mSoftDelete = getContext().getResources().getBoolean(R.bool.config_soft_delete);
         return true;
     }
 
+    /**
+     * Handle {@link PetContract#METHOD_WARM_UP}.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (PetContract.METHOD_WARM_UP.equals(method)) {
+            warmUp(arg == null ? 0 : Integer.parseInt(arg));
+            return null;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Open the database of every shard, which creates or migrates it if needed, compile the
+     * insert statement, and read the first {@code rows} pets of the catalog so their pages are
+     * cached. Also schedules a purge of pets the last run marked deleted but did not purge.
+     */
+    private void warmUp(int rows) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.beginSection("PetProvider.warmUp");
+        }
+        try {
+            for (PetShard shard : mShards) {
+                shard.getPetWriter().prepare();
+            }
+            schedulePurge();
+            if (rows > 0) {
+                // every shard may hold pets of the first page
+                for (SQLiteDatabase db : getReadableDatabases()) {
+                    Cursor cursor = db.query(PetDbHelper.PETS_VIEW_NAME, null, null, null, null,
+                            null, PetEntry._ID + " ASC", String.valueOf(rows));
+                    try {
+                        // walking the cursor fills its window, which reads the pages
+                        while (cursor.moveToNext()) {
+                            // nothing to read
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                }
+            }
+        } finally {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+                Trace.endSection();
+            }
+        }
+    }
+
     /**
      * Perform the query for the given URI. Use the given projection, selection, selection arguments, and sort order.
      */
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
-        // Get readable database
-        SQLiteDatabase database = mDbHelper.getReadableDatabase();
+        long start = mMetrics.begin(PetMetrics.QUERY);
+        Cursor cursor = null;
+        try {
+            cursor = queryUri(uri, projection, selection, selectionArgs, sortOrder);
+        } finally {
+            // the query still runs on the caller's first access, as without metrics
+            cursor = mMetrics.endQuery(getMetricsSlot(uri), start, cursor);
+        }
+        return cursor;
+    }
 
+    private Cursor queryUri(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                            String sortOrder) {
         // This cursor will hold the result of the query
         Cursor cursor;
 
@@ -80,7 +337,59 @@ public class PetProvider extends ContentProvider {
                 // projection, selection, selection arguments, and sort order. The cursor
                 // could contain multiple rows of the pets table.
 
-                cursor = database.query(PetContract.PetEntry.TABLE_NAME, projection, selection, selectionArgs, null, null, sortOrder);
+                // Filter parameters become conditions the indexes can serve
+                PetFilter filter = PetFilter.fromUri(uri);
+                ArrayList<String> filterArgs = new ArrayList<>();
+                String filterSelection = buildFilterSelection(filter, filterArgs);
+                if (filterSelection != null) {
+                    selection = DatabaseUtils.concatenateWhere(selection, filterSelection);
+                    selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                            filterArgs.toArray(new String[filterArgs.size()]));
+                }
+                String sortExpression = getSortExpression(filter);
+                if (uri.getQueryParameter(PetEntry.QUERY_PARAMETER_SORT) != null) {
+                    sortOrder = sortExpression + ", " + PetEntry._ID;
+                }
+
+                // Keyset paging: "after" restricts to pets past the previous page and forces the
+                // order to the sort key and _id, "limit" caps the number of rows in the page.
+                String after = uri.getQueryParameter(PetEntry.QUERY_PARAMETER_AFTER);
+                String limit = uri.getQueryParameter(PetEntry.QUERY_PARAMETER_LIMIT);
+                if (after != null) {
+                    String afterId = String.valueOf(parseQueryParameter(uri, after));
+                    if (PetEntry.SORT_ID.equals(filter.sort)) {
+                        selection = DatabaseUtils.concatenateWhere(selection, PetEntry._ID + ">?");
+                        selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                                new String[]{afterId});
+                        sortOrder = PetEntry._ID + " ASC";
+                    } else {
+                        String afterKey = uri.getQueryParameter(PetEntry.QUERY_PARAMETER_AFTER_KEY);
+                        if (afterKey == null) {
+                            throw new IllegalArgumentException("Paging by " + filter.sort
+                                    + " requires " + PetEntry.QUERY_PARAMETER_AFTER_KEY + " in " + uri);
+                        }
+                        // written as a range on the sort key so that its index can be used
+                        selection = DatabaseUtils.concatenateWhere(selection, sortExpression
+                                + ">=? AND (" + sortExpression + ">? OR " + PetEntry._ID + ">?)");
+                        selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                                new String[]{afterKey, afterKey, afterId});
+                        sortOrder = sortExpression + ", " + PetEntry._ID;
+                    }
+                }
+                if (limit != null) {
+                    limit = String.valueOf(parseQueryParameter(uri, limit));
+                }
+
+                if (mShards.length == 1) {
+                    cursor = mShards[0].getReadableDatabase().query(PetDbHelper.PETS_VIEW_NAME,
+                            projection, selection, selectionArgs, null, null, sortOrder, limit);
+                } else {
+                    // Every shard sorts and limits its own pets and the merge keeps the order,
+                    // which also keeps keyset paging working. Sort orders the merge cannot
+                    // follow are rejected, see PetEntry.CONTENT_URI
+                    cursor = PetShardCursor.query(getReadableDatabases(), PetDbHelper.PETS_VIEW_NAME,
+                            projection, selection, selectionArgs, sortOrder, limit);
+                }
                 break;
             case PET_ID:
                 // For the PET_ID code, extract out the ID from the URI.
@@ -93,12 +402,84 @@ public class PetProvider extends ContentProvider {
                 // selection, we have 1 String in the selection arguments' String array.
                 selection = PetContract.PetEntry._ID + "=?";
                 selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
+                // The id tells which shard has the pet
+                SQLiteDatabase database = getShard(ContentUris.parseId(uri)).getReadableDatabase();
+
+                // Pets opened in the editor are looked up again and again, so try the row cache
+                // first when the projection allows it.
+                if (PetRowCache.canProject(projection)) {
+                    cursor = queryCachedPet(database, ContentUris.parseId(uri), projection);
+                    break;
+                }
 
                 // This will perform a query on the pets table where the _id equals 3 to return a
                 // Cursor containing that row of the table.
-                cursor = database.query(PetContract.PetEntry.TABLE_NAME, projection, selection, selectionArgs,
+                cursor = database.query(PetDbHelper.PETS_VIEW_NAME, projection, selection, selectionArgs,
                         null, null, sortOrder);
                 break;
+            case PETS_SEARCH:
+                // For the PETS_SEARCH code, the last path segment is the text to search for.
+                // Results are ranked by relevance, so selection and sort order do not apply.
+                // Every match is ranked whatever the limit, so there always is one.
+                String searchLimit = uri.getQueryParameter(PetEntry.QUERY_PARAMETER_LIMIT);
+                cursor = PetSearch.query(getReadableDatabases(), uri.getLastPathSegment(), projection,
+                        searchLimit == null ? PetSearch.DEFAULT_LIMIT
+                                : parseQueryParameter(uri, searchLimit));
+                break;
+            case PETS_STATS:
+                // Read from the summary tables maintained by triggers, so the cost does not
+                // depend on the number of pets. Selection and sort order do not apply.
+                if (mShards.length == 1) {
+                    cursor = mShards[0].getReadableDatabase().query(STATS_SUMMARY_TABLE, projection,
+                            null, null, null, null, null);
+                } else {
+                    cursor = queryShardedStats(projection);
+                }
+                break;
+            case PETS_STATS_BREEDS:
+                String breedsLimit = uri.getQueryParameter(PetEntry.QUERY_PARAMETER_LIMIT);
+                if (projection == null) {
+                    projection = new String[]{PetEntry.COLUMN_PET_BREED, PetEntry.COLUMN_STATS_COUNT};
+                }
+                Long breedsRows = breedsLimit == null ? null : parseQueryParameter(uri, breedsLimit);
+                if (mShards.length == 1) {
+                    cursor = mShards[0].getReadableDatabase().query(STATS_BREED_TABLE, projection,
+                            selection, selectionArgs, null, null,
+                            PetDbHelper.COLUMN_STATS_COUNT + " DESC, " + PetEntry.COLUMN_PET_BREED,
+                            breedsRows == null ? null : String.valueOf(breedsRows));
+                } else {
+                    cursor = queryShardedBreedStats(projection, selection, selectionArgs, breedsRows);
+                }
+                break;
+            case PETS_METRICS:
+                cursor = mMetrics.toCursor(projection);
+                break;
+            case PETS_CHANGES:
+                // A range on the log's primary key, so the cost depends on the number of changes
+                // returned and not on the number of pets. Every shard numbers its own changes
+                // and is read from its own sequence number.
+                String since = uri.getQueryParameter(PetEntry.QUERY_PARAMETER_SINCE);
+                String changesLimit = uri.getQueryParameter(PetEntry.QUERY_PARAMETER_LIMIT);
+                if (changesLimit != null) {
+                    changesLimit = String.valueOf(parseQueryParameter(uri, changesLimit));
+                }
+                long[] shardSince = parseChangesSince(uri, since);
+                selection = DatabaseUtils.concatenateWhere(selection, PetEntry.COLUMN_CHANGE_SEQ + ">?");
+                if (mShards.length == 1) {
+                    cursor = mShards[0].getReadableDatabase().query(CHANGES_TABLE, projection,
+                            selection, DatabaseUtils.appendSelectionArgs(selectionArgs,
+                                    new String[]{String.valueOf(shardSince[0])}),
+                            null, null, PetEntry.COLUMN_CHANGE_SEQ, changesLimit);
+                } else {
+                    String[][] shardSelectionArgs = new String[mShards.length][];
+                    for (int i = 0; i < mShards.length; i++) {
+                        shardSelectionArgs[i] = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                                new String[]{String.valueOf(shardSince[i])});
+                    }
+                    cursor = PetShardCursor.query(getReadableDatabases(), CHANGES_TABLE, projection,
+                            selection, shardSelectionArgs, PetEntry.COLUMN_CHANGE_SEQ, changesLimit);
+                }
+                break;
             default:
 
                 throw new IllegalArgumentException("Cannot query unknown URI " + uri);
@@ -113,36 +494,87 @@ public class PetProvider extends ContentProvider {
      */
     @Override
     public Uri insert(Uri uri, ContentValues contentValues) {
+        long start = mMetrics.begin(PetMetrics.INSERT);
+        Uri newUri = null;
+        boolean failed = true;
+        try {
+            newUri = insertUri(uri, contentValues);
+            failed = false;
+            return newUri;
+        } finally {
+            mMetrics.end(PetMetrics.INSERT, getMetricsSlot(uri), start,
+                    failed ? -1 : newUri == null ? 0 : 1, newUri != null);
+        }
+    }
+
+    private Uri insertUri(Uri uri, ContentValues contentValues) {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case PETS:
-                getContext().getContentResolver().notifyChange(uri,null);
-                return insertPet(uri, contentValues);
+                // Only notify once the row has actually been written
+                Uri newUri = insertPet(uri, contentValues);
+                if (newUri != null) notifyChange(uri);
+                return newUri;
             default:
                 throw new IllegalArgumentException("Insertion is not supported for " + uri);
         }
     }
 
     /**
-     * Insert a pet into the database with the given content values. Return the new content URI
-     * for that specific row in the database.
+     * Insert a batch of pets. All rows are validated first, then written in a single transaction
+     * through one compiled statement, and listeners are notified once after the commit.
      */
-
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        long start = mMetrics.begin(PetMetrics.INSERT);
+        int rowsInserted = -1;
+        try {
+            final int match = sUriMatcher.match(uri);
+            switch (match) {
+                case PETS:
+                    rowsInserted = bulkInsertPets(uri, values);
+                    return rowsInserted;
+                default:
+                    throw new IllegalArgumentException("Insertion is not supported for " + uri);
+            }
+        } finally {
+            mMetrics.end(PetMetrics.INSERT, getMetricsSlot(uri), start, rowsInserted,
+                    rowsInserted > 0);
+        }
+    }
 
     @Override
     public int update(Uri uri, ContentValues contentValues, String selection, String[] selectionArgs) {
+        long start = mMetrics.begin(PetMetrics.UPDATE);
+        int rowsUpdated = -1;
+        try {
+            rowsUpdated = updateUri(uri, contentValues, selection, selectionArgs);
+            return rowsUpdated;
+        } finally {
+            mMetrics.end(PetMetrics.UPDATE, getMetricsSlot(uri), start, rowsUpdated,
+                    rowsUpdated > 0);
+        }
+    }
+
+    private int updateUri(final Uri uri, final ContentValues contentValues, String selection,
+                          final String[] selectionArgs) {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case PETS:
-
-                return updatePet(uri, contentValues, selection, selectionArgs);
+                final String tableSelection = toTableSelection(selection);
+                return writeAllShards(new ShardWrite() {
+                    @Override
+                    public int apply(PetShard shard) {
+                        return updatePet(shard, uri, contentValues, tableSelection, selectionArgs);
+                    }
+                });
             case PET_ID:
                 // For the PET_ID code, extract out the ID from the URI,
                 // so we know which row to update. Selection will be "_id=?" and selection
                 // arguments will be a String array containing the actual ID.
-                selection = PetEntry._ID + "=?";
-                selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
-                return updatePet(uri, contentValues, selection, selectionArgs);
+                long id = ContentUris.parseId(uri);
+                return updatePet(getShard(id), uri, contentValues, PetEntry._ID + "=?",
+                        new String[] { String.valueOf(id) });
             default:
                 throw new IllegalArgumentException("Update is not supported for " + uri);
         }
@@ -154,32 +586,172 @@ public class PetProvider extends ContentProvider {
      */
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
+        long start = mMetrics.begin(PetMetrics.DELETE);
+        int rowsDeleted = -1;
+        try {
+            rowsDeleted = deleteUri(uri, selection, selectionArgs);
+            return rowsDeleted;
+        } finally {
+            mMetrics.end(PetMetrics.DELETE, getMetricsSlot(uri), start, rowsDeleted,
+                    rowsDeleted > 0);
+        }
+    }
 
-        // Get writeable database
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
-        int rowsDeleted;
+    private int deleteUri(final Uri uri, String selection, final String[] selectionArgs) {
 
         final int match = sUriMatcher.match(uri);
+        int rowsDeleted;
         switch (match) {
             case PETS:
+                if (selection == null) {
+                    // Delete every pet
+                    rowsDeleted = deleteAllPets(uri);
+                    break;
+                }
                 // Delete all rows that match the selection and selection args
-                rowsDeleted = database.delete(PetEntry.TABLE_NAME, selection, selectionArgs);
-                if(rowsDeleted>0) getContext().getContentResolver().notifyChange(uri, null);
-
-                return rowsDeleted;
+                final String tableSelection = toTableSelection(selection);
+                rowsDeleted = writeAllShards(new ShardWrite() {
+                    @Override
+                    public int apply(PetShard shard) {
+                        return deletePets(shard, uri, tableSelection, selectionArgs);
+                    }
+                });
+                break;
             case PET_ID:
 
                 // Delete a single row given by the ID in the URI
-                selection = PetEntry._ID + "=?";
-                selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
-                rowsDeleted=database.delete(PetEntry.TABLE_NAME, selection, selectionArgs);
-                if(rowsDeleted>0) getContext().getContentResolver().notifyChange(uri,null);
-                return rowsDeleted;
+                long id = ContentUris.parseId(uri);
+                rowsDeleted = deletePets(getShard(id), uri, PetEntry._ID + "=?",
+                        new String[] { String.valueOf(id) });
+                break;
             default:
                 throw new IllegalArgumentException("Deletion is not supported for " + uri);
         }
+        // deletes are what adds tombstones to the change log
+        if (rowsDeleted > 0) {
+            compactChangesIfDue();
+        }
+        return rowsDeleted;
+    }
+
+
+    /**
+     * Apply all operations inside a single database transaction. Back-references are resolved by
+     * the default implementation, and every URI touched by the batch is notified once after the
+     * transaction commits. If any operation fails, the whole batch is rolled back.
+     *
+     * With several shards the batch holds a transaction on each of them, see
+     * {@link #beginTransactions}.
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        BatchChanges changes = new BatchChanges();
+        mBatchChanges.set(changes);
+        ContentProviderResult[] results = null;
+        beginTransactions(mShards);
+        try {
+            results = super.applyBatch(operations);
+            setTransactionsSuccessful(mShards);
+        } finally {
+            endTransactions(mShards);
+            mBatchChanges.remove();
+            publishBatchChanges(changes);
+        }
+
+        for (Uri uri : changes.uris) {
+            notifyChange(uri);
+        }
+        return results;
+    }
+
+    /**
+     * Run the write on every shard and return the sum of the rows it reports. With several
+     * shards the write runs like a batch, in a transaction on every shard, so that it commits
+     * on all of them or none; inside a batch it uses the batch's transactions.
+     */
+    private int writeAllShards(ShardWrite write) {
+        if (mShards.length == 1) {
+            return write.apply(mShards[0]);
+        }
+        int rows = 0;
+        if (mBatchChanges.get() != null) {
+            for (PetShard shard : mShards) {
+                rows += write.apply(shard);
+            }
+            return rows;
+        }
+        BatchChanges changes = new BatchChanges();
+        mBatchChanges.set(changes);
+        beginTransactions(mShards);
+        try {
+            for (PetShard shard : mShards) {
+                rows += write.apply(shard);
+            }
+            setTransactionsSuccessful(mShards);
+        } finally {
+            endTransactions(mShards);
+            mBatchChanges.remove();
+            publishBatchChanges(changes);
+        }
+
+        for (Uri uri : changes.uris) {
+            notifyChange(uri);
+        }
+        return rows;
+    }
+
+    /**
+     * Publish the changes of a batch to the row cache once its transactions ended.
+     */
+    private void publishBatchChanges(BatchChanges changes) {
+        // Invalidate again after the commit (or rollback), see invalidateCachedPets()
+        if (changes.allPets) {
+            mRowCache.invalidateAll();
+        } else if (!changes.petIds.isEmpty()) {
+            long[] ids = new long[changes.petIds.size()];
+            int i = 0;
+            for (long id : changes.petIds) {
+                ids[i++] = id;
+            }
+            mRowCache.invalidate(ids);
+        }
     }
 
+    /**
+     * Begin a transaction on each of the given shards. They are taken in shard order, so two
+     * writers that need several shards cannot deadlock. The transactions commit one after the
+     * other, so a failure while committing may leave the earlier shards committed. They are begun
+     * through the shards' writers, which only cache the breed ids they used once they commit.
+     */
+    private static void beginTransactions(PetShard[] shards) {
+        int begun = 0;
+        try {
+            for (PetShard shard : shards) {
+                shard.getPetWriter().beginTransaction();
+                begun++;
+            }
+        } catch (RuntimeException e) {
+            endTransactions(Arrays.copyOf(shards, begun));
+            throw e;
+        }
+    }
+
+    private static void setTransactionsSuccessful(PetShard[] shards) {
+        for (PetShard shard : shards) {
+            shard.getWritableDatabase().setTransactionSuccessful();
+        }
+    }
+
+    /**
+     * End the transactions begun by {@link #beginTransactions}, in reverse order.
+     */
+    private static void endTransactions(PetShard[] shards) {
+        for (int i = shards.length - 1; i >= 0; i--) {
+            shards[i].getPetWriter().endTransaction();
+        }
+    }
 
     /**
      * Returns the MIME type of data for the content URI.
@@ -189,34 +761,128 @@ public class PetProvider extends ContentProvider {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case PETS:
+            case PETS_SEARCH:
                 return PetEntry.CONTENT_LIST_TYPE;
             case PET_ID:
                 return PetEntry.CONTENT_ITEM_TYPE;
+            case PETS_STATS:
+                return PetEntry.CONTENT_STATS_TYPE;
+            case PETS_METRICS:
+                return MetricsEntry.CONTENT_LIST_TYPE;
+            case PETS_CHANGES:
+                return PetEntry.CONTENT_CHANGES_TYPE;
+            case PETS_STATS_BREEDS:
+                return PetEntry.CONTENT_STATS_BREEDS_TYPE;
+            case PETS_EXPORT:
+                return getExportType(uri);
             default:
                 throw new IllegalStateException("Unknown URI " + uri + " with match " + match);
         }
     }
 
+    /**
+     * Returns the export MIME types matching the filter, for the export URI only.
+     */
+    @Override
+    public String[] getStreamTypes(Uri uri, String mimeTypeFilter) {
+        if (sUriMatcher.match(uri) != PETS_EXPORT) {
+            return null;
+        }
+        ArrayList<String> types = new ArrayList<>();
+        for (String type : EXPORT_TYPES) {
+            if (ClipDescription.compareMimeTypes(type, mimeTypeFilter)) {
+                types.add(type);
+            }
+        }
+        return types.isEmpty() ? null : types.toArray(new String[types.size()]);
+    }
 
-    private Uri insertPet(Uri uri, ContentValues values) {
-        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+    /**
+     * Open the export URI for reading, in the format given by its
+     * {@link PetEntry#QUERY_PARAMETER_TYPE} parameter.
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (sUriMatcher.match(uri) != PETS_EXPORT) {
+            throw new FileNotFoundException("No file at " + uri);
+        }
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("Export can only be opened for reading, not " + mode);
+        }
+        return openExport(uri, getExportType(uri));
+    }
 
-        // Check that the name is not null
-        String name = values.getAsString(PetEntry.COLUMN_PET_NAME);
-        if (name == null) {
-            throw new IllegalArgumentException("Pet requires a name");
+    /**
+     * Open the export URI for reading in the first export format matching the filter. Other
+     * URIs are handled by the default implementation.
+     */
+    @Override
+    public AssetFileDescriptor openTypedAssetFile(Uri uri, String mimeTypeFilter, Bundle opts)
+            throws FileNotFoundException {
+        if (sUriMatcher.match(uri) != PETS_EXPORT) {
+            return super.openTypedAssetFile(uri, mimeTypeFilter, opts);
         }
+        for (String type : EXPORT_TYPES) {
+            if (ClipDescription.compareMimeTypes(type, mimeTypeFilter)) {
+                return new AssetFileDescriptor(openExport(uri, type), 0,
+                        AssetFileDescriptor.UNKNOWN_LENGTH);
+            }
+        }
+        throw new FileNotFoundException("Export is not available as " + mimeTypeFilter);
+    }
 
-        Integer gender=values.getAsInteger(PetEntry.COLUMN_PET_GENDER);
-        if(!PetEntry.isValidGender(gender)){
-            throw new IllegalArgumentException("Pet gender is invalid");
+    private static String getExportType(Uri uri) {
+        String type = uri.getQueryParameter(PetEntry.QUERY_PARAMETER_TYPE);
+        if (type == null) {
+            return PetEntry.EXPORT_TYPE_CSV;
+        }
+        for (String exportType : EXPORT_TYPES) {
+            if (exportType.equals(type)) {
+                return exportType;
+            }
         }
+        throw new IllegalArgumentException("Unsupported export type " + type + " in " + uri);
+    }
+
+    /**
+     * Returns the read end of a pipe that a background thread fills with the export.
+     */
+    private ParcelFileDescriptor openExport(Uri uri, String mimeType) throws FileNotFoundException {
+        return openPipeHelper(uri, mimeType, null, getReadableDatabases(),
+                new PipeDataWriter<SQLiteDatabase[]>() {
+                    @Override
+                    public void writeDataToPipe(ParcelFileDescriptor output, Uri uri,
+                                                String mimeType, Bundle opts, SQLiteDatabase[] dbs) {
+                        FileOutputStream out = new FileOutputStream(output.getFileDescriptor());
+                        try {
+                            PetExporter.export(dbs, out.getChannel(), mimeType);
+                        } catch (IOException e) {
+                            // usually the reader closed its end early
+                            Log.w(LOG_TAG, "Export of " + uri + " stopped", e);
+                        } finally {
+                            try {
+                                out.close();
+                            } catch (IOException e) {
+                                Log.w(LOG_TAG, "Closing export of " + uri + " failed", e);
+                            }
+                        }
+                    }
+                });
+    }
 
 
-        long newRow=db.insert(PetEntry.TABLE_NAME,null,values);
+    /**
+     * Insert a pet into the database with the given content values. Return the new content URI
+     * for that specific row in the database.
+     */
+    private Uri insertPet(Uri uri, ContentValues values) {
+        validateNewPet(values);
+
+        long newRow=writePet(getInsertShard(values, nextInsertShard()), values);
         if(newRow==-1){
             return null; //failed insertion
         }
+        mRowCache.invalidate(newRow);
 
         // Once we know the ID of the new row in the table,
         // return the new URI with the ID appended to the end of it
@@ -224,13 +890,166 @@ public class PetProvider extends ContentProvider {
 
         return ContentUris.withAppendedId(PetEntry.CONTENT_URI,newRow);
     }
+
+    /**
+     * Returns the sequence number every shard's changes are read after, from the comma-separated
+     * {@link PetEntry#QUERY_PARAMETER_SINCE} value: the number given for the shard, or the one
+     * before its first change. Numbers of shards that do not exist are ignored.
+     */
+    private long[] parseChangesSince(Uri uri, String since) {
+        long[] shardSince = new long[mShards.length];
+        for (int i = 0; i < mShards.length; i++) {
+            shardSince[i] = (long) i << PetDbHelper.SHARD_ID_SHIFT;
+        }
+        if (since == null || since.isEmpty()) {
+            return shardSince;
+        }
+        for (String value : since.split(",")) {
+            long seq = parseQueryParameter(uri, value.trim());
+            long shard = PetDbHelper.getShard(seq);
+            if (shard < mShards.length) {
+                shardSince[(int) shard] = Math.max(shardSince[(int) shard], seq);
+            }
+        }
+        return shardSince;
+    }
+
+    /**
+     * Returns the shard holding the pet with the given id. No shard past the last one has pets,
+     * so their ids are looked up in the last one, which does not have them either.
+     */
+    private PetShard getShard(long id) {
+        return mShards[(int) Math.min(PetDbHelper.getShard(id), mShards.length - 1)];
+    }
+
+    /**
+     * Returns the shard a new pet with the given values goes to: the shard of its id if it has
+     * one, or else the given shard for pets without ids.
+     */
+    private PetShard getInsertShard(ContentValues values, PetShard newPetShard) {
+        Long id = values.getAsLong(PetEntry._ID);
+        if (id != null) {
+            return getShard(id);
+        }
+        return newPetShard;
+    }
+
+    /**
+     * Returns the shard the pets without ids of the next insert call go to. Calls take the
+     * shards in turn, which spreads pets evenly and lets concurrent writers run in parallel,
+     * while the pets of one call stay in one transaction.
+     */
+    private PetShard nextInsertShard() {
+        int next = mNextInsertShard.getAndIncrement() & Integer.MAX_VALUE;
+        return mShards[next % mShards.length];
+    }
+
+    /**
+     * Returns the handles for reads of every shard, in shard order.
+     */
+    private SQLiteDatabase[] getReadableDatabases() {
+        SQLiteDatabase[] dbs = new SQLiteDatabase[mShards.length];
+        for (int i = 0; i < mShards.length; i++) {
+            dbs[i] = mShards[i].getReadableDatabase();
+        }
+        return dbs;
+    }
+
+    /**
+     * Parse a numeric query parameter of the given URI.
+     */
+    private static long parseQueryParameter(Uri uri, String value) {
+        try {
+            long parsed = Long.parseLong(value);
+            if (parsed >= 0) {
+                return parsed;
+            }
+        } catch (NumberFormatException e) {
+            // fall through to the exception below
+        }
+        throw new IllegalArgumentException("Invalid query parameter " + value + " in " + uri);
+    }
+
+    /**
+     * Notify listeners that the data at the given URI has changed. While a batch is being applied
+     * the URI is only recorded, see {@link #applyBatch(ArrayList)}. Otherwise the notification is
+     * handed to {@link PetChangeNotifier}, which coalesces bursts of writes.
+     */
+    private void notifyChange(Uri uri) {
+        BatchChanges batchChanges = mBatchChanges.get();
+        if (batchChanges != null) {
+            batchChanges.uris.add(uri);
+            return;
+        }
+        mNotifier.notifyChange(uri);
+    }
+
+    /**
+     * Check that the given content values describe a pet that can be inserted.
+     */
+    private void validateNewPet(ContentValues values) {
+        // Check that the name is not null
+        String name = values.getAsString(PetEntry.COLUMN_PET_NAME);
+        if (name == null) {
+            throw new IllegalArgumentException("Pet requires a name");
+        }
+
+        Integer gender=values.getAsInteger(PetEntry.COLUMN_PET_GENDER);
+        if(gender == null || !PetEntry.isValidGender(gender)){
+            throw new IllegalArgumentException("Pet gender is invalid");
+        }
+    }
+
+    /**
+     * Insert all given pets in one transaction. Nothing is written if any of the rows is invalid.
+     * Return the number of rows inserted. Pets without an id all go to the next shard in turn;
+     * pets with ids of other shards add a transaction on those shards.
+     */
+    private int bulkInsertPets(Uri uri, ContentValues[] values) {
+        PetShard newPetShard = nextInsertShard();
+        PetShard[] targets = new PetShard[values.length];
+        boolean[] used = new boolean[mShards.length];
+        for (int i = 0; i < values.length; i++) {
+            validateNewPet(values[i]);
+            targets[i] = getInsertShard(values[i], newPetShard);
+            used[targets[i].index] = true;
+        }
+        ArrayList<PetShard> usedShards = new ArrayList<>();
+        for (PetShard shard : mShards) {
+            if (used[shard.index]) {
+                usedShards.add(shard);
+            }
+        }
+        PetShard[] shards = usedShards.toArray(new PetShard[usedShards.size()]);
+
+        int rowsInserted = 0;
+        beginTransactions(shards);
+        try {
+            for (int i = 0; i < values.length; i++) {
+                long newRow = writePet(targets[i], values[i]);
+                if (newRow != -1) {
+                    mRowCache.invalidate(newRow);
+                    rowsInserted++;
+                }
+            }
+            setTransactionsSuccessful(shards);
+        } finally {
+            endTransactions(shards);
+        }
+
+        if (rowsInserted > 0) {
+            notifyChange(uri);
+        }
+        return rowsInserted;
+    }
     /**
      * Update pets in the database with the given content values. Apply the changes to the rows
      * specified in the selection and selection arguments (which could be 0 or 1 or more pets).
      * Return the number of rows that were successfully updated.
      */
-    private int updatePet(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
-        SQLiteDatabase db=mDbHelper.getWritableDatabase();
+    private int updatePet(PetShard shard, Uri uri, ContentValues values, String selection,
+                          String[] selectionArgs) {
+        SQLiteDatabase db=shard.getWritableDatabase();
         //sanity check data
         if(values.containsKey(PetEntry.COLUMN_PET_NAME)){
             if (values.getAsString(PetEntry.COLUMN_PET_NAME)==null){
@@ -239,29 +1058,573 @@ public class PetProvider extends ContentProvider {
         }
         if(values.containsKey(PetEntry.COLUMN_PET_GENDER)){
             Integer gender=values.getAsInteger(PetEntry.COLUMN_PET_GENDER);
-            if(!(gender==PetEntry.GENDER_UNKNOWN || gender==PetEntry.GENDER_MALE || gender==PetEntry.GENDER_FEMALE)){
+            if(gender == null || !PetEntry.isValidGender(gender)){
                 throw new IllegalArgumentException("gender not valid");
             }
         }
         if(values.containsKey(PetEntry.COLUMN_PET_WEIGHT)){
             Integer weight=values.getAsInteger(PetEntry.COLUMN_PET_WEIGHT);
-            if(weight != null && weight<0){
+            if(weight != null && !PetEntry.isValidWeight(weight)){
                 throw new IllegalArgumentException("Weight not valid");
             }
         }
         // Perform the update on the database and get the number of rows affected
-        int rowsUpdated = db.update(PetEntry.TABLE_NAME, values, selection, selectionArgs);
+        int rowsUpdated;
+        long[] changedIds;
+        PetWriter writer = shard.getPetWriter();
+        writer.beginTransaction();
+        try {
+            changedIds = invalidateCachedPets(db, selection, selectionArgs);
+            int columns = getWriterColumns(values);
+            if (sUriMatcher.match(uri) == PET_ID && columns != 0) {
+                // Single pet with plain pet columns, use the cached update statement
+                rowsUpdated = writer.update(ContentUris.parseId(uri), columns,
+                        values.getAsString(PetEntry.COLUMN_PET_NAME),
+                        values.getAsString(PetEntry.COLUMN_PET_BREED),
+                        intOrZero(values, PetEntry.COLUMN_PET_GENDER),
+                        intOrZero(values, PetEntry.COLUMN_PET_WEIGHT));
+            } else {
+                rowsUpdated = db.update(PetEntry.TABLE_NAME, toTableValues(shard, values),
+                        toLiveSelection(selection), selectionArgs);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            writer.endTransaction();
+        }
+        invalidateCachedPetsAfterCommit(changedIds);
 
         // If 1 or more rows were updated, then notify all listeners that the data at the
         // given URI has changed
         if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
 
         return rowsUpdated;
 
     }
 
+    /**
+     * Delete the pets matching the selection and notify listeners of the given URI.
+     * Return the number of rows deleted.
+     *
+     * With soft delete the pets are only marked, which leaves the pages of their rows, the
+     * full-text index and the other indexes alone, and {@link #schedulePurge} removes them later.
+     * They are gone for every read and for the change log as soon as the transaction commits.
+     */
+    private int deletePets(PetShard shard, Uri uri, String selection, String[] selectionArgs) {
+        SQLiteDatabase db = shard.getWritableDatabase();
+        int rowsDeleted;
+        long[] deletedIds;
+        db.beginTransactionNonExclusive();
+        try {
+            deletedIds = invalidateCachedPets(db, selection, selectionArgs);
+            if (mSoftDelete) {
+                ContentValues deleted = new ContentValues();
+                deleted.put(PetDbHelper.COLUMN_PET_DELETED, 1);
+                rowsDeleted = db.update(PetEntry.TABLE_NAME, deleted, toLiveSelection(selection),
+                        selectionArgs);
+            } else {
+                rowsDeleted = db.delete(PetEntry.TABLE_NAME, toLiveSelection(selection),
+                        selectionArgs);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        invalidateCachedPetsAfterCommit(deletedIds);
 
-}
+        if (rowsDeleted > 0) {
+            if (mSoftDelete) {
+                schedulePurge();
+            }
+            notifyChange(uri);
+        }
+        return rowsDeleted;
+    }
+
+    /**
+     * Purge the pets marked deleted on a background thread, unless a purge is already waiting
+     * to start. It deletes them in chunks of {@link #PURGE_CHUNK_SIZE}, one transaction each, so
+     * that other writers get the database in between, and does not notify anyone since the pets
+     * already disappeared when they were marked.
+     */
+    private void schedulePurge() {
+        if (!mPurgeScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        mPurgeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                // pets marked from now on need another purge
+                mPurgeScheduled.set(false);
+                try {
+                    for (PetShard shard : mShards) {
+                        SQLiteDatabase db = shard.getWritableDatabase();
+                        int purged;
+                        do {
+                            db.beginTransactionNonExclusive();
+                            try {
+                                purged = PetDbHelper.purgeDeletedPets(db, PURGE_CHUNK_SIZE);
+                                db.setTransactionSuccessful();
+                            } finally {
+                                db.endTransaction();
+                            }
+                        } while (purged == PURGE_CHUNK_SIZE);
+                    }
+                } catch (RuntimeException e) {
+                    // the pets stay marked and the next delete or start retries
+                    Log.w(LOG_TAG, "Purging deleted pets failed", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Delete every pet, one transaction per shard through {@link PetDbHelper#truncatePets},
+     * optionally resetting the ids and vacuuming afterwards as requested by the URI. Return the
+     * number of rows deleted. This is a hard delete even with soft delete on, since truncating
+     * is cheaper than marking every pet, and it removes the marked pets as well.
+     */
+    private int deleteAllPets(Uri uri) {
+        final boolean resetIds = uri.getBooleanQueryParameter(PetEntry.QUERY_PARAMETER_RESET_IDS, false);
+        boolean vacuum = uri.getBooleanQueryParameter(PetEntry.QUERY_PARAMETER_VACUUM, false);
+        int rowsDeleted = writeAllShards(new ShardWrite() {
+            @Override
+            public int apply(PetShard shard) {
+                return truncatePets(shard, resetIds);
+            }
+        });
+
+        // vacuuming cannot be part of a batch transaction, and the batch may still roll back
+        if (vacuum && rowsDeleted > 0 && mBatchChanges.get() == null) {
+            for (PetShard shard : mShards) {
+                PetDbHelper.vacuumFreePages(shard.getWritableDatabase());
+            }
+        }
+        if (rowsDeleted > 0) {
+            notifyChange(PetEntry.CONTENT_URI);
+        }
+        return rowsDeleted;
+    }
+
+    /**
+     * Delete every pet of the shard in one transaction and return the number of rows deleted.
+     */
+    private int truncatePets(PetShard shard, boolean resetIds) {
+        SQLiteDatabase db = shard.getWritableDatabase();
+        int rowsDeleted;
+        db.beginTransactionNonExclusive();
+        try {
+            mRowCache.invalidateAll();
+            rowsDeleted = (int) DatabaseUtils.queryNumEntries(db, PetDbHelper.PETS_VIEW_NAME);
+            PetDbHelper.truncatePets(db, resetIds);
+            // the breed dictionary was emptied; forget the ids before another writer can use them
+            shard.getPetWriter().clearBreedIds();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        invalidateCachedPetsAfterCommit(null);
+        return rowsDeleted;
+    }
+
+    /**
+     * Remove tombstones older than {@link PetEntry#CHANGES_TOMBSTONE_RETENTION_MILLIS} from the
+     * change log of every shard, at most once per {@link #CHANGES_COMPACTION_INTERVAL_MILLIS}.
+     * Called after deletes, which are what adds tombstones. Inside a batch it waits for a later
+     * delete.
+     */
+    private void compactChangesIfDue() {
+        long now = System.currentTimeMillis();
+        if (mBatchChanges.get() != null
+                || now - mLastChangesCompaction < CHANGES_COMPACTION_INTERVAL_MILLIS) {
+            return;
+        }
+        mLastChangesCompaction = now;
+        for (PetShard shard : mShards) {
+            PetDbHelper.compactChanges(shard.getWritableDatabase(),
+                    (now - PetEntry.CHANGES_TOMBSTONE_RETENTION_MILLIS) / 1000);
+        }
+    }
+
+    /**
+     * Build the selection for the given filter, adding its arguments to {@code args}. Returns
+     * null if the filter has no restriction.
+     */
+    private static String buildFilterSelection(PetFilter filter, List<String> args) {
+        StringBuilder selection = new StringBuilder();
+        if (filter.gender != null) {
+            appendCondition(selection, PetEntry.COLUMN_PET_GENDER + "=?");
+            args.add(String.valueOf(filter.gender));
+        }
+        if (filter.minWeight != null) {
+            appendCondition(selection, PetEntry.COLUMN_PET_WEIGHT + ">=?");
+            args.add(String.valueOf(filter.minWeight));
+        }
+        if (filter.maxWeight != null) {
+            appendCondition(selection, PetEntry.COLUMN_PET_WEIGHT + "<=?");
+            args.add(String.valueOf(filter.maxWeight));
+        }
+        if (filter.breedPrefix != null) {
+            // A range rather than LIKE, so that the NOCASE name index of the breeds is used.
+            // NOCASE only folds ASCII letters, and compares them in lower case. The range is
+            // looked up in the breeds and then the pets by breed id: on the view it would be a
+            // condition on the outer join, which scans every pet.
+            String prefix = toLowerCaseAscii(filter.breedPrefix);
+            StringBuilder breeds = new StringBuilder(PetDbHelper.COLUMN_BREED_NAME
+                    + " COLLATE NOCASE>=?");
+            args.add(prefix);
+            char last = prefix.charAt(prefix.length() - 1);
+            if (last != Character.MAX_VALUE) {
+                breeds.append(" AND ").append(PetDbHelper.COLUMN_BREED_NAME)
+                        .append(" COLLATE NOCASE<?");
+                args.add(prefix.substring(0, prefix.length() - 1) + (char) (last + 1));
+            }
+            appendCondition(selection, PetEntry._ID + " IN (SELECT " + PetEntry._ID
+                    + " FROM " + PetEntry.TABLE_NAME + " WHERE " + PetDbHelper.COLUMN_PET_BREED_ID
+                    + " IN (SELECT " + PetEntry._ID + " FROM " + PetDbHelper.BREEDS_TABLE_NAME
+                    + " WHERE " + breeds + "))");
+        }
+        return selection.length() == 0 ? null : selection.toString();
+    }
+
+    private static void appendCondition(StringBuilder selection, String condition) {
+        if (selection.length() > 0) {
+            selection.append(" AND ");
+        }
+        selection.append(condition);
+    }
+
+    private static String toLowerCaseAscii(String text) {
+        char[] chars = text.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            if (chars[i] >= 'A' && chars[i] <= 'Z') {
+                chars[i] += 'a' - 'A';
+            }
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Returns the ORDER BY expression for the sort key of the filter, matching its index.
+     */
+    private static String getSortExpression(PetFilter filter) {
+        if (PetEntry.SORT_NAME.equals(filter.sort)) {
+            return PetEntry.COLUMN_PET_NAME + " COLLATE NOCASE";
+        }
+        return filter.getSortColumn();
+    }
+
+    /**
+     * Print the provider metrics, the row cache and notification counters for
+     * {@code adb shell dumpsys activity provider com.example.android.pets/.data.PetProvider}.
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("Operations:");
+        mMetrics.dump(writer);
+        writer.println();
+        writer.println("Shards: " + mShards.length);
+        writer.println("Row cache: " + mRowCache.hitCount() + " hits, " + mRowCache.missCount()
+                + " misses, " + mRowCache.evictionCount() + " evictions");
+        if (mNotifier != null) {
+            writer.println("Notifications: " + mNotifier.getRequestedCount() + " requested, "
+                    + mNotifier.getSentCount() + " sent");
+        }
+    }
+
+    /**
+     * Returns the metrics slot of the given URI, an index into {@link #MATCH_NAMES}.
+     */
+    private static int getMetricsSlot(Uri uri) {
+        int match = sUriMatcher.match(uri);
+        if (match < PETS || match > PETS_CHANGES) {
+            return MATCH_NAMES.length - 1;
+        }
+        return match - PETS;
+    }
+
+    /**
+     * Returns the row of {@link #STATS_SUMMARY_TABLE} for the pets of every shard, summing the
+     * per gender summary tables of the shards.
+     */
+    private Cursor queryShardedStats(String[] projection) {
+        long[] counts = new long[3];
+        long total = 0;
+        double totalWeight = 0;
+        for (SQLiteDatabase db : getReadableDatabases()) {
+            Cursor cursor = db.query(PetDbHelper.STATS_GENDER_TABLE_NAME, new String[]{
+                    PetEntry.COLUMN_PET_GENDER, PetDbHelper.COLUMN_STATS_COUNT,
+                    PetDbHelper.COLUMN_STATS_TOTAL_WEIGHT}, null, null, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    int gender = cursor.getInt(0);
+                    if (gender >= 0 && gender < counts.length) {
+                        counts[gender] += cursor.getLong(1);
+                    }
+                    total += cursor.getLong(1);
+                    totalWeight += cursor.getLong(2);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return toCursor(new String[]{PetEntry.COLUMN_STATS_TOTAL, PetEntry.COLUMN_STATS_MALE,
+                        PetEntry.COLUMN_STATS_FEMALE, PetEntry.COLUMN_STATS_UNKNOWN,
+                        PetEntry.COLUMN_STATS_AVERAGE_WEIGHT},
+                Collections.singletonList(new Object[]{total, counts[PetEntry.GENDER_MALE],
+                        counts[PetEntry.GENDER_FEMALE], counts[PetEntry.GENDER_UNKNOWN],
+                        total == 0 ? 0.0 : totalWeight / total}),
+                projection);
+    }
+
+    /**
+     * Returns the rows of {@link #STATS_BREED_TABLE} for the pets of every shard, summing the
+     * counts of each breed over the shards. The selection is applied to the counts of each
+     * shard before they are summed.
+     */
+    private Cursor queryShardedBreedStats(String[] projection, String selection,
+                                          String[] selectionArgs, Long limit) {
+        Map<String, Long> counts = new HashMap<>();
+        for (SQLiteDatabase db : getReadableDatabases()) {
+            Cursor cursor = db.query(STATS_BREED_TABLE, new String[]{PetEntry.COLUMN_PET_BREED,
+                    PetEntry.COLUMN_STATS_COUNT}, selection, selectionArgs, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    Long count = counts.get(cursor.getString(0));
+                    counts.put(cursor.getString(0), cursor.getLong(1) + (count == null ? 0 : count));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        List<Object[]> rows = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : counts.entrySet()) {
+            rows.add(new Object[]{entry.getKey(), entry.getValue()});
+        }
+        // the order of the single shard query: count descending, then breed
+        Collections.sort(rows, new Comparator<Object[]>() {
+            @Override
+            public int compare(Object[] a, Object[] b) {
+                int result = ((Long) b[1]).compareTo((Long) a[1]);
+                if (result != 0 || a[0] == null || b[0] == null) {
+                    // SQLite puts a null breed first
+                    return result != 0 ? result : a[0] == null ? (b[0] == null ? 0 : -1) : 1;
+                }
+                return ((String) a[0]).compareTo((String) b[0]);
+            }
+        });
+        if (limit != null && limit < rows.size()) {
+            rows = rows.subList(0, limit.intValue());
+        }
+        return toCursor(new String[]{PetEntry.COLUMN_PET_BREED, PetEntry.COLUMN_STATS_COUNT},
+                rows, projection);
+    }
+
+    /**
+     * Returns a cursor with the requested columns of the given rows.
+     *
+     * @param columns Columns of the rows
+     */
+    private static Cursor toCursor(String[] columns, List<Object[]> rows, String[] projection) {
+        if (projection == null) {
+            projection = columns;
+        }
+        int[] columnMap = new int[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            columnMap[i] = Arrays.asList(columns).indexOf(projection[i]);
+            if (columnMap[i] < 0) {
+                throw new IllegalArgumentException("Unknown column " + projection[i]);
+            }
+        }
+        MatrixCursor cursor = new MatrixCursor(projection, rows.size());
+        for (Object[] row : rows) {
+            Object[] values = new Object[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                values[i] = row[columnMap[i]];
+            }
+            cursor.addRow(values);
+        }
+        return cursor;
+    }
+
+    private static String statsCountOf(int gender) {
+        return "IFNULL(SUM(CASE WHEN " + PetEntry.COLUMN_PET_GENDER + " = " + gender
+                + " THEN " + PetDbHelper.COLUMN_STATS_COUNT + " END), 0)";
+    }
+
+    /**
+     * Insert one validated pet into the shard and return its id, or -1 on failure. Plain pet rows
+     * go through {@link PetWriter}; values with other columns fall back to
+     * {@link SQLiteDatabase#insert}.
+     */
+    private long writePet(PetShard shard, ContentValues values) {
+        if (getWriterColumns(values) == 0) {
+            return shard.getWritableDatabase().insert(PetEntry.TABLE_NAME, null,
+                    toTableValues(shard, values));
+        }
+        // weight is NOT NULL DEFAULT 0 in the schema, so mirror the default here
+        return shard.getPetWriter().insert(values.getAsString(PetEntry.COLUMN_PET_NAME),
+                values.getAsString(PetEntry.COLUMN_PET_BREED),
+                values.getAsInteger(PetEntry.COLUMN_PET_GENDER),
+                intOrZero(values, PetEntry.COLUMN_PET_WEIGHT));
+    }
 
+    /**
+     * Map the keys of the given values to {@link PetWriter} column flags. Returns 0 if the values
+     * are empty or cannot be written through the typed writer (other columns, or a null gender
+     * or weight).
+     */
+    private static int getWriterColumns(ContentValues values) {
+        int columns = 0;
+        for (String key : values.keySet()) {
+            if (PetEntry.COLUMN_PET_NAME.equals(key)) {
+                columns |= PetWriter.COLUMN_NAME;
+            } else if (PetEntry.COLUMN_PET_BREED.equals(key)) {
+                columns |= PetWriter.COLUMN_BREED;
+            } else if (PetEntry.COLUMN_PET_GENDER.equals(key) && values.getAsInteger(key) != null) {
+                columns |= PetWriter.COLUMN_GENDER;
+            } else if (PetEntry.COLUMN_PET_WEIGHT.equals(key) && values.getAsInteger(key) != null) {
+                columns |= PetWriter.COLUMN_WEIGHT;
+            } else {
+                return 0;
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * Returns the given values with the breed replaced by its id in the shard's dictionary, ready
+     * to be written to the pets table of the shard. Values without a breed are returned as they
+     * are.
+     */
+    private static ContentValues toTableValues(PetShard shard, ContentValues values) {
+        if (!values.containsKey(PetEntry.COLUMN_PET_BREED)) {
+            return values;
+        }
+        ContentValues tableValues = new ContentValues(values);
+        String breed = tableValues.getAsString(PetEntry.COLUMN_PET_BREED);
+        tableValues.remove(PetEntry.COLUMN_PET_BREED);
+        if (breed == null) {
+            tableValues.putNull(PetDbHelper.COLUMN_PET_BREED_ID);
+        } else {
+            tableValues.put(PetDbHelper.COLUMN_PET_BREED_ID, shard.getPetWriter().getBreedId(breed));
+        }
+        return tableValues;
+    }
+
+    /**
+     * Rewrite a client selection, which may refer to the breed text, into one on the pets table
+     * by matching the ids through the view.
+     */
+    private static String toTableSelection(String selection) {
+        if (selection == null) {
+            return null;
+        }
+        return PetEntry._ID + " IN (SELECT " + PetEntry._ID + " FROM " + PetDbHelper.PETS_VIEW_NAME
+                + " WHERE " + selection + ")";
+    }
+
+    /**
+     * Restrict a selection on the pets table to the pets that are not marked deleted. The unary +
+     * keeps SQLite from choosing the index on the flag, which matches nearly every pet.
+     */
+    private static String toLiveSelection(String selection) {
+        String live = "+" + PetDbHelper.COLUMN_PET_DELETED + " = 0";
+        return selection == null ? live : "(" + selection + ") AND " + live;
+    }
+
+    private static int intOrZero(ContentValues values, String key) {
+        Integer value = values.getAsInteger(key);
+        return value == null ? 0 : value;
+    }
+
+    /**
+     * Look up a single pet in the row cache, loading it from the database on a miss.
+     */
+    private Cursor queryCachedPet(SQLiteDatabase db, long id, String[] projection) {
+        PetRowCache.PetRow row = mRowCache.get(id);
+        if (row == null) {
+            long version = mRowCache.getVersion();
+            Cursor cursor = db.query(PetDbHelper.PETS_VIEW_NAME, PetRowCache.COLUMNS, PetEntry._ID + "=?",
+                    new String[]{String.valueOf(id)}, null, null, null);
+            try {
+                if (!cursor.moveToFirst()) {
+                    // no such pet, return the empty result as is
+                    return new MatrixCursor(projection == null ? PetRowCache.COLUMNS : projection, 0);
+                }
+                row = PetRowCache.readRow(cursor);
+            } finally {
+                cursor.close();
+            }
+            mRowCache.put(row, version);
+        }
+        return PetRowCache.toCursor(row, projection);
+    }
+
+    /**
+     * Drop the pets matching the selection from the row cache. Must be called inside the write
+     * transaction, before the rows change. Returns their ids, or null if the selection covers
+     * every pet.
+     */
+    private long[] invalidateCachedPets(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        if (selection == null) {
+            mRowCache.invalidateAll();
+            return null;
+        }
+        Cursor cursor = db.query(PetDbHelper.PETS_VIEW_NAME, new String[]{PetEntry._ID}, selection,
+                selectionArgs, null, null, null);
+        long[] ids;
+        try {
+            ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+        mRowCache.invalidate(ids);
+        return ids;
+    }
+
+    /**
+     * Drop the given pets from the row cache again once the write is committed, so that a reader
+     * which loaded the old row in between cannot leave it cached. Inside a batch this waits until
+     * the batch commits. A null array stands for every pet.
+     */
+    private void invalidateCachedPetsAfterCommit(long[] ids) {
+        BatchChanges batchChanges = mBatchChanges.get();
+        if (batchChanges != null) {
+            if (ids == null) {
+                batchChanges.allPets = true;
+            } else {
+                for (long id : ids) {
+                    batchChanges.petIds.add(id);
+                }
+            }
+            return;
+        }
+        if (ids == null) {
+            mRowCache.invalidateAll();
+        } else {
+            mRowCache.invalidate(ids);
+        }
+    }
+
+    /**
+     * Write to one shard, see {@link #writeAllShards}. Returns the number of rows written.
+     */
+    private interface ShardWrite {
+        int apply(PetShard shard);
+    }
+
+    /**
+     * Changes recorded while a batch is applied, published after its transaction ends.
+     */
+    private static class BatchChanges {
+        final Set<Uri> uris = new HashSet<>();
+        final Set<Long> petIds = new HashSet<>();
+        boolean allPets;
+    }
+}
@@ -0,0 +1,180 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs writes to the pets provider on a single background thread, in the order they were
+ * queued, and reports their results through callbacks on the main thread.
+ *
+ * An update of a pet that is still the last write waiting in the queue absorbs further updates
+ * of the same pet, so repeated edits are written once with the merged values.
+ */
+public class PetRepository {
+
+    private static final String LOG_TAG = PetRepository.class.getSimpleName();
+
+    /**
+     * Receives the result of a queued write on the main thread.
+     */
+    public interface Callback<T> {
+        void onResult(T result);
+    }
+
+    private static PetRepository sInstance;
+
+    private final ContentResolver mContentResolver;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Updates queued but not started yet, by pet URI. Guarded by itself.
+     */
+    private final Map<Uri, PendingUpdate> mPendingUpdates = new HashMap<>();
+
+    /**
+     * Number of writes queued so far. Guarded by {@link #mPendingUpdates}.
+     */
+    private long mQueuedCount;
+
+    /**
+     * Returns the repository shared by the whole app.
+     */
+    public static synchronized PetRepository getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PetRepository(context.getApplicationContext().getContentResolver());
+        }
+        return sInstance;
+    }
+
+    PetRepository(ContentResolver contentResolver) {
+        mContentResolver = contentResolver;
+    }
+
+    /**
+     * Queue the insertion of a pet. The callback receives the URI of the new pet, or null if the
+     * insertion failed.
+     */
+    public void insert(final ContentValues values, final Callback<Uri> callback) {
+        onQueued();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Uri newUri = null;
+                try {
+                    newUri = mContentResolver.insert(PetContract.PetEntry.CONTENT_URI, values);
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Inserting pet failed", e);
+                }
+                postResult(callback, newUri);
+            }
+        });
+    }
+
+    /**
+     * Queue an update of the pet with the given content URI. If an update of the same pet is
+     * still queued, the values are merged into it instead. The callback receives the number of
+     * rows updated.
+     */
+    public void update(final Uri petUri, ContentValues values, Callback<Integer> callback) {
+        final PendingUpdate update;
+        synchronized (mPendingUpdates) {
+            PendingUpdate pending = mPendingUpdates.get(petUri);
+            if (pending != null && pending.sequence == mQueuedCount) {
+                // nothing was queued after it, so merging keeps the order of the writes
+                pending.values.putAll(values);
+                pending.callbacks.add(callback);
+                return;
+            }
+            mQueuedCount++;
+            update = new PendingUpdate(mQueuedCount, values, callback);
+            mPendingUpdates.put(petUri, update);
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mPendingUpdates) {
+                    // from now on the update is running and cannot absorb more edits
+                    if (mPendingUpdates.get(petUri) == update) {
+                        mPendingUpdates.remove(petUri);
+                    }
+                }
+                int rowsUpdated = 0;
+                try {
+                    rowsUpdated = mContentResolver.update(petUri, update.values, null, null);
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Updating " + petUri + " failed", e);
+                }
+                for (Callback<Integer> callback : update.callbacks) {
+                    postResult(callback, rowsUpdated);
+                }
+            }
+        });
+    }
+
+    /**
+     * Queue the deletion of the pets at the given content URI, either a single pet or
+     * {@link PetContract.PetEntry#CONTENT_URI} for all of them. The callback receives the number
+     * of rows deleted.
+     */
+    public void delete(final Uri uri, final Callback<Integer> callback) {
+        onQueued();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                int rowsDeleted = 0;
+                try {
+                    rowsDeleted = mContentResolver.delete(uri, null, null);
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Deleting " + uri + " failed", e);
+                }
+                postResult(callback, rowsDeleted);
+            }
+        });
+    }
+
+    private void onQueued() {
+        synchronized (mPendingUpdates) {
+            mQueuedCount++;
+        }
+    }
+
+    private <T> void postResult(final Callback<T> callback, final T result) {
+        if (callback == null) {
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onResult(result);
+            }
+        });
+    }
+
+    /**
+     * An update waiting in the queue, with the values and callbacks of every edit merged into it.
+     */
+    private static class PendingUpdate {
+        final long sequence;
+        final ContentValues values;
+        final List<Callback<Integer>> callbacks = new ArrayList<>();
+
+        PendingUpdate(long sequence, ContentValues values, Callback<Integer> callback) {
+            this.sequence = sequence;
+            this.values = new ContentValues(values);
+            callbacks.add(callback);
+        }
+    }
+}
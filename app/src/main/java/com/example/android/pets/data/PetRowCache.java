@@ -0,0 +1,184 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.LruCache;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * Bounded LRU cache of pet rows keyed by {@link PetEntry#_ID}, used to answer single pet
+ * lookups without going to the database.
+ *
+ * Every invalidation bumps a version number, and {@link #put(PetRow, long)} only stores a row
+ * if no invalidation happened since the caller read the version before querying. This way a
+ * reader racing with a writer can never leave an outdated row in the cache.
+ */
+final class PetRowCache {
+
+    /**
+     * Default number of pets kept in the cache.
+     */
+    static final int DEFAULT_MAX_SIZE = 256;
+
+    /**
+     * Columns stored for every cached pet, in the order they are read by {@link #readRow(Cursor)}.
+     */
+    static final String[] COLUMNS = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT
+    };
+
+    private final LruCache<Long, PetRow> mCache;
+    private long mVersion;
+
+    PetRowCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    PetRowCache(int maxSize) {
+        mCache = new LruCache<>(maxSize);
+    }
+
+    /**
+     * Returns the cached pet with the given id, or null on a miss.
+     */
+    PetRow get(long id) {
+        return mCache.get(id);
+    }
+
+    /**
+     * Returns the current version, to be passed to {@link #put(PetRow, long)} after querying.
+     */
+    synchronized long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Cache the given row, unless an invalidation happened after {@code version} was read.
+     */
+    synchronized void put(PetRow row, long version) {
+        if (version == mVersion) {
+            mCache.put(row.id, row);
+        }
+    }
+
+    /**
+     * Drop the pets with the given ids.
+     */
+    synchronized void invalidate(long... ids) {
+        mVersion++;
+        for (long id : ids) {
+            mCache.remove(id);
+        }
+    }
+
+    /**
+     * Drop every cached pet.
+     */
+    synchronized void invalidateAll() {
+        mVersion++;
+        mCache.evictAll();
+    }
+
+    int hitCount() {
+        return mCache.hitCount();
+    }
+
+    int missCount() {
+        return mCache.missCount();
+    }
+
+    int evictionCount() {
+        return mCache.evictionCount();
+    }
+
+    /**
+     * Returns whether a cursor with the given projection can be built from a cached row.
+     */
+    static boolean canProject(String[] projection) {
+        if (projection == null) {
+            return true;
+        }
+        for (String column : projection) {
+            if (indexOf(column) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Build a one row cursor from the given pet with the requested projection, which must pass
+     * {@link #canProject(String[])}. A null projection returns all {@link #COLUMNS}.
+     */
+    static Cursor toCursor(PetRow row, String[] projection) {
+        if (projection == null) {
+            projection = COLUMNS;
+        }
+        Object[] values = new Object[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            values[i] = row.get(indexOf(projection[i]));
+        }
+        MatrixCursor cursor = new MatrixCursor(projection, 1);
+        cursor.addRow(values);
+        return cursor;
+    }
+
+    /**
+     * Read the current row of a cursor queried with {@link #COLUMNS}.
+     */
+    static PetRow readRow(Cursor cursor) {
+        return new PetRow(cursor.getLong(0), cursor.getString(1), cursor.getString(2),
+                cursor.getInt(3), cursor.getInt(4));
+    }
+
+    private static int indexOf(String column) {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (COLUMNS[i].equals(column)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A decoded pet row.
+     */
+    static final class PetRow {
+        final long id;
+        final String name;
+        final String breed;
+        final int gender;
+        final int weight;
+
+        PetRow(long id, String name, String breed, int gender, int weight) {
+            this.id = id;
+            this.name = name;
+            this.breed = breed;
+            this.gender = gender;
+            this.weight = weight;
+        }
+
+        /**
+         * Returns the value of the column at the given index of {@link #COLUMNS}.
+         */
+        Object get(int column) {
+            switch (column) {
+                case 0:
+                    return id;
+                case 1:
+                    return name;
+                case 2:
+                    return breed;
+                case 3:
+                    return gender;
+                default:
+                    return weight;
+            }
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Full-text search over pet names and breeds, backed by the {@link PetDbHelper#FTS_TABLE_NAME}
+ * FTS4 table.
+ */
+final class PetSearch {
+
+    /**
+     * Columns available in search results, used when no projection is given.
+     */
+    static final String[] DEFAULT_PROJECTION = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT,
+            PetEntry.COLUMN_SEARCH_SNIPPET,
+            PetEntry.COLUMN_SEARCH_RANK
+    };
+
+    /**
+     * Relevance weight of a hit in each FTS column, in column order (name, breed).
+     */
+    private static final double[] COLUMN_WEIGHTS = {2.0, 1.0};
+
+    /**
+     * Ids and {@code matchinfo} of the pets matching the query, which is all the ranking needs.
+     */
+    private static final String SQL_RANK = "SELECT "
+            + "docid, matchinfo(" + PetDbHelper.FTS_TABLE_NAME + ", 'pcx') "
+            + "FROM " + PetDbHelper.FTS_TABLE_NAME
+            + " WHERE " + PetDbHelper.FTS_TABLE_NAME + " MATCH ?";
+
+    /**
+     * The {@code matchinfo} of any one match, read for the hits in all rows of the database,
+     * which are the same for every match.
+     */
+    private static final String SQL_HITS_IN_ALL_ROWS = "SELECT "
+            + "matchinfo(" + PetDbHelper.FTS_TABLE_NAME + ", 'pcx') "
+            + "FROM " + PetDbHelper.FTS_TABLE_NAME
+            + " WHERE " + PetDbHelper.FTS_TABLE_NAME + " MATCH ? LIMIT 1";
+
+    /**
+     * Columns and snippet of the matching pets with the ids appended after the query. The
+     * full-text index still finds the matches, but only the listed ones are read and snippeted.
+     */
+    private static final String SQL_ROWS = "SELECT "
+            + "p." + PetEntry._ID + ", "
+            + "p." + PetEntry.COLUMN_PET_NAME + ", "
+            + "p." + PetEntry.COLUMN_PET_BREED + ", "
+            + "p." + PetEntry.COLUMN_PET_GENDER + ", "
+            + "p." + PetEntry.COLUMN_PET_WEIGHT + ", "
+            + "snippet(" + PetDbHelper.FTS_TABLE_NAME + ", '<b>', '</b>', '...', -1, 8) "
+            + "FROM " + PetDbHelper.FTS_TABLE_NAME
+            + " JOIN " + PetDbHelper.PETS_VIEW_NAME + " p"
+            + " ON p." + PetEntry._ID + " = " + PetDbHelper.FTS_TABLE_NAME + ".docid"
+            + " WHERE " + PetDbHelper.FTS_TABLE_NAME + " MATCH ?"
+            + " AND " + PetDbHelper.FTS_TABLE_NAME + ".docid IN ";
+
+    /**
+     * Number of results returned when the query does not give a limit, enough for a screen of
+     * suggestions.
+     */
+    static final int DEFAULT_LIMIT = 100;
+
+    /**
+     * Largest number of results returned, whatever the limit. The ids of the results are written
+     * into one {@link #SQL_ROWS} statement per database, which keeps it well below SQLite's
+     * statement length limit.
+     */
+    static final int MAX_LIMIT = 1000;
+
+    private PetSearch() {}
+
+    /**
+     * Search for pets matching the given text in every database and return the best
+     * {@code limit} of them ranked by relevance, at most {@link #MAX_LIMIT}. Matches are ranked
+     * against the pets of all databases, so the ranks of different shards can be compared.
+     *
+     * FTS4 has no built-in ranking, so every match is scored here from its matchinfo. Only the
+     * ids and scores of the best matches are kept while scanning, and their rows and snippets
+     * are read afterwards in one query per database, so a short prefix matching most pets stays
+     * cheap.
+     */
+    static Cursor query(SQLiteDatabase[] dbs, String text, String[] projection, long limit) {
+        if (projection == null) {
+            projection = DEFAULT_PROJECTION;
+        }
+        MatrixCursor result = new MatrixCursor(projection);
+        String matchQuery = buildMatchQuery(text);
+        if (matchQuery == null || limit <= 0) {
+            return result;
+        }
+
+        // the worst of the kept matches is at the head, to be replaced by a better one
+        int maxHits = (int) Math.min(limit, MAX_LIMIT);
+        PriorityQueue<Hit> best = new PriorityQueue<>(maxHits, WORST_FIRST);
+        // with a single database every match has the totals already
+        int[] hitsInAllRows = dbs.length > 1 ? queryHitsInAllRows(dbs, matchQuery) : null;
+        int order = 0;
+        for (int shard = 0; shard < dbs.length; shard++) {
+            Cursor cursor = dbs[shard].rawQuery(SQL_RANK, new String[]{matchQuery});
+            try {
+                while (cursor.moveToNext()) {
+                    Hit hit = new Hit(shard, order++, cursor.getLong(0),
+                            rank(cursor.getBlob(1), hitsInAllRows));
+                    if (best.size() < maxHits) {
+                        best.add(hit);
+                    } else if (WORST_FIRST.compare(hit, best.peek()) > 0) {
+                        best.poll();
+                        best.add(hit);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        Hit[] hits = new Hit[best.size()];
+        for (int i = hits.length - 1; i >= 0; i--) {
+            hits[i] = best.poll();
+        }
+        Map<Long, Object[]> rows = queryRows(dbs, matchQuery, hits);
+
+        int[] columnMap = new int[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            columnMap[i] = indexOf(projection[i]);
+        }
+        for (Hit hit : hits) {
+            Object[] row = rows.get(hit.id);
+            if (row == null) {
+                // deleted since it was ranked
+                continue;
+            }
+            row[6] = hit.rank;
+            Object[] values = new Object[projection.length];
+            for (int column = 0; column < projection.length; column++) {
+                values[column] = row[columnMap[column]];
+            }
+            result.addRow(values);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the hits of every phrase in every column summed over all databases, in
+     * {@code matchinfo} order, or null if nothing matches. Each database only counts its own
+     * rows, and reads its totals from one of its matches.
+     */
+    private static int[] queryHitsInAllRows(SQLiteDatabase[] dbs, String matchQuery) {
+        int[] total = null;
+        for (SQLiteDatabase db : dbs) {
+            Cursor cursor = db.rawQuery(SQL_HITS_IN_ALL_ROWS, new String[]{matchQuery});
+            try {
+                if (!cursor.moveToFirst()) {
+                    continue;
+                }
+                IntBuffer info = matchInfo(cursor.getBlob(0));
+                int count = info.get(0) * info.get(1);
+                if (total == null) {
+                    total = new int[count];
+                }
+                for (int i = 0; i < count; i++) {
+                    total[i] += info.get(2 + 3 * i + 1);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Read the rows of the given matches from their databases, keyed by id. Ids are unique
+     * across databases, as every shard has its own id range. The full-text query runs once per
+     * database; the ids are numbers and go into the statement as they are, so their number is
+     * not bound by SQLite's limit of 999 variables.
+     */
+    private static Map<Long, Object[]> queryRows(SQLiteDatabase[] dbs, String matchQuery,
+                                                 Hit[] hits) {
+        Map<Long, Object[]> rows = new HashMap<>();
+        for (int shard = 0; shard < dbs.length; shard++) {
+            StringBuilder sql = new StringBuilder(SQL_ROWS).append('(');
+            boolean empty = true;
+            for (Hit hit : hits) {
+                if (hit.shard == shard) {
+                    if (!empty) {
+                        sql.append(", ");
+                    }
+                    sql.append(hit.id);
+                    empty = false;
+                }
+            }
+            if (empty) {
+                continue;
+            }
+            sql.append(')');
+            Cursor cursor = dbs[shard].rawQuery(sql.toString(), new String[]{matchQuery});
+            try {
+                while (cursor.moveToNext()) {
+                    rows.put(cursor.getLong(0), new Object[]{
+                            cursor.getLong(0),
+                            cursor.getString(1),
+                            cursor.getString(2),
+                            cursor.getInt(3),
+                            cursor.getInt(4),
+                            cursor.getString(5),
+                            null
+                    });
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * A ranked match, before its row is read.
+     */
+    private static final class Hit {
+        final int shard;
+        final int order;
+        final long id;
+        final double rank;
+
+        Hit(int shard, int order, long id, double rank) {
+            this.shard = shard;
+            this.order = order;
+            this.id = id;
+            this.rank = rank;
+        }
+    }
+
+    /**
+     * Orders matches from the least to the most relevant. Of equally relevant matches the one
+     * found later comes first, so that the results keep the order they were found in.
+     */
+    private static final Comparator<Hit> WORST_FIRST = new Comparator<Hit>() {
+        @Override
+        public int compare(Hit a, Hit b) {
+            int result = Double.compare(a.rank, b.rank);
+            return result != 0 ? result : b.order - a.order;
+        }
+    };
+
+    /**
+     * Turn free text into an FTS prefix query, e.g. "lab ret" becomes "lab* ret*". Characters
+     * with a meaning in the FTS query syntax are dropped. Returns null if no word is left.
+     */
+    static String buildMatchQuery(String text) {
+        if (text == null) {
+            return null;
+        }
+        StringBuilder query = new StringBuilder();
+        for (String word : text.toLowerCase(Locale.US).split("[^\\p{L}\\p{N}]+")) {
+            if (word.isEmpty()) {
+                continue;
+            }
+            if (query.length() > 0) {
+                query.append(' ');
+            }
+            query.append(word).append('*');
+        }
+        return query.length() == 0 ? null : query.toString();
+    }
+
+    /**
+     * Score a row from its {@code matchinfo(..., 'pcx')} blob: for every phrase and column, the
+     * hits in this row relative to the hits in all rows, weighted by {@link #COLUMN_WEIGHTS}.
+     *
+     * @param hitsInAllRows Hits in all rows of every phrase and column, see
+     *                      {@link #queryHitsInAllRows}, or null for those of the row's database
+     */
+    static double rank(byte[] matchInfo, int[] hitsInAllRows) {
+        IntBuffer info = matchInfo(matchInfo);
+        int phraseCount = info.get(0);
+        int columnCount = info.get(1);
+        double score = 0;
+        for (int phrase = 0; phrase < phraseCount; phrase++) {
+            for (int column = 0; column < columnCount; column++) {
+                int index = phrase * columnCount + column;
+                int base = 2 + 3 * index;
+                int hitsInRow = info.get(base);
+                if (hitsInRow > 0) {
+                    double weight = column < COLUMN_WEIGHTS.length ? COLUMN_WEIGHTS[column] : 1.0;
+                    score += weight * hitsInRow / (hitsInAllRows != null ? hitsInAllRows[index]
+                            : info.get(base + 1));
+                }
+            }
+        }
+        return score;
+    }
+
+    private static IntBuffer matchInfo(byte[] matchInfo) {
+        return ByteBuffer.wrap(matchInfo).order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+
+    private static int indexOf(String column) {
+        for (int i = 0; i < DEFAULT_PROJECTION.length; i++) {
+            if (DEFAULT_PROJECTION[i].equals(column)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown search column " + column);
+    }
+}
@@ -0,0 +1,71 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * One database file of the pets, with its database handles and typed writer. Without sharding
+ * the provider has a single shard, the shelter database.
+ *
+ * Every shard has its own write lock, so writes to different shards run in parallel.
+ */
+final class PetShard {
+
+    /**
+     * Index of the shard, which is also the high bits of the ids of its pets, see
+     * {@link PetDbHelper#SHARD_ID_SHIFT}.
+     */
+    final int index;
+
+    private final PetDbHelper mDbHelper;
+
+    /**
+     * Database handles, opened on first use and then reused for every call.
+     */
+    private volatile SQLiteDatabase mReadableDatabase;
+    private volatile SQLiteDatabase mWritableDatabase;
+
+    /**
+     * Typed writer with cached statements, created with the writable database.
+     */
+    private PetWriter mPetWriter;
+
+    PetShard(Context context, int index) {
+        this.index = index;
+        mDbHelper = new PetDbHelper(context, index);
+    }
+
+    /**
+     * Returns the cached database handle for reads, opening it if needed.
+     */
+    SQLiteDatabase getReadableDatabase() {
+        SQLiteDatabase db = mReadableDatabase;
+        if (db == null || !db.isOpen()) {
+            db = mDbHelper.getReadableDatabase();
+            mReadableDatabase = db;
+        }
+        return db;
+    }
+
+    /**
+     * Returns the cached database handle for writes, opening it if needed.
+     */
+    SQLiteDatabase getWritableDatabase() {
+        SQLiteDatabase db = mWritableDatabase;
+        if (db == null || !db.isOpen()) {
+            db = mDbHelper.getWritableDatabase();
+            mWritableDatabase = db;
+        }
+        return db;
+    }
+
+    /**
+     * Returns the typed writer for the writable database, creating it on first use.
+     */
+    synchronized PetWriter getPetWriter() {
+        if (mPetWriter == null) {
+            mPetWriter = new PetWriter(getWritableDatabase());
+        }
+        return mPetWriter;
+    }
+}
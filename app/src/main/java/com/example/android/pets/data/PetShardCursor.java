@@ -0,0 +1,361 @@
+package com.example.android.pets.data;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Cursor over the results of one query run on every shard, merged in the query's sort order.
+ *
+ * Each shard already returns its rows sorted, so the merge only compares the next row of every
+ * shard. It runs once, when the cursor is created, and only records which shard row comes next;
+ * the values stay in the shard cursors' windows. Shards are few, so the next row is picked by a
+ * linear scan rather than a heap.
+ *
+ * Rows are compared the way SQLite orders them: NULL first, then numbers, then text and then
+ * blobs. Text is compared by code point, which is the order of SQLite's BINARY collation on
+ * UTF-8, or with ASCII letters folded to lower case for NOCASE.
+ */
+final class PetShardCursor extends AbstractCursor {
+
+    private final Cursor[] mCursors;
+    private final String[] mColumnNames;
+
+    /**
+     * Shard and shard row of every row of this cursor, in order.
+     */
+    private final int[] mShards;
+    private final int[] mRows;
+
+    /**
+     * Shard cursor at the current row.
+     */
+    private Cursor mCursor;
+
+    private PetShardCursor(Cursor[] cursors, String[] columnNames, SortOrder sortOrder, int limit) {
+        mCursors = cursors;
+        mColumnNames = columnNames;
+
+        int total = 0;
+        for (Cursor cursor : cursors) {
+            total += cursor.getCount();
+        }
+        int count = Math.min(total, limit);
+        mShards = new int[count];
+        mRows = new int[count];
+        int[] next = new int[cursors.length];
+        for (int row = 0; row < count; row++) {
+            int best = -1;
+            for (int shard = 0; shard < cursors.length; shard++) {
+                if (next[shard] == cursors[shard].getCount()) {
+                    continue;
+                }
+                // every shard cursor stays on the next row of its shard
+                cursors[shard].moveToPosition(next[shard]);
+                // ties go to the lower shard, which keeps the merge stable
+                if (best < 0 || sortOrder.compare(cursors[shard], cursors[best]) < 0) {
+                    best = shard;
+                }
+            }
+            mShards[row] = best;
+            mRows[row] = next[best]++;
+        }
+    }
+
+    /**
+     * Run the query on every database and return the merged result. The sort order may only
+     * list columns of the table, each with an optional {@code COLLATE NOCASE} or
+     * {@code COLLATE BINARY} and {@code ASC} or {@code DESC}; columns it sorts by that are not
+     * in the projection are queried but not returned.
+     *
+     * @param limit Maximum number of rows, or null for all of them
+     * @throws IllegalArgumentException if the sort order cannot be merged, such as one with
+     *                                  expressions or other collations
+     */
+    static Cursor query(SQLiteDatabase[] dbs, String table, String[] projection, String selection,
+                        String[] selectionArgs, String sortOrder, String limit) {
+        String[][] shardSelectionArgs = new String[dbs.length][];
+        Arrays.fill(shardSelectionArgs, selectionArgs);
+        return query(dbs, table, projection, selection, shardSelectionArgs, sortOrder, limit);
+    }
+
+    /**
+     * Like {@link #query(SQLiteDatabase[], String, String[], String, String[], String, String)},
+     * with the selection arguments of every database.
+     */
+    static Cursor query(SQLiteDatabase[] dbs, String table, String[] projection, String selection,
+                        String[][] shardSelectionArgs, String sortOrder, String limit) {
+        SortOrder order = SortOrder.parse(sortOrder);
+        if (order == null) {
+            throw new IllegalArgumentException("Sort order cannot be merged across shards: "
+                    + sortOrder);
+        }
+        String[] shardProjection = projection;
+        if (projection != null) {
+            shardProjection = order.addColumnsTo(projection);
+        }
+
+        Cursor[] cursors = new Cursor[dbs.length];
+        boolean successful = false;
+        try {
+            for (int shard = 0; shard < dbs.length; shard++) {
+                cursors[shard] = dbs[shard].query(table, shardProjection, selection,
+                        shardSelectionArgs[shard], null, null, sortOrder, limit);
+            }
+            String[] columnNames = cursors[0].getColumnNames();
+            if (projection != null) {
+                columnNames = Arrays.copyOf(columnNames, projection.length);
+            }
+            order.resolveColumns(cursors[0]);
+            Cursor cursor = new PetShardCursor(cursors, columnNames, order,
+                    limit == null ? Integer.MAX_VALUE : Integer.parseInt(limit));
+            successful = true;
+            return cursor;
+        } finally {
+            if (!successful) {
+                for (Cursor cursor : cursors) {
+                    if (cursor != null) {
+                        cursor.close();
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        mCursor = mCursors[mShards[newPosition]];
+        return mCursor.moveToPosition(mRows[newPosition]);
+    }
+
+    @Override
+    public int getCount() {
+        return mShards.length;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    @Override
+    public String getString(int column) {
+        return mCursor.getString(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return mCursor.getShort(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return mCursor.getInt(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        return mCursor.getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return mCursor.getFloat(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return mCursor.getDouble(column);
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        return mCursor.getBlob(column);
+    }
+
+    @Override
+    public int getType(int column) {
+        return mCursor.getType(column);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return mCursor.isNull(column);
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        for (Cursor cursor : mCursors) {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Parsed ORDER BY clause, comparing the current rows of two cursors.
+     */
+    private static final class SortOrder {
+        private final String[] mColumns;
+        private final boolean[] mNoCase;
+        private final boolean[] mDescending;
+        private final int[] mColumnIndices;
+
+        private SortOrder(String[] columns, boolean[] noCase, boolean[] descending) {
+            mColumns = columns;
+            mNoCase = noCase;
+            mDescending = descending;
+            mColumnIndices = new int[columns.length];
+        }
+
+        /**
+         * Returns the parsed sort order, or null if it is not supported.
+         */
+        static SortOrder parse(String sortOrder) {
+            if (sortOrder == null || sortOrder.trim().isEmpty()) {
+                return new SortOrder(new String[0], new boolean[0], new boolean[0]);
+            }
+            String[] terms = sortOrder.split(",");
+            String[] columns = new String[terms.length];
+            boolean[] noCase = new boolean[terms.length];
+            boolean[] descending = new boolean[terms.length];
+            for (int i = 0; i < terms.length; i++) {
+                String[] words = terms[i].trim().split("\\s+");
+                columns[i] = words[0];
+                int word = 1;
+                if (word + 1 < words.length && words[word].equalsIgnoreCase("COLLATE")) {
+                    String collation = words[word + 1].toUpperCase(Locale.US);
+                    if (collation.equals("NOCASE")) {
+                        noCase[i] = true;
+                    } else if (!collation.equals("BINARY")) {
+                        return null;
+                    }
+                    word += 2;
+                }
+                if (word < words.length) {
+                    if (words[word].equalsIgnoreCase("DESC")) {
+                        descending[i] = true;
+                    } else if (!words[word].equalsIgnoreCase("ASC")) {
+                        return null;
+                    }
+                    word++;
+                }
+                if (word < words.length || columns[i].isEmpty()) {
+                    return null;
+                }
+            }
+            return new SortOrder(columns, noCase, descending);
+        }
+
+        /**
+         * Returns the projection followed by the sort columns it does not have.
+         */
+        String[] addColumnsTo(String[] projection) {
+            String[] columns = Arrays.copyOf(projection, projection.length + mColumns.length);
+            int count = projection.length;
+            for (String column : mColumns) {
+                if (indexOf(columns, count, column) < 0) {
+                    columns[count++] = column;
+                }
+            }
+            return Arrays.copyOf(columns, count);
+        }
+
+        void resolveColumns(Cursor cursor) {
+            for (int i = 0; i < mColumns.length; i++) {
+                mColumnIndices[i] = cursor.getColumnIndexOrThrow(mColumns[i]);
+            }
+        }
+
+        int compare(Cursor a, Cursor b) {
+            for (int i = 0; i < mColumns.length; i++) {
+                int result = compareValues(a, b, mColumnIndices[i], mNoCase[i]);
+                if (result != 0) {
+                    return mDescending[i] ? -result : result;
+                }
+            }
+            return 0;
+        }
+
+        private static int compareValues(Cursor a, Cursor b, int column, boolean noCase) {
+            int typeA = a.getType(column);
+            int typeB = b.getType(column);
+            int result = typeRank(typeA) - typeRank(typeB);
+            if (result != 0 || typeA == Cursor.FIELD_TYPE_NULL) {
+                return result;
+            }
+            switch (typeA) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                case Cursor.FIELD_TYPE_FLOAT:
+                    if (typeA == Cursor.FIELD_TYPE_INTEGER && typeB == Cursor.FIELD_TYPE_INTEGER) {
+                        long valueA = a.getLong(column);
+                        long valueB = b.getLong(column);
+                        return valueA < valueB ? -1 : valueA == valueB ? 0 : 1;
+                    }
+                    return Double.compare(a.getDouble(column), b.getDouble(column));
+                case Cursor.FIELD_TYPE_STRING:
+                    return compareText(a.getString(column), b.getString(column), noCase);
+                default:
+                    return compareBlobs(a.getBlob(column), b.getBlob(column));
+            }
+        }
+
+        private static int typeRank(int type) {
+            switch (type) {
+                case Cursor.FIELD_TYPE_NULL:
+                    return 0;
+                case Cursor.FIELD_TYPE_INTEGER:
+                case Cursor.FIELD_TYPE_FLOAT:
+                    return 1;
+                case Cursor.FIELD_TYPE_STRING:
+                    return 2;
+                default:
+                    return 3;
+            }
+        }
+
+        private static int compareText(String a, String b, boolean noCase) {
+            int i = 0;
+            int j = 0;
+            while (i < a.length() && j < b.length()) {
+                int codePointA = a.codePointAt(i);
+                int codePointB = b.codePointAt(j);
+                if (noCase) {
+                    codePointA = toLowerCaseAscii(codePointA);
+                    codePointB = toLowerCaseAscii(codePointB);
+                }
+                if (codePointA != codePointB) {
+                    return codePointA - codePointB;
+                }
+                i += Character.charCount(codePointA);
+                j += Character.charCount(codePointB);
+            }
+            return (a.length() - i) - (b.length() - j);
+        }
+
+        private static int toLowerCaseAscii(int codePoint) {
+            return codePoint >= 'A' && codePoint <= 'Z' ? codePoint + ('a' - 'A') : codePoint;
+        }
+
+        private static int compareBlobs(byte[] a, byte[] b) {
+            for (int i = 0; i < a.length && i < b.length; i++) {
+                int result = (a[i] & 0xff) - (b[i] & 0xff);
+                if (result != 0) {
+                    return result;
+                }
+            }
+            return a.length - b.length;
+        }
+
+        private static int indexOf(String[] columns, int count, String column) {
+            for (int i = 0; i < count; i++) {
+                if (columns[i].equalsIgnoreCase(column)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+}
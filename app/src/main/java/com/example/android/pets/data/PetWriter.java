@@ -0,0 +1,386 @@
+package com.example.android.pets.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+import android.database.sqlite.SQLiteTransactionListener;
+import android.provider.BaseColumns;
+import android.util.LruCache;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Typed write API for the pets table.
+ *
+ * Values are bound as primitives to compiled statements that are cached for the lifetime of the
+ * writer, one per set of columns, so a write neither rebuilds SQL nor boxes its arguments.
+ * The writer does not send change notifications; that is left to the caller.
+ *
+ * Every write takes the database transaction before the writer's lock, so a thread holding the
+ * lock always holds the database connection too. Taking them the other way round would deadlock
+ * against a thread that is inside a transaction and waits for the lock. Callers that write in
+ * their own transaction begin and end it with {@link #beginTransaction} and
+ * {@link #endTransaction}.
+ *
+ * Breeds are stored as ids into the {@link PetDbHelper#BREEDS_TABLE_NAME breed dictionary}.
+ * The writer keeps the ids of recently written breeds in memory, so that writing a known breed
+ * needs no lookup, and adds breeds it has not seen to the dictionary. Ids looked up or added in
+ * a transaction are only kept once it commits, so a rollback never leaves the id of a missing
+ * breed behind.
+ */
+public class PetWriter {
+
+    /**
+     * Column flags for {@link #update(long, int, String, String, int, int)}.
+     */
+    public static final int COLUMN_NAME = 1;
+    public static final int COLUMN_BREED = 1 << 1;
+    public static final int COLUMN_GENDER = 1 << 2;
+    public static final int COLUMN_WEIGHT = 1 << 3;
+    private static final int ALL_COLUMNS = COLUMN_NAME | COLUMN_BREED | COLUMN_GENDER | COLUMN_WEIGHT;
+
+    private static final String SQL_INSERT = "INSERT INTO " + PetEntry.TABLE_NAME + " ("
+            + PetEntry.COLUMN_PET_NAME + ", "
+            + PetDbHelper.COLUMN_PET_BREED_ID + ", "
+            + PetEntry.COLUMN_PET_GENDER + ", "
+            + PetEntry.COLUMN_PET_WEIGHT + ") VALUES (?, ?, ?, ?)";
+
+    private static final String SQL_SELECT_BREED = "SELECT " + BaseColumns._ID
+            + " FROM " + PetDbHelper.BREEDS_TABLE_NAME
+            + " WHERE " + PetDbHelper.COLUMN_BREED_NAME + " = ?";
+
+    private static final String SQL_INSERT_BREED = "INSERT INTO " + PetDbHelper.BREEDS_TABLE_NAME
+            + " (" + PetDbHelper.COLUMN_BREED_NAME + ") VALUES (?)";
+
+    /**
+     * Number of breed ids kept in memory, more than the breeds a shelter usually has.
+     */
+    private static final int BREED_CACHE_SIZE = 1024;
+
+    private final SQLiteDatabase mDb;
+    private SQLiteStatement mInsertStatement;
+    private SQLiteStatement mSelectBreedStatement;
+    private SQLiteStatement mInsertBreedStatement;
+
+    /**
+     * Dictionary ids of recently written breeds, all of them committed.
+     */
+    private final LruCache<String, Long> mBreedIds = new LruCache<>(BREED_CACHE_SIZE);
+
+    /**
+     * Number of times {@link #mBreedIds} was cleared. Ids of a transaction are only cached if
+     * no breeds were deleted since it began, guarded by the writer's lock.
+     */
+    private int mBreedIdsGeneration;
+
+    /**
+     * Breed ids of the transaction the calling thread began with {@link #beginTransaction},
+     * added to {@link #mBreedIds} once it commits. Transactions belong to a thread, so no other
+     * thread sees ids that may still roll back.
+     */
+    private final ThreadLocal<PendingBreedIds> mPendingBreedIds = new ThreadLocal<>();
+
+    /**
+     * Marks the pending breed ids of the calling thread as committed. Only registered for the
+     * outermost transaction, whose commit is the real one.
+     */
+    private final SQLiteTransactionListener mTransactionListener = new SQLiteTransactionListener() {
+        @Override
+        public void onBegin() {
+        }
+
+        @Override
+        public void onCommit() {
+            mPendingBreedIds.get().committed = true;
+        }
+
+        @Override
+        public void onRollback() {
+        }
+    };
+
+    /**
+     * Update statements indexed by their column flags.
+     */
+    private final SQLiteStatement[] mUpdateStatements = new SQLiteStatement[ALL_COLUMNS + 1];
+
+    public PetWriter(SQLiteDatabase db) {
+        mDb = db;
+    }
+
+    /**
+     * Begin a transaction on the writer's database, or a nested one if the calling thread is
+     * already in a transaction. Writes through this writer in an outermost transaction begun
+     * here keep the breed ids they used once it commits. Must be paired with
+     * {@link #endTransaction}.
+     */
+    public void beginTransaction() {
+        if (mDb.inTransaction()) {
+            mDb.beginTransactionNonExclusive();
+            return;
+        }
+        synchronized (this) {
+            mPendingBreedIds.set(new PendingBreedIds(mBreedIdsGeneration));
+        }
+        try {
+            mDb.beginTransactionWithListenerNonExclusive(mTransactionListener);
+        } catch (RuntimeException e) {
+            mPendingBreedIds.remove();
+            throw e;
+        }
+    }
+
+    /**
+     * End a transaction begun with {@link #beginTransaction}. When that ends the outermost
+     * transaction and it committed, the breed ids it used are cached.
+     */
+    public void endTransaction() {
+        boolean ended = false;
+        try {
+            mDb.endTransaction();
+            ended = true;
+        } finally {
+            if (!mDb.inTransaction()) {
+                PendingBreedIds pending = mPendingBreedIds.get();
+                mPendingBreedIds.remove();
+                if (ended && pending != null && pending.committed) {
+                    cacheBreedIds(pending);
+                }
+            }
+        }
+    }
+
+    /**
+     * Insert a pet and return its id, or -1 if the insert failed.
+     *
+     * @param breed The breed, or null if unknown
+     */
+    public long insert(String name, String breed, int gender, int weight) {
+        validate(ALL_COLUMNS, name, gender, weight);
+        beginTransaction();
+        try {
+            long id;
+            synchronized (this) {
+                if (mInsertStatement == null) {
+                    mInsertStatement = mDb.compileStatement(SQL_INSERT);
+                }
+                SQLiteStatement statement = mInsertStatement;
+                statement.bindString(1, name);
+                bindBreed(statement, 2, breed);
+                statement.bindLong(3, gender);
+                statement.bindLong(4, weight);
+                id = statement.executeInsert();
+            }
+            mDb.setTransactionSuccessful();
+            return id;
+        } finally {
+            endTransaction();
+        }
+    }
+
+    /**
+     * Update the given columns of a pet and return the number of rows changed (0 or 1).
+     * Arguments for columns not in {@code columns} are ignored.
+     *
+     * @param columns Combination of the COLUMN_ flags, at least one
+     */
+    public int update(long id, int columns, String name, String breed, int gender, int weight) {
+        if (columns <= 0 || columns > ALL_COLUMNS) {
+            throw new IllegalArgumentException("Invalid columns " + columns);
+        }
+        validate(columns, name, gender, weight);
+        beginTransaction();
+        try {
+            int rows;
+            synchronized (this) {
+                SQLiteStatement statement = mUpdateStatements[columns];
+                if (statement == null) {
+                    statement = mDb.compileStatement(buildUpdateSql(columns));
+                    mUpdateStatements[columns] = statement;
+                }
+                int index = 1;
+                if ((columns & COLUMN_NAME) != 0) statement.bindString(index++, name);
+                if ((columns & COLUMN_BREED) != 0) bindBreed(statement, index++, breed);
+                if ((columns & COLUMN_GENDER) != 0) statement.bindLong(index++, gender);
+                if ((columns & COLUMN_WEIGHT) != 0) statement.bindLong(index++, weight);
+                statement.bindLong(index, id);
+                rows = statement.executeUpdateDelete();
+            }
+            mDb.setTransactionSuccessful();
+            return rows;
+        } finally {
+            endTransaction();
+        }
+    }
+
+    /**
+     * Returns the dictionary id of the given breed, adding it to the dictionary if it is new.
+     * Must be called in the same transaction as the write that uses the id.
+     */
+    public long getBreedId(String breed) {
+        beginTransaction();
+        try {
+            long id;
+            synchronized (this) {
+                id = lookUpBreedId(breed);
+            }
+            mDb.setTransactionSuccessful();
+            return id;
+        } finally {
+            endTransaction();
+        }
+    }
+
+    /**
+     * Forget the cached breed ids, including those of the calling thread's transaction. Must be
+     * called when breeds are deleted, before the deleting transaction commits, so that no id of
+     * a missing breed is handed out.
+     */
+    public void clearBreedIds() {
+        synchronized (this) {
+            mBreedIdsGeneration++;
+            mBreedIds.evictAll();
+        }
+        PendingBreedIds pending = mPendingBreedIds.get();
+        if (pending != null) {
+            pending.ids.clear();
+        }
+    }
+
+    /**
+     * Compile the insert statement ahead of the first insert. Compiling needs a database
+     * connection, so it is done before taking the writer's lock.
+     */
+    public void prepare() {
+        SQLiteStatement statement = mDb.compileStatement(SQL_INSERT);
+        synchronized (this) {
+            if (mInsertStatement == null) {
+                mInsertStatement = statement;
+                return;
+            }
+        }
+        statement.close();
+    }
+
+    /**
+     * Release the cached statements.
+     */
+    public synchronized void close() {
+        if (mInsertStatement != null) {
+            mInsertStatement.close();
+            mInsertStatement = null;
+        }
+        if (mSelectBreedStatement != null) {
+            mSelectBreedStatement.close();
+            mInsertBreedStatement.close();
+            mSelectBreedStatement = null;
+            mInsertBreedStatement = null;
+        }
+        for (int i = 0; i < mUpdateStatements.length; i++) {
+            if (mUpdateStatements[i] != null) {
+                mUpdateStatements[i].close();
+                mUpdateStatements[i] = null;
+            }
+        }
+    }
+
+    private synchronized void cacheBreedIds(PendingBreedIds pending) {
+        if (pending.generation != mBreedIdsGeneration) {
+            // breeds were deleted after the transaction, the ids may be gone
+            return;
+        }
+        for (Map.Entry<String, Long> entry : pending.ids.entrySet()) {
+            mBreedIds.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Returns the id of the breed from the cache or the dictionary, adding it if it is new.
+     * Must be called in a transaction, holding the writer's lock. Ids read or added here are
+     * cached when the transaction commits, or not at all if it was not begun by this writer.
+     */
+    private long lookUpBreedId(String breed) {
+        Long cached = mBreedIds.get(breed);
+        PendingBreedIds pending = mPendingBreedIds.get();
+        if (cached == null && pending != null) {
+            cached = pending.ids.get(breed);
+        }
+        if (cached != null) {
+            return cached;
+        }
+        if (mSelectBreedStatement == null) {
+            mSelectBreedStatement = mDb.compileStatement(SQL_SELECT_BREED);
+            mInsertBreedStatement = mDb.compileStatement(SQL_INSERT_BREED);
+        }
+        long id;
+        mSelectBreedStatement.bindString(1, breed);
+        try {
+            id = mSelectBreedStatement.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            mInsertBreedStatement.bindString(1, breed);
+            id = mInsertBreedStatement.executeInsert();
+        }
+        if (pending != null) {
+            pending.ids.put(breed, id);
+        }
+        return id;
+    }
+
+    private static void validate(int columns, String name, int gender, int weight) {
+        if ((columns & COLUMN_NAME) != 0 && name == null) {
+            throw new IllegalArgumentException("Pet requires a name");
+        }
+        if ((columns & COLUMN_GENDER) != 0 && !PetEntry.isValidGender(gender)) {
+            throw new IllegalArgumentException("Pet gender is invalid");
+        }
+        if ((columns & COLUMN_WEIGHT) != 0 && !PetEntry.isValidWeight(weight)) {
+            throw new IllegalArgumentException("Weight not valid");
+        }
+    }
+
+    private static String buildUpdateSql(int columns) {
+        StringBuilder sql = new StringBuilder("UPDATE ").append(PetEntry.TABLE_NAME).append(" SET ");
+        String separator = "";
+        if ((columns & COLUMN_NAME) != 0) {
+            sql.append(separator).append(PetEntry.COLUMN_PET_NAME).append(" = ?");
+            separator = ", ";
+        }
+        if ((columns & COLUMN_BREED) != 0) {
+            sql.append(separator).append(PetDbHelper.COLUMN_PET_BREED_ID).append(" = ?");
+            separator = ", ";
+        }
+        if ((columns & COLUMN_GENDER) != 0) {
+            sql.append(separator).append(PetEntry.COLUMN_PET_GENDER).append(" = ?");
+            separator = ", ";
+        }
+        if ((columns & COLUMN_WEIGHT) != 0) {
+            sql.append(separator).append(PetEntry.COLUMN_PET_WEIGHT).append(" = ?");
+        }
+        return sql.append(" WHERE ").append(PetEntry._ID).append(" = ? AND ")
+                .append(PetDbHelper.COLUMN_PET_DELETED).append(" = 0").toString();
+    }
+
+    private void bindBreed(SQLiteStatement statement, int index, String breed) {
+        if (breed == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindLong(index, lookUpBreedId(breed));
+        }
+    }
+
+    /**
+     * Breed ids used in one outermost transaction.
+     */
+    private static final class PendingBreedIds {
+        final Map<String, Long> ids = new HashMap<>();
+        final int generation;
+        boolean committed;
+
+        PendingBreedIds(int generation) {
+            this.generation = generation;
+        }
+    }
+}
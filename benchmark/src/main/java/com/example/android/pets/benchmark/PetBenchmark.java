@@ -0,0 +1,1490 @@
+package com.example.android.pets.benchmark;
+
+import org.sqlite.Function;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Benchmarks of the pets data layer on the JVM, with the SQLite JDBC driver standing in for
+ * Android's SQLite. Every benchmark runs the statements PetProvider and PetWriter run, on a
+ * database with the schema of {@link PetSchema} holding 1k, 100k or 1M pets.
+ *
+ * Like JMH, each benchmark runs warmup iterations that are thrown away and then measured
+ * iterations of a fixed number of operations, and reports the time per operation of each
+ * measured iteration. Besides these, the run checks that the filter queries use their indexes,
+ * measures read latency under a concurrent import, and measures the write throughput of several
+ * threads inserting into 1, 2, 4 or 8 shards. Results are written as JSON so that runs can be
+ * compared.
+ *
+ * Run with {@code ./gradlew :benchmark:run}, or with
+ * {@code ./gradlew :benchmark:run -PbenchmarkArgs="--sizes 1000,100000 --shards 1,4"}.
+ */
+public final class PetBenchmark {
+
+    private static final int[] DEFAULT_SIZES = {1000, 100000, 1000000};
+    private static final int[] DEFAULT_SHARDS = {1, 2, 4, 8};
+    private static final int DEFAULT_WARMUP_ITERATIONS = 3;
+    private static final int DEFAULT_ITERATIONS = 5;
+    private static final String DEFAULT_OUT = "build/benchmark-results.json";
+    private static final String DEFAULT_SCHEMAS = "../app/schemas";
+
+    /**
+     * Catalog page size, PetPagingAdapter.DEFAULT_PAGE_SIZE.
+     */
+    private static final int PAGE_SIZE = 50;
+
+    /**
+     * Search results read, PetSearch.DEFAULT_LIMIT.
+     */
+    private static final int SEARCH_LIMIT = 100;
+
+    /**
+     * Pets inserted per transaction while filling the database.
+     */
+    private static final int FILL_CHUNK_SIZE = 10000;
+
+    /**
+     * Pets written by the import that runs next to the readers, and per transaction.
+     */
+    private static final int IMPORT_SIZE = 50000;
+    private static final int IMPORT_CHUNK_SIZE = 1000;
+
+    private static final int READER_THREADS = 4;
+
+    /**
+     * Threads inserting into the shards at once, and the pets each bulkInsert() of theirs writes.
+     */
+    private static final int WRITER_THREADS = 8;
+    private static final int SHARDED_BULK_SIZE = 100;
+
+    /**
+     * Pets deleted next to the readers, at most half of the database.
+     */
+    private static final int DELETE_SIZE = 100000;
+
+    /**
+     * Marked pets purged per transaction, PetProvider.PURGE_CHUNK_SIZE.
+     */
+    private static final int PURGE_CHUNK_SIZE = 500;
+
+    /**
+     * Pets changed between two polls of the change log, and the changes read per poll.
+     */
+    private static final int CHANGES_POLLED = 10;
+    private static final int CHANGES_LIMIT = 100;
+
+    /**
+     * Name of the {@link RowCounter} function.
+     */
+    private static final String ROW_COUNTER = "count_row";
+
+    /**
+     * How long a connection waits for a lock held by another one.
+     */
+    private static final int BUSY_TIMEOUT_MILLIS = 30000;
+
+    private static final String[] BREED_WORDS = {
+            "Labrador", "Poodle", "Beagle", "Boxer", "Collie", "Dachshund", "Husky", "Pug",
+            "Terrier", "Spaniel", "Siamese", "Persian", "Bengal", "Sphynx", "Ragdoll",
+            "Maine Coon", "Tabby", "Shepherd", "Retriever", "Bulldog"
+    };
+    private static final int BREED_VARIANTS = 10;
+
+    private static final int MAX_WEIGHT = 60;
+
+    private final List<String> mSchema;
+    private final int mWarmupIterations;
+    private final int mIterations;
+    private final List<Result> mResults = new ArrayList<>();
+    private final List<Latency> mLatencies = new ArrayList<>();
+    private final List<QueryPlan> mQueryPlans = new ArrayList<>();
+    private final List<RowsRead> mRowsRead = new ArrayList<>();
+
+    /**
+     * Fixed seed, so that every run works on the same pets and queries.
+     */
+    private final Random mRandom = new Random(42);
+
+    private PetBenchmark(List<String> schema, int warmupIterations, int iterations) {
+        mSchema = schema;
+        mWarmupIterations = warmupIterations;
+        mIterations = iterations;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = DEFAULT_SIZES;
+        int[] shards = DEFAULT_SHARDS;
+        int warmupIterations = DEFAULT_WARMUP_ITERATIONS;
+        int iterations = DEFAULT_ITERATIONS;
+        String out = DEFAULT_OUT;
+        String schemas = DEFAULT_SCHEMAS;
+        for (int i = 0; i < args.length; i++) {
+            String value = i + 1 < args.length ? args[i + 1] : null;
+            if (value == null) {
+                throw new IllegalArgumentException("Missing value for " + args[i]);
+            }
+            switch (args[i]) {
+                case "--sizes":
+                    sizes = parseInts(value);
+                    break;
+                case "--shards":
+                    shards = parseInts(value);
+                    break;
+                case "--warmup":
+                    warmupIterations = Integer.parseInt(value);
+                    break;
+                case "--iterations":
+                    iterations = Integer.parseInt(value);
+                    break;
+                case "--out":
+                    out = value;
+                    break;
+                case "--schemas":
+                    schemas = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+            i++;
+        }
+
+        Class.forName("org.sqlite.JDBC");
+        PetBenchmark benchmark = new PetBenchmark(PetSchema.load(new File(schemas)),
+                warmupIterations, iterations);
+        String sqliteVersion = null;
+        for (int size : sizes) {
+            sqliteVersion = benchmark.runSize(size);
+        }
+        for (int shardCount : shards) {
+            benchmark.measureShardedWrites(shardCount);
+        }
+        benchmark.writeJson(new File(out), sqliteVersion);
+        System.out.println("Results written to " + out);
+    }
+
+    private static int[] parseInts(String value) {
+        String[] parts = value.split(",");
+        int[] ints = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            ints[i] = Integer.parseInt(parts[i].trim());
+        }
+        return ints;
+    }
+
+    /**
+     * Run every benchmark on a new database with the given number of pets, and return the
+     * SQLite version.
+     */
+    private String runSize(int size) throws SQLException, IOException {
+        File file = File.createTempFile("pets-benchmark", ".db");
+        final Connection db = open(file);
+        String sqliteVersion;
+        try {
+            sqliteVersion = configure(db);
+            execute(db, mSchema, true);
+            fill(db, size);
+            checkQueryPlans(db, size);
+
+            final PreparedStatement insert = db.prepareStatement(PetSchema.INSERT_PET);
+            final BreedIds breedIds = new BreedIds(db);
+            final PreparedStatement selectPet = db.prepareStatement(PetSchema.SELECT_PET);
+            final PreparedStatement selectPage = db.prepareStatement(PetSchema.SELECT_PAGE);
+            final PreparedStatement searchRank = db.prepareStatement(PetSchema.SEARCH_RANK);
+            final PreparedStatement searchLike = db.prepareStatement(PetSchema.SEARCH_LIKE);
+            final PreparedStatement breedPrefix = db.prepareStatement(PetSchema.SELECT_BREED_PREFIX);
+            final PreparedStatement breedLike = db.prepareStatement(PetSchema.SELECT_BREED_LIKE);
+            try {
+                // a PET_ID query that misses the row cache
+                final long maxId = maxId(db);
+                run(size, new Benchmark("pet_id_lookup", 10000) {
+                    @Override
+                    void run(int ops) throws SQLException {
+                        for (int i = 0; i < ops; i++) {
+                            selectPet.setLong(1, 1 + (long) (mRandom.nextDouble() * maxId));
+                            readAll(selectPet);
+                        }
+                    }
+                });
+
+                // the catalog paged through to the end, one operation per pass
+                run(size, new Benchmark("catalog_scan", 1) {
+                    @Override
+                    void run(int ops) throws SQLException {
+                        for (int i = 0; i < ops; i++) {
+                            // an empty page ends the scan
+                            long after = 0;
+                            do {
+                                selectPage.setLong(1, after);
+                                selectPage.setInt(2, PAGE_SIZE);
+                                after = readAll(selectPage);
+                            } while (after != 0);
+                        }
+                    }
+                });
+
+                // the first page of a filter on gender and weight sorted by name, with the
+                // indexes of schema version 2 and without them
+                run(size, new FilteredQuery(db, "filtered_query", 1000));
+                execute(db, dropIndexes(), false);
+                run(size, new FilteredQuery(db, "filtered_query_without_indexes", 20));
+                execute(db, createIndexes(), false);
+
+                // the pets of a breed prefix through the NOCASE breed index, against the LIKE
+                // selection it replaces
+                run(size, new Benchmark("breed_prefix", 100) {
+                    @Override
+                    void run(int ops) throws SQLException {
+                        for (int i = 0; i < ops; i++) {
+                            String prefix = randomSearchWord();
+                            char last = prefix.charAt(prefix.length() - 1);
+                            breedPrefix.setString(1, prefix);
+                            breedPrefix.setString(2,
+                                    prefix.substring(0, prefix.length() - 1) + (char) (last + 1));
+                            readAll(breedPrefix);
+                        }
+                    }
+                });
+                run(size, new Benchmark("breed_prefix_like", 10) {
+                    @Override
+                    void run(int ops) throws SQLException {
+                        for (int i = 0; i < ops; i++) {
+                            breedLike.setString(1, randomSearchWord() + "%");
+                            readAll(breedLike);
+                        }
+                    }
+                });
+
+                // a search for a word prefix through the full-text table, against the
+                // substring selection it replaces
+                run(size, new Benchmark("search_fts", 100) {
+                    @Override
+                    void run(int ops) throws SQLException {
+                        for (int i = 0; i < ops; i++) {
+                            search(db, searchRank, randomSearchWord());
+                        }
+                    }
+                });
+                run(size, new Benchmark("search_like", 10) {
+                    @Override
+                    void run(int ops) throws SQLException {
+                        for (int i = 0; i < ops; i++) {
+                            String pattern = "%" + randomSearchWord() + "%";
+                            searchLike.setString(1, pattern);
+                            searchLike.setString(2, pattern);
+                            readAll(searchLike);
+                        }
+                    }
+                });
+
+                // the statistics from the summary tables, against aggregating the pets table
+                run(size, new Query(db, "stats", 1000, PetSchema.SELECT_STATS));
+                run(size, new Query(db, "stats_group_by", 5, PetSchema.SELECT_STATS_GROUP_BY));
+                run(size, new Query(db, "top_breeds", 1000, PetSchema.SELECT_TOP_BREEDS, 10));
+                run(size, new Query(db, "top_breeds_group_by", 5,
+                        PetSchema.SELECT_TOP_BREEDS_GROUP_BY, 10));
+
+                // a mirror polling for the pets changed since its last sync
+                measureChangesPoll(db, size);
+
+                // an insert() outside of a transaction, committing every pet, against
+                // bulkInsert() writing 10k pets in one transaction. They run after the reads, so
+                // that those see the number of pets benchmarked.
+                run(size, new Benchmark("single_insert", 1000) {
+                    @Override
+                    void run(int ops) throws SQLException {
+                        for (int i = 0; i < ops; i++) {
+                            bindPet(insert, breedIds);
+                            insert.executeUpdate();
+                        }
+                    }
+                });
+                run(size, new Benchmark("bulk_insert", 10000) {
+                    @Override
+                    void run(int ops) throws SQLException {
+                        db.setAutoCommit(false);
+                        try {
+                            for (int i = 0; i < ops; i++) {
+                                bindPet(insert, breedIds);
+                                insert.executeUpdate();
+                            }
+                            db.commit();
+                        } finally {
+                            db.setAutoCommit(true);
+                        }
+                    }
+                });
+            } finally {
+                insert.close();
+                breedIds.close();
+                selectPet.close();
+                selectPage.close();
+                searchRank.close();
+                searchLike.close();
+                breedPrefix.close();
+                breedLike.close();
+            }
+
+            // catalog reads while an import writes, with write-ahead logging and without
+            measureConcurrentReads(db, file, size, "wal", new Import(db));
+            setJournalMode(db, "delete");
+            measureConcurrentReads(db, file, size, "delete", new Import(db));
+            setJournalMode(db, "wal");
+
+            // catalog reads while pets are deleted at once, and while they are marked and then
+            // purged in chunks, as with soft delete
+            int deleteSize = Math.min(DELETE_SIZE, size / 2);
+            measureConcurrentReads(db, file, size, "wal", new RangeWrite(db,
+                    "concurrent_read_hard_delete", PetSchema.DELETE_PETS, 0, deleteSize));
+            measureConcurrentReads(db, file, size, "wal", new RangeWrite(db,
+                    "concurrent_read_soft_delete", PetSchema.MARK_PETS_DELETED, deleteSize,
+                    2 * deleteSize));
+            measureConcurrentReads(db, file, size, "wal", new Purge(db));
+        } finally {
+            db.close();
+            deleteDatabase(file);
+        }
+
+        // deleting every pet through PetProvider's truncate path, and row by row as before it
+        measureDeleteAll(size, "delete_all", PetSchema.truncate(mSchema));
+        measureDeleteAll(size, "delete_all_row_by_row", Arrays.asList(PetSchema.DELETE_ALL));
+        return sqliteVersion;
+    }
+
+    /**
+     * Measure the insert throughput of {@link #WRITER_THREADS} threads writing to the given
+     * number of new shards, with one pet per call as insert() writes and
+     * {@link #SHARDED_BULK_SIZE} as a bulkInsert() does.
+     */
+    private void measureShardedWrites(int shardCount) throws SQLException, IOException {
+        Shard[] shards = new Shard[shardCount];
+        try {
+            for (int i = 0; i < shardCount; i++) {
+                shards[i] = new Shard(i);
+            }
+            run(0, new ShardedInsert("sharded_insert_" + shardCount + "_shards", 4000, shards,
+                    1));
+            run(0, new ShardedInsert("sharded_bulk_insert_" + shardCount + "_shards", 40000,
+                    shards, SHARDED_BULK_SIZE));
+            for (Shard shard : shards) {
+                shard.checkIds();
+            }
+        } finally {
+            for (Shard shard : shards) {
+                if (shard != null) {
+                    shard.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Time deleting every pet with the given statements, on a new database holding exactly the
+     * given number of pets.
+     */
+    private void measureDeleteAll(int size, String name, final List<String> statements)
+            throws SQLException, IOException {
+        File file = File.createTempFile("pets-benchmark", ".db");
+        final Connection db = open(file);
+        try {
+            configure(db);
+            execute(db, mSchema, true);
+            fill(db, size);
+            // deleting every pet can only be done once per database, so it is not warmed up
+            runOnce(size, new Benchmark(name, 1) {
+                @Override
+                void run(int ops) throws SQLException {
+                    execute(db, statements, true);
+                }
+            });
+        } finally {
+            db.close();
+            deleteDatabase(file);
+        }
+    }
+
+    private static void deleteDatabase(File file) {
+        for (String suffix : new String[]{"", "-wal", "-shm", "-journal"}) {
+            new File(file.getPath() + suffix).delete();
+        }
+    }
+
+    private static Connection open(File file) throws SQLException {
+        Connection db = DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
+        Statement statement = db.createStatement();
+        try {
+            statement.execute("PRAGMA busy_timeout = " + BUSY_TIMEOUT_MILLIS);
+        } finally {
+            statement.close();
+        }
+        return db;
+    }
+
+    /**
+     * Apply PetDbHelper's default settings, write-ahead logging with NORMAL sync, and return
+     * the SQLite version.
+     */
+    private static String configure(Connection db) throws SQLException {
+        setJournalMode(db, "wal");
+        Statement statement = db.createStatement();
+        try {
+            statement.execute("PRAGMA synchronous = NORMAL");
+            ResultSet version = statement.executeQuery("SELECT sqlite_version()");
+            try {
+                version.next();
+                return version.getString(1);
+            } finally {
+                version.close();
+            }
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Switch the journal mode, which only works while no other connection is open.
+     */
+    private static void setJournalMode(Connection db, String mode) throws SQLException {
+        Statement statement = db.createStatement();
+        try {
+            ResultSet result = statement.executeQuery("PRAGMA journal_mode = " + mode);
+            try {
+                result.next();
+                if (!mode.equalsIgnoreCase(result.getString(1))) {
+                    throw new IllegalStateException("Journal mode " + result.getString(1)
+                            + " instead of " + mode);
+                }
+            } finally {
+                result.close();
+            }
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Insert the given number of pets, in chunks of {@link #FILL_CHUNK_SIZE} per transaction.
+     */
+    private void fill(Connection db, int size) throws SQLException {
+        PreparedStatement insert = db.prepareStatement(PetSchema.INSERT_PET);
+        BreedIds breedIds = new BreedIds(db);
+        db.setAutoCommit(false);
+        try {
+            for (int i = 0; i < size; i++) {
+                bindPet(insert, breedIds);
+                insert.executeUpdate();
+                if ((i + 1) % FILL_CHUNK_SIZE == 0) {
+                    db.commit();
+                }
+            }
+            db.commit();
+        } finally {
+            insert.close();
+            breedIds.close();
+            db.setAutoCommit(true);
+        }
+    }
+
+    private void bindPet(PreparedStatement insert, BreedIds breedIds) throws SQLException {
+        bindPet(insert, breedIds, mRandom);
+    }
+
+    /**
+     * Bind a random pet drawn from the given generator, so that threads can each use their own.
+     */
+    private static void bindPet(PreparedStatement insert, BreedIds breedIds, Random random)
+            throws SQLException {
+        insert.setString(1, randomName(random));
+        // one pet in ten has no breed
+        if (random.nextInt(10) == 0) {
+            insert.setNull(2, Types.INTEGER);
+        } else {
+            insert.setLong(2, breedIds.get(BREED_WORDS[random.nextInt(BREED_WORDS.length)] + " "
+                    + (1 + random.nextInt(BREED_VARIANTS))));
+        }
+        insert.setInt(3, random.nextInt(3));
+        insert.setInt(4, random.nextInt(MAX_WEIGHT + 1));
+    }
+
+    private static String randomName(Random random) {
+        char[] name = new char[4 + random.nextInt(5)];
+        for (int i = 0; i < name.length; i++) {
+            name[i] = (char) ((i == 0 ? 'A' : 'a') + random.nextInt(26));
+        }
+        return new String(name);
+    }
+
+    /**
+     * Returns the first three letters of a breed word, as typed into a search box.
+     */
+    private String randomSearchWord() {
+        return BREED_WORDS[mRandom.nextInt(BREED_WORDS.length)].substring(0, 3)
+                .toLowerCase(Locale.US);
+    }
+
+    /**
+     * Run PetSearch's two queries for the word: rank every match, then read the rows of the best
+     * {@link #SEARCH_LIMIT}. The scoring is arithmetic on the matchinfo blobs and is left out;
+     * the first matches stand in for the best ones.
+     */
+    private static void search(Connection db, PreparedStatement searchRank, String word)
+            throws SQLException {
+        String matchQuery = word + "*";
+        searchRank.setString(1, matchQuery);
+        StringBuilder ids = new StringBuilder("(");
+        int hits = 0;
+        ResultSet result = searchRank.executeQuery();
+        try {
+            while (result.next()) {
+                long id = result.getLong(1);
+                result.getBytes(2);
+                if (hits < SEARCH_LIMIT) {
+                    ids.append(hits == 0 ? "" : ", ").append(id);
+                }
+                hits++;
+            }
+        } finally {
+            result.close();
+        }
+        if (hits == 0) {
+            return;
+        }
+        PreparedStatement rows = db.prepareStatement(PetSchema.SEARCH_ROWS + ids.append(')'));
+        try {
+            rows.setString(1, matchQuery);
+            readAll(rows);
+        } finally {
+            rows.close();
+        }
+    }
+
+    /**
+     * Check that every filter and sort query is served by its indexes, and record the plans.
+     *
+     * @throws IllegalStateException if a query does not use one of its indexes
+     */
+    private void checkQueryPlans(Connection db, int size) throws SQLException {
+        checkQueryPlan(db, size, PetSchema.SELECT_BY_NAME, "pets_name_index");
+        checkQueryPlan(db, size, PetSchema.SELECT_BREED_PREFIX, "breeds_name_index",
+                "pets_breed_index");
+        checkQueryPlan(db, size, PetSchema.SELECT_FILTERED_PAGE, "pets_gender_weight_index");
+        checkQueryPlan(db, size, PetSchema.SELECT_TOP_BREEDS, "pet_stats_breed_count_index");
+        checkQueryPlan(db, size, PetSchema.purgeDeletedPets(PURGE_CHUNK_SIZE),
+                "pets_deleted_index");
+        checkQueryPlan(db, size, PetSchema.SELECT_CHANGES,
+                "pet_changes AS c USING INTEGER PRIMARY KEY (rowid>?)");
+    }
+
+    private void checkQueryPlan(Connection db, int size, String query, String... indexes)
+            throws SQLException {
+        String plan = explainQueryPlan(db, query);
+        mQueryPlans.add(new QueryPlan(size, query, plan));
+        System.out.println(String.format(Locale.US, "%-30s %8d pets %s", "query_plan", size,
+                plan.replace('\n', ';')));
+        for (String index : indexes) {
+            if (!plan.contains(index)) {
+                throw new IllegalStateException("Query does not use " + index + ": " + query
+                        + "\n" + plan);
+            }
+        }
+    }
+
+    /**
+     * Returns the details of EXPLAIN QUERY PLAN for the query, one line per step. Parameters are
+     * bound to NULL, which the plan does not depend on.
+     */
+    private static String explainQueryPlan(Connection db, String query) throws SQLException {
+        PreparedStatement explain = db.prepareStatement("EXPLAIN QUERY PLAN " + query);
+        try {
+            for (int i = 1; i <= explain.getParameterMetaData().getParameterCount(); i++) {
+                explain.setNull(i, Types.NULL);
+            }
+            ResultSet result = explain.executeQuery();
+            try {
+                StringBuilder plan = new StringBuilder();
+                int detail = result.getMetaData().getColumnCount();
+                while (result.next()) {
+                    if (plan.length() > 0) {
+                        plan.append('\n');
+                    }
+                    plan.append(result.getString(detail));
+                }
+                return plan.toString();
+            } finally {
+                result.close();
+            }
+        } finally {
+            explain.close();
+        }
+    }
+
+    /**
+     * Change {@link #CHANGES_POLLED} pets, then poll the change log for what changed since,
+     * like a mirror that synced before. Counts the log entries the poll reads, which must not
+     * grow with the number of pets, then times the poll.
+     *
+     * @throws IllegalStateException if the poll does not return exactly the changed pets, or
+     *                               reads more log entries than it returns
+     */
+    private void measureChangesPoll(Connection db, int size) throws SQLException {
+        final long since = maxSeq(db);
+        long maxId = maxId(db);
+        PreparedStatement update = db.prepareStatement(PetSchema.UPDATE_WEIGHT);
+        try {
+            // distinct pets, as the log keeps one entry per pet
+            for (int i = 0; i < CHANGES_POLLED; i++) {
+                update.setInt(1, mRandom.nextInt(MAX_WEIGHT));
+                update.setLong(2, 1 + i * (maxId / CHANGES_POLLED));
+                update.executeUpdate();
+            }
+        } finally {
+            update.close();
+        }
+
+        String counted = PetSchema.selectChangesCounted(ROW_COUNTER);
+        RowCounter counter = new RowCounter();
+        Function.create(db, ROW_COUNTER, counter);
+        int returned = 0;
+        try {
+            if (!explainQueryPlan(db, counted).equals(
+                    explainQueryPlan(db, PetSchema.SELECT_CHANGES))) {
+                throw new IllegalStateException("Counting the rows changes the plan of "
+                        + counted);
+            }
+            PreparedStatement poll = db.prepareStatement(counted);
+            try {
+                poll.setLong(1, since);
+                poll.setInt(2, CHANGES_LIMIT);
+                ResultSet result = poll.executeQuery();
+                try {
+                    while (result.next()) {
+                        returned++;
+                    }
+                } finally {
+                    result.close();
+                }
+            } finally {
+                poll.close();
+            }
+        } finally {
+            Function.destroy(db, ROW_COUNTER);
+        }
+        RowsRead rowsRead = new RowsRead("changes_poll", size, returned, counter.count);
+        mRowsRead.add(rowsRead);
+        System.out.println(String.format(Locale.US,
+                "%-30s %8d pets %d changes returned, %d log entries read", "changes_poll_rows",
+                size, returned, counter.count));
+        if (returned != CHANGES_POLLED || counter.count > returned) {
+            throw new IllegalStateException("Polling " + CHANGES_POLLED + " changes returned "
+                    + returned + " and read " + counter.count + " log entries");
+        }
+
+        final PreparedStatement poll = db.prepareStatement(PetSchema.SELECT_CHANGES);
+        try {
+            run(size, new Benchmark("changes_poll", 1000) {
+                @Override
+                void run(int ops) throws SQLException {
+                    for (int i = 0; i < ops; i++) {
+                        poll.setLong(1, since);
+                        poll.setInt(2, CHANGES_LIMIT);
+                        readAll(poll);
+                    }
+                }
+            });
+        } finally {
+            poll.close();
+        }
+    }
+
+    private static List<String> dropIndexes() {
+        List<String> drop = new ArrayList<>();
+        for (String index : PetSchema.INDEXES) {
+            drop.add("DROP INDEX " + index);
+        }
+        return drop;
+    }
+
+    /**
+     * Returns the statements of the schema creating the indexes of {@link PetSchema#INDEXES}.
+     */
+    private List<String> createIndexes() {
+        List<String> create = new ArrayList<>();
+        for (String statement : mSchema) {
+            for (String index : PetSchema.INDEXES) {
+                if (statement.startsWith("CREATE INDEX " + index + " ")) {
+                    create.add(statement);
+                }
+            }
+        }
+        return create;
+    }
+
+    /**
+     * Measure the latency of catalog page reads on {@link #READER_THREADS} connections while
+     * this one runs one operation of the given writer. Each reader reads pages at random
+     * positions until the writer is done.
+     */
+    private void measureConcurrentReads(Connection db, File file, int size, String journalMode,
+                                        Benchmark writer) throws SQLException {
+        final long maxId = maxId(db);
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final List<long[]> latencies = new ArrayList<>();
+        final List<SQLException> failures = new ArrayList<>();
+        List<Thread> readers = new ArrayList<>();
+        for (int i = 0; i < READER_THREADS; i++) {
+            final Connection reader = open(file);
+            final Random random = new Random(i);
+            readers.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long[] nanos = new long[1024];
+                    int count = 0;
+                    try {
+                        PreparedStatement selectPage =
+                                reader.prepareStatement(PetSchema.SELECT_PAGE);
+                        try {
+                            while (writing.get()) {
+                                long start = System.nanoTime();
+                                selectPage.setLong(1, (long) (random.nextDouble() * maxId));
+                                selectPage.setInt(2, PAGE_SIZE);
+                                readAll(selectPage);
+                                if (count == nanos.length) {
+                                    nanos = Arrays.copyOf(nanos, count * 2);
+                                }
+                                nanos[count++] = System.nanoTime() - start;
+                            }
+                        } finally {
+                            selectPage.close();
+                            reader.close();
+                        }
+                    } catch (SQLException e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                    synchronized (latencies) {
+                        latencies.add(Arrays.copyOf(nanos, count));
+                    }
+                }
+            }, "reader-" + i));
+        }
+
+        long writerNanos;
+        try {
+            for (Thread reader : readers) {
+                reader.start();
+            }
+            long start = System.nanoTime();
+            writer.run(1);
+            writerNanos = System.nanoTime() - start;
+        } finally {
+            writing.set(false);
+            for (Thread reader : readers) {
+                joinUninterruptibly(reader);
+            }
+        }
+        if (!failures.isEmpty()) {
+            throw failures.get(0);
+        }
+
+        int count = 0;
+        for (long[] nanos : latencies) {
+            count += nanos.length;
+        }
+        long[] all = new long[count];
+        count = 0;
+        for (long[] nanos : latencies) {
+            System.arraycopy(nanos, 0, all, count, nanos.length);
+            count += nanos.length;
+        }
+        Arrays.sort(all);
+        Latency latency = new Latency(writer.name, journalMode, size, all, writerNanos);
+        mLatencies.add(latency);
+        System.out.println(String.format(Locale.US,
+                "%-30s %8d pets %-6s p50 %10d ns p99 %10d ns, %d reads, writer %d ms",
+                latency.name, size, journalMode, latency.percentile(50), latency.percentile(99),
+                all.length, writerNanos / 1000000));
+    }
+
+    private static void joinUninterruptibly(Thread thread) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static long maxId(Connection db) throws SQLException {
+        return queryLong(db, "SELECT MAX(_id) FROM pets");
+    }
+
+    private static long maxSeq(Connection db) throws SQLException {
+        return queryLong(db, "SELECT IFNULL(MAX(seq), 0) FROM pet_changes");
+    }
+
+    private static long queryLong(Connection db, String query) throws SQLException {
+        Statement statement = db.createStatement();
+        try {
+            ResultSet result = statement.executeQuery(query);
+            try {
+                result.next();
+                return result.getLong(1);
+            } finally {
+                result.close();
+            }
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Run the query and read every column of every row, like a cursor filling its window.
+     * Returns the first column of the last row, or 0 if there is none.
+     */
+    private static long readAll(PreparedStatement query) throws SQLException {
+        ResultSet result = query.executeQuery();
+        try {
+            int columns = result.getMetaData().getColumnCount();
+            long last = 0;
+            while (result.next()) {
+                last = result.getLong(1);
+                for (int column = 2; column <= columns; column++) {
+                    result.getObject(column);
+                }
+            }
+            return last;
+        } finally {
+            result.close();
+        }
+    }
+
+    /**
+     * Run the statements, optionally in one transaction.
+     */
+    private static void execute(Connection db, List<String> sql, boolean inTransaction)
+            throws SQLException {
+        if (inTransaction) {
+            db.setAutoCommit(false);
+        }
+        Statement statement = db.createStatement();
+        try {
+            for (String s : sql) {
+                statement.execute(s);
+            }
+            if (inTransaction) {
+                db.commit();
+            }
+        } finally {
+            statement.close();
+            if (inTransaction) {
+                db.setAutoCommit(true);
+            }
+        }
+    }
+
+    private void run(int size, Benchmark benchmark) throws SQLException {
+        for (int i = 0; i < mWarmupIterations; i++) {
+            benchmark.run(benchmark.opsPerIteration);
+        }
+        measure(size, benchmark, mIterations);
+    }
+
+    private void runOnce(int size, Benchmark benchmark) throws SQLException {
+        measure(size, benchmark, 1);
+    }
+
+    private void measure(int size, Benchmark benchmark, int iterations) throws SQLException {
+        double[] nanosPerOp = new double[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            benchmark.run(benchmark.opsPerIteration);
+            nanosPerOp[i] = (double) (System.nanoTime() - start) / benchmark.opsPerIteration;
+        }
+        Result result = new Result(benchmark.name, size, benchmark.opsPerIteration, nanosPerOp);
+        mResults.add(result);
+        System.out.println(String.format(Locale.US, "%-30s %8d pets %14.0f ns/op %12.0f ops/s",
+                result.name, size, result.mean(), 1e9 / result.mean()));
+    }
+
+    private void writeJson(File file, String sqliteVersion) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create " + parent);
+        }
+        SimpleDateFormat timestamp = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
+        timestamp.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), Charset.forName("UTF-8"));
+        try {
+            out.write("{\n");
+            out.write("  \"timestamp\": " + quote(timestamp.format(new Date())) + ",\n");
+            out.write("  \"sqlite_version\": " + quote(sqliteVersion) + ",\n");
+            out.write("  \"schema_version\": " + PetSchema.VERSION + ",\n");
+            out.write("  \"java_version\": " + quote(System.getProperty("java.version")) + ",\n");
+            out.write("  \"os\": " + quote(System.getProperty("os.name") + " "
+                    + System.getProperty("os.arch")) + ",\n");
+            out.write("  \"warmup_iterations\": " + mWarmupIterations + ",\n");
+            out.write("  \"results\": [");
+            for (int i = 0; i < mResults.size(); i++) {
+                Result result = mResults.get(i);
+                out.write(i == 0 ? "\n" : ",\n");
+                out.write("    {\"benchmark\": " + quote(result.name)
+                        + ", \"rows\": " + result.size
+                        + ", \"ops_per_iteration\": " + result.opsPerIteration
+                        + ", \"mean_ns_per_op\": " + format(result.mean())
+                        + ", \"min_ns_per_op\": " + format(result.min())
+                        + ", \"max_ns_per_op\": " + format(result.max())
+                        + ", \"ns_per_op\": [");
+                for (int j = 0; j < result.nanosPerOp.length; j++) {
+                    out.write((j == 0 ? "" : ", ") + format(result.nanosPerOp[j]));
+                }
+                out.write("]}");
+            }
+            out.write("\n  ],\n");
+            out.write("  \"latencies\": [");
+            for (int i = 0; i < mLatencies.size(); i++) {
+                Latency latency = mLatencies.get(i);
+                out.write(i == 0 ? "\n" : ",\n");
+                out.write("    {\"benchmark\": " + quote(latency.name)
+                        + ", \"journal_mode\": " + quote(latency.journalMode)
+                        + ", \"rows\": " + latency.size
+                        + ", \"ops\": " + latency.nanos.length
+                        + ", \"p50_ns\": " + latency.percentile(50)
+                        + ", \"p99_ns\": " + latency.percentile(99)
+                        + ", \"max_ns\": " + latency.percentile(100)
+                        + ", \"writer_ns\": " + latency.writerNanos + "}");
+            }
+            out.write("\n  ],\n");
+            out.write("  \"query_plans\": [");
+            for (int i = 0; i < mQueryPlans.size(); i++) {
+                QueryPlan plan = mQueryPlans.get(i);
+                out.write(i == 0 ? "\n" : ",\n");
+                out.write("    {\"rows\": " + plan.size
+                        + ", \"query\": " + quote(plan.query)
+                        + ", \"plan\": " + quote(plan.plan) + "}");
+            }
+            out.write("\n  ],\n");
+            out.write("  \"rows_read\": [");
+            for (int i = 0; i < mRowsRead.size(); i++) {
+                RowsRead rowsRead = mRowsRead.get(i);
+                out.write(i == 0 ? "\n" : ",\n");
+                out.write("    {\"benchmark\": " + quote(rowsRead.name)
+                        + ", \"rows\": " + rowsRead.size
+                        + ", \"returned\": " + rowsRead.returned
+                        + ", \"read\": " + rowsRead.read + "}");
+            }
+            out.write("\n  ]\n}\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.US, "%.1f", value);
+    }
+
+    private static String quote(String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format(Locale.US, "\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    /**
+     * One operation to measure, run {@link #opsPerIteration} times per iteration.
+     */
+    private abstract static class Benchmark {
+        final String name;
+        final int opsPerIteration;
+
+        Benchmark(String name, int opsPerIteration) {
+            this.name = name;
+            this.opsPerIteration = opsPerIteration;
+        }
+
+        abstract void run(int ops) throws SQLException;
+    }
+
+    /**
+     * The first page of pets of a random gender and weight range, sorted by name. The query is
+     * prepared on every iteration, as the indexes change between benchmarks.
+     */
+    private final class FilteredQuery extends Benchmark {
+        private final Connection mDb;
+
+        FilteredQuery(Connection db, String name, int opsPerIteration) {
+            super(name, opsPerIteration);
+            mDb = db;
+        }
+
+        @Override
+        void run(int ops) throws SQLException {
+            PreparedStatement select = mDb.prepareStatement(PetSchema.SELECT_FILTERED_PAGE);
+            try {
+                for (int i = 0; i < ops; i++) {
+                    int minWeight = mRandom.nextInt(MAX_WEIGHT);
+                    select.setInt(1, mRandom.nextInt(3));
+                    select.setInt(2, minWeight);
+                    select.setInt(3, minWeight + 10);
+                    select.setInt(4, PAGE_SIZE);
+                    readAll(select);
+                }
+            } finally {
+                select.close();
+            }
+        }
+    }
+
+    /**
+     * An import of {@link #IMPORT_SIZE} pets in transactions of {@link #IMPORT_CHUNK_SIZE} per
+     * operation, like one bulkInsert() per chunk.
+     */
+    private final class Import extends Benchmark {
+        private final Connection mDb;
+
+        Import(Connection db) {
+            super("concurrent_read", 1);
+            mDb = db;
+        }
+
+        @Override
+        void run(int ops) throws SQLException {
+            PreparedStatement insert = mDb.prepareStatement(PetSchema.INSERT_PET);
+            BreedIds breedIds = new BreedIds(mDb);
+            mDb.setAutoCommit(false);
+            try {
+                for (int i = 0; i < ops * IMPORT_SIZE; i++) {
+                    bindPet(insert, breedIds);
+                    insert.executeUpdate();
+                    if ((i + 1) % IMPORT_CHUNK_SIZE == 0) {
+                        mDb.commit();
+                    }
+                }
+                mDb.commit();
+            } finally {
+                mDb.setAutoCommit(true);
+                insert.close();
+                breedIds.close();
+            }
+        }
+    }
+
+    /**
+     * One statement on the pets in an id range, in its own transaction. Only the first operation
+     * finds the pets.
+     */
+    private static final class RangeWrite extends Benchmark {
+        private final Connection mDb;
+        private final String mSql;
+        private final long mAfterId;
+        private final long mLastId;
+
+        RangeWrite(Connection db, String name, String sql, long afterId, long lastId) {
+            super(name, 1);
+            mDb = db;
+            mSql = sql;
+            mAfterId = afterId;
+            mLastId = lastId;
+        }
+
+        @Override
+        void run(int ops) throws SQLException {
+            PreparedStatement statement = mDb.prepareStatement(mSql);
+            try {
+                for (int i = 0; i < ops; i++) {
+                    statement.setLong(1, mAfterId);
+                    statement.setLong(2, mLastId);
+                    statement.executeUpdate();
+                }
+            } finally {
+                statement.close();
+            }
+        }
+    }
+
+    /**
+     * The purge of PetProvider, deleting the marked pets in chunks of
+     * {@link #PURGE_CHUNK_SIZE}, one transaction each.
+     */
+    private static final class Purge extends Benchmark {
+        private final Connection mDb;
+
+        Purge(Connection db) {
+            super("concurrent_read_purge", 1);
+            mDb = db;
+        }
+
+        @Override
+        void run(int ops) throws SQLException {
+            PreparedStatement purge =
+                    mDb.prepareStatement(PetSchema.purgeDeletedPets(PURGE_CHUNK_SIZE));
+            try {
+                for (int i = 0; i < ops; i++) {
+                    int purged;
+                    do {
+                        purged = purge.executeUpdate();
+                    } while (purged == PURGE_CHUNK_SIZE);
+                }
+            } finally {
+                purge.close();
+            }
+        }
+    }
+
+    /**
+     * One database of the sharded write benchmark, created like PetShard creates a shard: with
+     * its own connection and its own ids, and a lock a writer holds for its whole transaction.
+     */
+    private final class Shard {
+        private final int mIndex;
+        private final File mFile;
+        private final Connection mDb;
+        private final PreparedStatement mInsert;
+        private final BreedIds mBreedIds;
+
+        Shard(int index) throws SQLException, IOException {
+            mIndex = index;
+            mFile = File.createTempFile("pets-benchmark-shard", ".db");
+            mDb = open(mFile);
+            try {
+                configure(mDb);
+                execute(mDb, mSchema, true);
+                execute(mDb, PetSchema.seedShard(index), true);
+                mInsert = mDb.prepareStatement(PetSchema.INSERT_PET);
+                mBreedIds = new BreedIds(mDb);
+            } catch (SQLException e) {
+                mDb.close();
+                deleteDatabase(mFile);
+                throw e;
+            }
+        }
+
+        /**
+         * Insert the given number of random pets in one transaction.
+         */
+        synchronized void insert(Random random, int count) throws SQLException {
+            mDb.setAutoCommit(false);
+            try {
+                for (int i = 0; i < count; i++) {
+                    bindPet(mInsert, mBreedIds, random);
+                    mInsert.executeUpdate();
+                }
+                mDb.commit();
+            } finally {
+                mDb.setAutoCommit(true);
+            }
+        }
+
+        /**
+         * Check that every pet got an id of this shard.
+         */
+        synchronized void checkIds() throws SQLException {
+            long shift = PetSchema.SHARD_SHIFT;
+            long outside = queryLong(mDb, "SELECT COUNT(*) FROM pets WHERE _id >> " + shift
+                    + " != " + mIndex);
+            if (outside != 0) {
+                throw new IllegalStateException(outside + " pets of shard " + mIndex
+                        + " have ids outside of its range");
+            }
+        }
+
+        synchronized void close() throws SQLException {
+            try {
+                mInsert.close();
+                mBreedIds.close();
+                mDb.close();
+            } finally {
+                deleteDatabase(mFile);
+            }
+        }
+    }
+
+    /**
+     * Pets inserted by {@link #WRITER_THREADS} threads at once. Every call writes
+     * {@code callSize} pets in one transaction on the next shard in turn, as PetProvider picks
+     * the shard of an insert. An operation is one pet, so ops/s is the write throughput.
+     */
+    private static final class ShardedInsert extends Benchmark {
+        private final Shard[] mShards;
+        private final int mCallSize;
+        private final AtomicInteger mNextShard = new AtomicInteger();
+
+        ShardedInsert(String name, int opsPerIteration, Shard[] shards, int callSize) {
+            super(name, opsPerIteration);
+            mShards = shards;
+            mCallSize = callSize;
+        }
+
+        @Override
+        void run(int ops) throws SQLException {
+            final int calls = ops / mCallSize / WRITER_THREADS;
+            final List<SQLException> failures = new ArrayList<>();
+            List<Thread> writers = new ArrayList<>();
+            for (int i = 0; i < WRITER_THREADS; i++) {
+                final Random random = new Random(i);
+                writers.add(new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int j = 0; j < calls; j++) {
+                                int next = mNextShard.getAndIncrement() & Integer.MAX_VALUE;
+                                mShards[next % mShards.length].insert(random, mCallSize);
+                            }
+                        } catch (SQLException e) {
+                            synchronized (failures) {
+                                failures.add(e);
+                            }
+                        }
+                    }
+                }, "writer-" + i));
+            }
+            for (Thread writer : writers) {
+                writer.start();
+            }
+            for (Thread writer : writers) {
+                joinUninterruptibly(writer);
+            }
+            if (!failures.isEmpty()) {
+                throw failures.get(0);
+            }
+        }
+    }
+
+    /**
+     * The breed ids of PetWriter: kept in memory once known, otherwise looked up in the breed
+     * dictionary, and added to it for a new breed.
+     */
+    private static final class BreedIds {
+        private final Map<String, Long> mIds = new HashMap<>();
+        private final PreparedStatement mSelect;
+        private final PreparedStatement mInsert;
+
+        BreedIds(Connection db) throws SQLException {
+            mSelect = db.prepareStatement(PetSchema.SELECT_BREED_ID);
+            mInsert = db.prepareStatement(PetSchema.INSERT_BREED);
+        }
+
+        long get(String breed) throws SQLException {
+            Long id = mIds.get(breed);
+            if (id != null) {
+                return id;
+            }
+            mSelect.setString(1, breed);
+            ResultSet result = mSelect.executeQuery();
+            try {
+                if (result.next()) {
+                    id = result.getLong(1);
+                }
+            } finally {
+                result.close();
+            }
+            if (id == null) {
+                mInsert.setString(1, breed);
+                mInsert.executeUpdate();
+                ResultSet keys = mInsert.getGeneratedKeys();
+                try {
+                    keys.next();
+                    id = keys.getLong(1);
+                } finally {
+                    keys.close();
+                }
+            }
+            mIds.put(breed, id);
+            return id;
+        }
+
+        void close() throws SQLException {
+            mSelect.close();
+            mInsert.close();
+        }
+    }
+
+    /**
+     * A query with fixed arguments, read to the end on every operation.
+     */
+    private static final class Query extends Benchmark {
+        private final Connection mDb;
+        private final String mSql;
+        private final Object[] mArgs;
+
+        Query(Connection db, String name, int opsPerIteration, String sql, Object... args) {
+            super(name, opsPerIteration);
+            mDb = db;
+            mSql = sql;
+            mArgs = args;
+        }
+
+        @Override
+        void run(int ops) throws SQLException {
+            PreparedStatement query = mDb.prepareStatement(mSql);
+            try {
+                for (int i = 0; i < mArgs.length; i++) {
+                    query.setObject(i + 1, mArgs[i]);
+                }
+                for (int i = 0; i < ops; i++) {
+                    readAll(query);
+                }
+            } finally {
+                query.close();
+            }
+        }
+    }
+
+    /**
+     * Measured times of one benchmark at one database size.
+     */
+    private static final class Result {
+        final String name;
+        final int size;
+        final int opsPerIteration;
+        final double[] nanosPerOp;
+
+        Result(String name, int size, int opsPerIteration, double[] nanosPerOp) {
+            this.name = name;
+            this.size = size;
+            this.opsPerIteration = opsPerIteration;
+            this.nanosPerOp = nanosPerOp;
+        }
+
+        double mean() {
+            double sum = 0;
+            for (double value : nanosPerOp) {
+                sum += value;
+            }
+            return sum / nanosPerOp.length;
+        }
+
+        double min() {
+            double min = Double.MAX_VALUE;
+            for (double value : nanosPerOp) {
+                min = Math.min(min, value);
+            }
+            return min;
+        }
+
+        double max() {
+            double max = 0;
+            for (double value : nanosPerOp) {
+                max = Math.max(max, value);
+            }
+            return max;
+        }
+    }
+
+    /**
+     * Sorted latencies of every operation of one concurrent benchmark.
+     */
+    private static final class Latency {
+        final String name;
+        final String journalMode;
+        final int size;
+        final long[] nanos;
+        final long writerNanos;
+
+        Latency(String name, String journalMode, int size, long[] nanos, long writerNanos) {
+            this.name = name;
+            this.journalMode = journalMode;
+            this.size = size;
+            this.nanos = nanos;
+            this.writerNanos = writerNanos;
+        }
+
+        /**
+         * Returns the latency within which the given percentage of operations finished, or 0
+         * without any.
+         */
+        long percentile(int percent) {
+            if (nanos.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percent / 100.0 * nanos.length) - 1;
+            return nanos[Math.max(0, Math.min(index, nanos.length - 1))];
+        }
+    }
+
+    /**
+     * The plan SQLite chose for a query.
+     */
+    private static final class QueryPlan {
+        final int size;
+        final String query;
+        final String plan;
+
+        QueryPlan(int size, String query, String plan) {
+            this.size = size;
+            this.query = query;
+            this.plan = plan;
+        }
+    }
+
+    /**
+     * Rows a query returned, and rows of its main table it read to find them.
+     */
+    private static final class RowsRead {
+        final String name;
+        final int size;
+        final int returned;
+        final int read;
+
+        RowsRead(String name, int size, int returned, int read) {
+            this.name = name;
+            this.size = size;
+            this.returned = returned;
+            this.read = read;
+        }
+    }
+
+    /**
+     * SQL function of one argument that returns true and counts how often it was called.
+     */
+    private static final class RowCounter extends Function {
+        int count;
+
+        @Override
+        protected void xFunc() throws SQLException {
+            count++;
+            result(1);
+        }
+    }
+}
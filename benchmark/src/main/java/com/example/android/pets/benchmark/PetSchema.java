@@ -0,0 +1,290 @@
+package com.example.android.pets.benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The pets database as PetDbHelper creates it, and the statements the data layer runs on it.
+ *
+ * The schema is read from its export in app/schemas, which the app's PetSchemaTest checks
+ * against PetDbHelper, so the benchmarks run on the tables, indexes and triggers the app ships.
+ * The statements below are those PetProvider and PetWriter run on schema {@link #VERSION}.
+ * Loading fails once the app exports a newer version, until they are brought up to date.
+ */
+final class PetSchema {
+
+    /**
+     * Schema version the statements are written for.
+     */
+    static final int VERSION = 8;
+
+    /**
+     * Bit position of the shard in pet ids and change sequence numbers, PetEntry.SHARD_SHIFT.
+     */
+    static final int SHARD_SHIFT = 40;
+
+    /**
+     * Statement of PetWriter.insert, with the breed's dictionary id.
+     */
+    static final String INSERT_PET =
+            "INSERT INTO pets (name, breed_id, gender, weight) VALUES (?, ?, ?, ?)";
+
+    /**
+     * Statements of PetWriter.getBreedId for a breed missing from its cache: look the breed up,
+     * and add it to the dictionary if it is new.
+     */
+    static final String SELECT_BREED_ID = "SELECT _id FROM breeds WHERE name = ?";
+    static final String INSERT_BREED = "INSERT INTO breeds (name) VALUES (?)";
+
+    /**
+     * Query of a PET_ID lookup that misses the row cache.
+     */
+    static final String SELECT_PET = "SELECT _id, name, breed, gender, weight"
+            + " FROM pets_with_breed WHERE _id = ?";
+
+    /**
+     * Query of one catalog page after the given id, as PetProvider runs it for pets?after=&limit=.
+     */
+    static final String SELECT_PAGE = "SELECT _id, name, breed, gender, weight"
+            + " FROM pets_with_breed WHERE _id > ? ORDER BY _id ASC LIMIT ?";
+
+    /**
+     * Query of the first page of pets of one gender in a weight range sorted by name, with the
+     * selection a client passes to PetProvider.
+     */
+    static final String SELECT_FILTERED_PAGE = "SELECT _id, name, breed, gender, weight"
+            + " FROM pets_with_breed WHERE gender = ? AND weight >= ? AND weight <= ?"
+            + " ORDER BY name COLLATE NOCASE LIMIT ?";
+
+    /**
+     * Query of pets?breed_prefix=, with the prefix turned into a NOCASE range: the lower-case
+     * prefix and the prefix with its last letter incremented. The range is looked up in the
+     * breeds, then the pets by breed id.
+     */
+    static final String SELECT_BREED_PREFIX = "SELECT _id, name, breed, gender, weight"
+            + " FROM pets_with_breed WHERE _id IN (SELECT _id FROM pets WHERE breed_id IN"
+            + " (SELECT _id FROM breeds WHERE name COLLATE NOCASE>=? AND name COLLATE NOCASE<?))";
+
+    /**
+     * The LIKE selection that {@link #SELECT_BREED_PREFIX} replaces, with the prefix followed by %.
+     */
+    static final String SELECT_BREED_LIKE = "SELECT _id, name, breed, gender, weight"
+            + " FROM pets_with_breed WHERE breed LIKE ?";
+
+    /**
+     * Query of the first catalog page sorted by name.
+     */
+    static final String SELECT_BY_NAME = "SELECT _id FROM pets_with_breed"
+            + " ORDER BY name COLLATE NOCASE LIMIT ?";
+
+    /**
+     * Indexes of the filters and sort orders, named after their columns.
+     */
+    static final String[] INDEXES = {
+            "pets_name_index", "pets_breed_index", "pets_gender_weight_index"
+    };
+
+    /**
+     * First query of PetSearch: the ids and matchinfo of every match, for ranking.
+     */
+    static final String SEARCH_RANK = "SELECT docid, matchinfo(pets_fts, 'pcx')"
+            + " FROM pets_fts WHERE pets_fts MATCH ?";
+
+    /**
+     * Second query of PetSearch, with the ids of the best matches appended in parentheses.
+     */
+    static final String SEARCH_ROWS = "SELECT p._id, p.name, p.breed, p.gender, p.weight,"
+            + " snippet(pets_fts, '<b>', '</b>', '...', -1, 8)"
+            + " FROM pets_fts JOIN pets_with_breed p ON p._id = pets_fts.docid"
+            + " WHERE pets_fts MATCH ? AND pets_fts.docid IN ";
+
+    /**
+     * What a search without the full-text table runs: a substring selection on name and breed.
+     */
+    static final String SEARCH_LIKE = "SELECT _id, name, breed, gender, weight"
+            + " FROM pets_with_breed WHERE name LIKE ? OR breed LIKE ?";
+
+    /**
+     * Query of pets/stats, reading the per gender summary table.
+     */
+    static final String SELECT_STATS = "SELECT IFNULL(SUM(count), 0),"
+            + " IFNULL(SUM(CASE WHEN gender = 1 THEN count END), 0),"
+            + " IFNULL(SUM(CASE WHEN gender = 2 THEN count END), 0),"
+            + " IFNULL(SUM(CASE WHEN gender = 0 THEN count END), 0),"
+            + " IFNULL(TOTAL(total_weight) / SUM(NULLIF(count, 0)), 0)"
+            + " FROM pet_stats_gender";
+
+    /**
+     * What {@link #SELECT_STATS} computes, aggregated from the pets table.
+     */
+    static final String SELECT_STATS_GROUP_BY = "SELECT COUNT(*),"
+            + " TOTAL(gender = 1), TOTAL(gender = 2), TOTAL(gender = 0), IFNULL(AVG(weight), 0)"
+            + " FROM pets_with_breed";
+
+    /**
+     * Query of pets/stats/breeds?limit=, the most common breeds.
+     */
+    static final String SELECT_TOP_BREEDS = "SELECT breed, count FROM (SELECT b.name AS breed,"
+            + " s.count AS count FROM pet_stats_breed s JOIN breeds b ON b._id = s.breed_id)"
+            + " ORDER BY count DESC, breed LIMIT ?";
+
+    /**
+     * What {@link #SELECT_TOP_BREEDS} returns, aggregated from the pets table.
+     */
+    static final String SELECT_TOP_BREEDS_GROUP_BY = "SELECT breed, COUNT(*) AS count"
+            + " FROM pets_with_breed WHERE breed IS NOT NULL GROUP BY breed ORDER BY count DESC, breed LIMIT ?";
+
+    /**
+     * Statement of PetWriter.update changing only the weight.
+     */
+    static final String UPDATE_WEIGHT = "UPDATE pets SET weight = ? WHERE _id = ? AND deleted = 0";
+
+    /**
+     * Query of pets/changes?since=&limit=: the change log after a sequence number, joined with
+     * the current pets.
+     */
+    static final String SELECT_CHANGES = changesQuery("seq>?");
+
+    /**
+     * {@link #SELECT_CHANGES} with the given SQL function called once on every log entry the
+     * query reads, so that the function can count them.
+     */
+    static String selectChangesCounted(String function) {
+        return changesQuery("seq>? AND " + function + "(seq)");
+    }
+
+    private static String changesQuery(String where) {
+        return "SELECT seq, _id, deleted, name, breed, gender, weight"
+                + " FROM (SELECT c.seq AS seq, c.pet_id AS _id, c.deleted AS deleted,"
+                + " p.name AS name, b.name AS breed, p.gender AS gender, p.weight AS weight"
+                + " FROM pet_changes c LEFT JOIN pets p ON p._id = c.pet_id"
+                + " LEFT JOIN breeds b ON b._id = p.breed_id)"
+                + " WHERE " + where + " ORDER BY seq LIMIT ?";
+    }
+
+    /**
+     * Statement of a PetProvider delete of the pets in an id range, with soft delete off.
+     */
+    static final String DELETE_PETS = "DELETE FROM pets WHERE (_id > ? AND _id <= ?) AND +deleted = 0";
+
+    /**
+     * Statement of the same delete with soft delete on, marking the pets.
+     */
+    static final String MARK_PETS_DELETED =
+            "UPDATE pets SET deleted = 1 WHERE (_id > ? AND _id <= ?) AND +deleted = 0";
+
+    /**
+     * Returns the statement of PetDbHelper.purgeDeletedPets with the given limit.
+     */
+    static String purgeDeletedPets(int limit) {
+        return "DELETE FROM pets WHERE _id IN (SELECT _id FROM pets WHERE deleted = 1 LIMIT "
+                + limit + ")";
+    }
+
+    /**
+     * Statement deleting every pet row by row, as a DELETE with the full-text delete trigger in
+     * place runs.
+     */
+    static final String[] DELETE_ALL = {
+            "DELETE FROM pets"
+    };
+
+    private PetSchema() {}
+
+    /**
+     * Returns the statements of PetDbHelper.truncatePets with reset ids, run in one transaction.
+     * The full-text table and the delete triggers are recreated with their statements from the
+     * given schema.
+     */
+    static List<String> truncate(List<String> schema) {
+        List<String> statements = new ArrayList<>();
+        statements.add("DROP TRIGGER IF EXISTS pets_fts_delete");
+        statements.add("DROP TRIGGER IF EXISTS pets_stats_delete");
+        statements.add("DROP TRIGGER IF EXISTS pets_changes_delete");
+        statements.add("DELETE FROM pets");
+        statements.add("DELETE FROM pet_changes");
+        statements.add("INSERT OR REPLACE INTO pet_changes(pet_id, deleted, time)"
+                + " VALUES (0, 1, CAST(strftime('%s', 'now') AS INTEGER))");
+        statements.add("DROP TABLE IF EXISTS pets_fts");
+        statements.add(find(schema, "CREATE VIRTUAL TABLE pets_fts "));
+        statements.add("DELETE FROM pet_stats_gender");
+        statements.add("DELETE FROM pet_stats_breed");
+        statements.add("DELETE FROM breeds");
+        statements.add(find(schema, "CREATE TRIGGER pets_fts_delete "));
+        statements.add(find(schema, "CREATE TRIGGER pets_stats_delete "));
+        statements.add(find(schema, "CREATE TRIGGER pets_changes_delete "));
+        statements.add("DELETE FROM sqlite_sequence WHERE name = 'pets'");
+        return statements;
+    }
+
+    /**
+     * Returns the statements PetDbHelper.onCreate runs after the schema on a new shard, starting
+     * its pet ids and change sequence numbers at {@code shard << SHARD_SHIFT}. Shard 0 needs
+     * none.
+     */
+    static List<String> seedShard(int shard) {
+        List<String> statements = new ArrayList<>();
+        if (shard > 0) {
+            for (String table : new String[]{"pets", "pet_changes"}) {
+                statements.add("INSERT INTO sqlite_sequence (name, seq) VALUES ('" + table + "', "
+                        + ((long) shard << SHARD_SHIFT) + ")");
+            }
+        }
+        return statements;
+    }
+
+    /**
+     * Returns the statement of the schema starting with the given prefix.
+     *
+     * @throws IllegalStateException if there is none
+     */
+    static String find(List<String> schema, String prefix) {
+        for (String statement : schema) {
+            if (statement.startsWith(prefix)) {
+                return statement;
+            }
+        }
+        throw new IllegalStateException("No statement starting with " + prefix);
+    }
+
+    /**
+     * Read the statements creating schema {@link #VERSION} from its export in the given
+     * directory.
+     *
+     * @throws IllegalStateException if the directory holds the export of a newer version
+     */
+    static List<String> load(File dir) throws IOException {
+        if (new File(dir, (VERSION + 1) + ".sql").exists()) {
+            throw new IllegalStateException("The app exports schema version " + (VERSION + 1)
+                    + " in " + dir + ", but PetSchema has the statements of version " + VERSION);
+        }
+        File file = new File(dir, VERSION + ".sql");
+        if (!file.isFile()) {
+            throw new FileNotFoundException("No export of schema version " + VERSION + " at "
+                    + file.getAbsolutePath());
+        }
+        // one statement per line, see the app's PetSchemas
+        List<String> statements = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), Charset.forName("UTF-8")));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("--")) {
+                    statements.add(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return statements;
+    }
+}